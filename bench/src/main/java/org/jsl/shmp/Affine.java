@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+/* Closed form composition of the affine model matrices:
+ * [translate] x [rotate] x [uniform scale], written directly in the
+ * column-major layout of android.opengl.Matrix, together with an inverse
+ * computed analytically instead of Matrix.invertM().
+ * The ball is oriented in the vertex shader now and the application
+ * does not build such matrices anymore, the helper lives in the bench
+ * module only, see AffineBenchmark for the cost against the
+ * translate/rotate/scale/invertM chain.
+ */
+public class Affine
+{
+    // 0 4  8 12
+    // 1 5  9 13
+    // 2 6 10 14
+    // 3 7 11 15
+
+    private static void set(float [] m, int offset,
+            float r00, float r01, float r02,
+            float r10, float r11, float r12,
+            float r20, float r21, float r22,
+            float x, float y, float z)
+    {
+        m[offset   ] = r00;
+        m[offset+1 ] = r10;
+        m[offset+2 ] = r20;
+        m[offset+3 ] = 0f;
+        m[offset+4 ] = r01;
+        m[offset+5 ] = r11;
+        m[offset+6 ] = r21;
+        m[offset+7 ] = 0f;
+        m[offset+8 ] = r02;
+        m[offset+9 ] = r12;
+        m[offset+10] = r22;
+        m[offset+11] = 0f;
+        m[offset+12] = x;
+        m[offset+13] = y;
+        m[offset+14] = z;
+        m[offset+15] = 1f;
+    }
+
+    /* m = [translate(x, y, z)] x [scale(s)],
+     * inv (if not null) = inverse of m.
+     */
+    public static void setTranslateScale(
+            float [] m, int offset, float [] inv, int invOffset, float x, float y, float z, float s)
+    {
+        set(m, offset,
+            s,  0f, 0f,
+            0f, s,  0f,
+            0f, 0f, s,
+            x, y, z);
+
+        if (inv != null)
+        {
+            final float is = (1f / s);
+            set(inv, invOffset,
+                is, 0f, 0f,
+                0f, is, 0f,
+                0f, 0f, is,
+                -x*is, -y*is, -z*is);
+        }
+    }
+
+    /* m = [translate(x, y, z)] x [rotate Z axis to (dx, dy, dz)] x [scale(s)],
+     * inv (if not null) = inverse of m.
+     * Direction should not be zero, but does not need to be normalized.
+     */
+    public static void setTranslateOrientScale(
+            float [] m, int offset, float [] inv, int invOffset,
+            float x, float y, float z, float dx, float dy, float dz, float s)
+    {
+        final float length = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+        dx /= length;
+        dy /= length;
+        dz /= length;
+
+        /* Rotation of the Z axis to the unit vector d:
+         * R = I + [v]x + [v]x^2 / (1 + cos), where v = Z x d, cos = d.z
+         */
+        float r00, r01, r02, r10, r11, r12, r20, r21, r22;
+        if (dz > -0.999999f)
+        {
+            final float k = (1f / (1f + dz));
+            r00 = 1f - k*dx*dx;
+            r01 = -k*dx*dy;
+            r02 = dx;
+            r10 = r01;
+            r11 = 1f - k*dy*dy;
+            r12 = dy;
+            r20 = -dx;
+            r21 = -dy;
+            r22 = dz;
+        }
+        else
+        {
+            /* d is opposite to Z, rotate 180 degrees around X */
+            r00 = 1f;  r01 = 0f;  r02 = 0f;
+            r10 = 0f;  r11 = -1f; r12 = 0f;
+            r20 = 0f;  r21 = 0f;  r22 = -1f;
+        }
+
+        set(m, offset,
+            r00*s, r01*s, r02*s,
+            r10*s, r11*s, r12*s,
+            r20*s, r21*s, r22*s,
+            x, y, z);
+
+        if (inv != null)
+        {
+            /* inverse = [scale(1/s)] x [transposed R] x [translate(-x, -y, -z)] */
+            final float is = (1f / s);
+            set(inv, invOffset,
+                r00*is, r10*is, r20*is,
+                r01*is, r11*is, r21*is,
+                r02*is, r12*is, r22*is,
+                -(r00*x + r10*y + r20*z) * is,
+                -(r01*x + r11*y + r21*z) * is,
+                -(r02*x + r12*y + r22*z) * is);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Model matrix and its inverse: Affine closed form against
+ * the translate/rotate/scale/multiplyMM/invertM chain it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AffineBenchmark
+{
+    private static final int MODEL = 0;
+    private static final int MODEL_INVERTED = 16;
+
+    private final float [] m_matrix = new float[32];
+    private final float [] m_tmp = new float[48];
+    private float m_x;
+
+    private static void orientMatrixTo(float [] m, int offset, float [] to, int toOffset, float [] tmp, int tmpOffset)
+    {
+        Vector.set(tmp, tmpOffset, /*x*/0f, /*y*/0f, /*z*/1f);
+        Vector.crossProduct(tmp, tmpOffset+4, tmp, tmpOffset, to, toOffset);
+        final double angle = (Math.asin(Vector.length(tmp, tmpOffset+4) / Vector.length(to, toOffset)) * 180d / Math.PI);
+        GLMatrix.setRotateM(m, offset, (float)angle, tmp[tmpOffset+4], tmp[tmpOffset+4+1], tmp[tmpOffset+4+2]);
+    }
+
+    @Benchmark
+    public float [] chainTranslateScale()
+    {
+        final float [] tmp = m_tmp;
+        final float x = (m_x += 0.5f);
+        GLMatrix.setIdentityM(tmp, 0);
+        GLMatrix.scaleM(tmp, 0, 10f, 10f, 10f);
+        GLMatrix.setIdentityM(tmp, 16);
+        GLMatrix.translateM(tmp, 16, x, 20f, 10f);
+        GLMatrix.multiplyMM(m_matrix, MODEL, tmp, 16, tmp, 0);
+        GLMatrix.invertM(m_matrix, MODEL_INVERTED, m_matrix, MODEL);
+        return m_matrix;
+    }
+
+    @Benchmark
+    public float [] affineTranslateScale()
+    {
+        final float x = (m_x += 0.5f);
+        Affine.setTranslateScale(m_matrix, MODEL, m_matrix, MODEL_INVERTED, x, 20f, 10f, 10f);
+        return m_matrix;
+    }
+
+    @Benchmark
+    public float [] chainTranslateOrientScale()
+    {
+        final float [] tmp = m_tmp;
+        final float x = (m_x += 0.5f);
+        Vector.set(tmp, 16, 300f-x, 400f, 500f);
+        orientMatrixTo(tmp, 0, tmp, 16, tmp, 20);
+        GLMatrix.setIdentityM(tmp, 16);
+        GLMatrix.scaleM(tmp, 16, 10f, 10f, 10f);
+        GLMatrix.multiplyMM(tmp, 32, tmp, 0, tmp, 16);
+        GLMatrix.setIdentityM(tmp, 0);
+        GLMatrix.translateM(tmp, 0, x, 20f, 10f);
+        GLMatrix.multiplyMM(m_matrix, MODEL, tmp, 0, tmp, 32);
+        GLMatrix.invertM(m_matrix, MODEL_INVERTED, m_matrix, MODEL);
+        return m_matrix;
+    }
+
+    @Benchmark
+    public float [] affineTranslateOrientScale()
+    {
+        final float x = (m_x += 0.5f);
+        Affine.setTranslateOrientScale(m_matrix, MODEL, m_matrix, MODEL_INVERTED,
+                x, 20f, 10f, 300f-x, 400f, 500f, 10f);
+        return m_matrix;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+/* Replaces BuildConfig generated by the Android build
+ * for the application sources compiled into the benchmarks.
+ */
+public final class BuildConfig
+{
+    public static final boolean DEBUG = false;
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/* Cup vertex buffer generation done when the GL context is created */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CupMeshBenchmark
+{
+    @Param({"8", "32"})
+    public int stripes;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private FloatBuffer m_data;
+
+    @Setup
+    public void setup()
+    {
+        final int size = (CupMesh.getVertices(stripes) * CupMesh.VERTEX_SIZE * batchSize);
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(size * (Float.SIZE / Byte.SIZE));
+        byteBuffer.order(ByteOrder.nativeOrder());
+        m_data = byteBuffer.asFloatBuffer();
+    }
+
+    @Benchmark
+    public FloatBuffer create()
+    {
+        m_data.clear();
+        CupMesh.create(m_data, stripes, batchSize);
+        return m_data;
+    }
+}
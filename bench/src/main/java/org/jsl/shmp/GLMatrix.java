@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+/* Plain Java version of the android.opengl.Matrix methods
+ * used by the old transform chains, so the benchmarks can compare
+ * against them without Android. Same column-major layout and semantics.
+ */
+public final class GLMatrix
+{
+    private GLMatrix()
+    {
+    }
+
+    public static void setIdentityM(float [] m, int offset)
+    {
+        for (int idx=0; idx<16; idx++)
+            m[offset+idx] = 0f;
+        for (int idx=0; idx<16; idx+=5)
+            m[offset+idx] = 1f;
+    }
+
+    public static void translateM(float [] m, int offset, float x, float y, float z)
+    {
+        for (int idx=0; idx<4; idx++)
+        {
+            final int mi = (offset + idx);
+            m[12+mi] += (m[mi]*x + m[4+mi]*y + m[8+mi]*z);
+        }
+    }
+
+    public static void scaleM(float [] m, int offset, float x, float y, float z)
+    {
+        for (int idx=0; idx<4; idx++)
+        {
+            final int mi = (offset + idx);
+            m[mi] *= x;
+            m[4+mi] *= y;
+            m[8+mi] *= z;
+        }
+    }
+
+    /* Rotation by angle degrees around the (x, y, z) axis */
+    public static void setRotateM(float [] m, int offset, float a, float x, float y, float z)
+    {
+        m[offset+3] = 0f;
+        m[offset+7] = 0f;
+        m[offset+11] = 0f;
+        m[offset+12] = 0f;
+        m[offset+13] = 0f;
+        m[offset+14] = 0f;
+        m[offset+15] = 1f;
+
+        a *= (float) (Math.PI / 180d);
+        final float s = (float) Math.sin(a);
+        final float c = (float) Math.cos(a);
+
+        final float length = (float) Math.sqrt(x*x + y*y + z*z);
+        if (length != 1f)
+        {
+            x /= length;
+            y /= length;
+            z /= length;
+        }
+
+        final float nc = (1f - c);
+        final float xy = (x * y);
+        final float yz = (y * z);
+        final float zx = (z * x);
+        final float xs = (x * s);
+        final float ys = (y * s);
+        final float zs = (z * s);
+        m[offset   ] = x*x*nc + c;
+        m[offset+4 ] = xy*nc - zs;
+        m[offset+8 ] = zx*nc + ys;
+        m[offset+1 ] = xy*nc + zs;
+        m[offset+5 ] = y*y*nc + c;
+        m[offset+9 ] = yz*nc - xs;
+        m[offset+2 ] = zx*nc - ys;
+        m[offset+6 ] = yz*nc + xs;
+        m[offset+10] = z*z*nc + c;
+    }
+
+    /* r = lhs x rhs, r should not overlap lhs or rhs */
+    public static void multiplyMM(float [] r, int rOffset, float [] lhs, int lhsOffset, float [] rhs, int rhsOffset)
+    {
+        for (int col=0; col<4; col++)
+        {
+            final float r0 = rhs[rhsOffset + col*4];
+            final float r1 = rhs[rhsOffset + col*4 + 1];
+            final float r2 = rhs[rhsOffset + col*4 + 2];
+            final float r3 = rhs[rhsOffset + col*4 + 3];
+            for (int row=0; row<4; row++)
+            {
+                r[rOffset + col*4 + row] =
+                        lhs[lhsOffset + row]*r0 +
+                        lhs[lhsOffset + 4 + row]*r1 +
+                        lhs[lhsOffset + 8 + row]*r2 +
+                        lhs[lhsOffset + 12 + row]*r3;
+            }
+        }
+    }
+
+    /* r = lhs x v, r should not overlap lhs or v */
+    public static void multiplyMV(float [] r, int rOffset, float [] lhs, int lhsOffset, float [] v, int vOffset)
+    {
+        final float x = v[vOffset];
+        final float y = v[vOffset+1];
+        final float z = v[vOffset+2];
+        final float w = v[vOffset+3];
+        for (int row=0; row<4; row++)
+        {
+            r[rOffset + row] =
+                    lhs[lhsOffset + row]*x +
+                    lhs[lhsOffset + 4 + row]*y +
+                    lhs[lhsOffset + 8 + row]*z +
+                    lhs[lhsOffset + 12 + row]*w;
+        }
+    }
+
+    /* General 4x4 inverse by cofactors, returns false if m is singular */
+    public static boolean invertM(float [] inv, int invOffset, float [] m, int mOffset)
+    {
+        final float m0 = m[mOffset], m1 = m[mOffset+1], m2 = m[mOffset+2], m3 = m[mOffset+3];
+        final float m4 = m[mOffset+4], m5 = m[mOffset+5], m6 = m[mOffset+6], m7 = m[mOffset+7];
+        final float m8 = m[mOffset+8], m9 = m[mOffset+9], m10 = m[mOffset+10], m11 = m[mOffset+11];
+        final float m12 = m[mOffset+12], m13 = m[mOffset+13], m14 = m[mOffset+14], m15 = m[mOffset+15];
+
+        final float i0 = m5*m10*m15 - m5*m11*m14 - m9*m6*m15 + m9*m7*m14 + m13*m6*m11 - m13*m7*m10;
+        final float i4 = -m4*m10*m15 + m4*m11*m14 + m8*m6*m15 - m8*m7*m14 - m12*m6*m11 + m12*m7*m10;
+        final float i8 = m4*m9*m15 - m4*m11*m13 - m8*m5*m15 + m8*m7*m13 + m12*m5*m11 - m12*m7*m9;
+        final float i12 = -m4*m9*m14 + m4*m10*m13 + m8*m5*m14 - m8*m6*m13 - m12*m5*m10 + m12*m6*m9;
+
+        final float det = (m0*i0 + m1*i4 + m2*i8 + m3*i12);
+        if (det == 0f)
+            return false;
+        final float id = (1f / det);
+
+        final float i1 = -m1*m10*m15 + m1*m11*m14 + m9*m2*m15 - m9*m3*m14 - m13*m2*m11 + m13*m3*m10;
+        final float i5 = m0*m10*m15 - m0*m11*m14 - m8*m2*m15 + m8*m3*m14 + m12*m2*m11 - m12*m3*m10;
+        final float i9 = -m0*m9*m15 + m0*m11*m13 + m8*m1*m15 - m8*m3*m13 - m12*m1*m11 + m12*m3*m9;
+        final float i13 = m0*m9*m14 - m0*m10*m13 - m8*m1*m14 + m8*m2*m13 + m12*m1*m10 - m12*m2*m9;
+        final float i2 = m1*m6*m15 - m1*m7*m14 - m5*m2*m15 + m5*m3*m14 + m13*m2*m7 - m13*m3*m6;
+        final float i6 = -m0*m6*m15 + m0*m7*m14 + m4*m2*m15 - m4*m3*m14 - m12*m2*m7 + m12*m3*m6;
+        final float i10 = m0*m5*m15 - m0*m7*m13 - m4*m1*m15 + m4*m3*m13 + m12*m1*m7 - m12*m3*m5;
+        final float i14 = -m0*m5*m14 + m0*m6*m13 + m4*m1*m14 - m4*m2*m13 - m12*m1*m6 + m12*m2*m5;
+        final float i3 = -m1*m6*m11 + m1*m7*m10 + m5*m2*m11 - m5*m3*m10 - m9*m2*m7 + m9*m3*m6;
+        final float i7 = m0*m6*m11 - m0*m7*m10 - m4*m2*m11 + m4*m3*m10 + m8*m2*m7 - m8*m3*m6;
+        final float i11 = -m0*m5*m11 + m0*m7*m9 + m4*m1*m11 - m4*m3*m9 - m8*m1*m7 + m8*m3*m5;
+        final float i15 = m0*m5*m10 - m0*m6*m9 - m4*m1*m10 + m4*m2*m9 + m8*m1*m6 - m8*m2*m5;
+
+        inv[invOffset   ] = i0*id;  inv[invOffset+1 ] = i1*id;  inv[invOffset+2 ] = i2*id;  inv[invOffset+3 ] = i3*id;
+        inv[invOffset+4 ] = i4*id;  inv[invOffset+5 ] = i5*id;  inv[invOffset+6 ] = i6*id;  inv[invOffset+7 ] = i7*id;
+        inv[invOffset+8 ] = i8*id;  inv[invOffset+9 ] = i9*id;  inv[invOffset+10] = i10*id; inv[invOffset+11] = i11*id;
+        inv[invOffset+12] = i12*id; inv[invOffset+13] = i13*id; inv[invOffset+14] = i14*id; inv[invOffset+15] = i15*id;
+        return true;
+    }
+}
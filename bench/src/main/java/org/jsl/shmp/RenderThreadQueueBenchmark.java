@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Render thread queue with the GL thread replaced by the consumer
+ * benchmark thread: producers play the role of the collider and UI threads
+ * posting updates, consumer runs the queue whenever it was scheduled.
+ * Producer throughput is the number to look at, consumer just spins.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderThreadQueueBenchmark
+{
+    private static class Update extends RenderThreadRunnable
+    {
+        private final RenderThreadQueueBenchmark m_benchmark;
+
+        public Update(RenderThreadQueueBenchmark benchmark)
+        {
+            m_benchmark = benchmark;
+        }
+
+        public boolean runOnRenderThread(int frameId)
+        {
+            m_benchmark.m_executed++;
+            return false;
+        }
+    }
+
+    private final AtomicBoolean m_scheduled = new AtomicBoolean();
+    private long m_executed; /* consumer thread */
+    private long m_frames;   /* consumer thread */
+
+    private final RenderThreadQueue m_queue = new RenderThreadQueue() {
+        protected void schedule() {
+            m_scheduled.set(true);
+        }
+
+        protected void requestRender() {
+            m_frames++;
+        }
+    };
+
+    private void consume()
+    {
+        if (m_scheduled.get() && m_scheduled.compareAndSet(true, false))
+            m_queue.process();
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public void uncontendedExecute()
+    {
+        m_queue.execute(new Update(this));
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public void uncontendedProcess()
+    {
+        consume();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedExecute()
+    {
+        m_queue.execute(new Update(this));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedProcess()
+    {
+        consume();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Per frame cost of the cup transforms: TransformStore against
+ * the per object instance arrays copied to the batch one by one,
+ * and against the per cup model matrices used before the batched draw
+ * (translate/scale/multiplyMM/invertM on move, then MVP, eye and light
+ * in the model space and shadow matrix for each visible cup every frame).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransformStoreBenchmark
+{
+    @Param({"6", "64", "1024"})
+    public int objects;
+
+    private TransformStore m_store;
+    private float [][] m_instance;
+    private boolean [] m_visible;
+    private float [] m_batch;
+    private float [][] m_matrix;
+    private final float [] m_vpMatrix = new float[16];
+    private final float [] m_shadowMatrix = new float[16];
+    private final float [] m_eyeLight = new float[8];
+    private final float [] m_tmp = new float[48];
+    private float m_x;
+
+    @Setup
+    public void setup()
+    {
+        m_store = new TransformStore(objects);
+        m_instance = new float[objects][CupMesh.INSTANCE_SIZE];
+        m_visible = new boolean[objects];
+        m_batch = new float[objects * CupMesh.INSTANCE_SIZE];
+        m_matrix = new float[objects][32];
+
+        GLMatrix.setIdentityM(m_vpMatrix, 0);
+        GLMatrix.scaleM(m_vpMatrix, 0, 0.01f, 0.01f, 0.01f);
+        GLMatrix.setIdentityM(m_shadowMatrix, 0);
+        GLMatrix.scaleM(m_shadowMatrix, 0, 0.02f, 0.02f, 0.02f);
+        Vector.set(m_eyeLight, 0, 0f, -500f, 800f, 1f);
+        Vector.set(m_eyeLight, 4, 100f, 100f, 1000f, 1f);
+
+        for (int idx=0; idx<objects; idx++)
+        {
+            /* Every fourth object is hidden */
+            final boolean visible = ((idx % 4) != 0);
+            m_store.set(idx, idx, idx, 0f, 1f);
+            m_store.setVisible(idx, visible);
+            m_instance[idx][0] = idx;
+            m_instance[idx][1] = idx;
+            m_instance[idx][3] = 1f;
+            m_visible[idx] = visible;
+            updateMatrix(m_matrix[idx], idx, idx, 0f, 1f);
+        }
+    }
+
+    @Benchmark
+    public int storeMoveAll()
+    {
+        final float x = (m_x += 0.5f);
+        for (int idx=0; idx<objects; idx++)
+            m_store.setTransform(idx, x, idx, 0f, 1f);
+        return m_store.pack();
+    }
+
+    @Benchmark
+    public int storeMoveOne()
+    {
+        m_store.setTransform(1, (m_x += 0.5f), 1f, 0f, 1f);
+        return m_store.pack();
+    }
+
+    @Benchmark
+    public int storeStatic()
+    {
+        return m_store.pack();
+    }
+
+    @Benchmark
+    public int perObjectMoveAll()
+    {
+        final float x = (m_x += 0.5f);
+        int count = 0;
+        for (int idx=0; idx<objects; idx++)
+        {
+            final float [] instance = m_instance[idx];
+            instance[0] = x;
+            instance[1] = idx;
+            instance[2] = 0f;
+            instance[3] = 1f;
+            if (m_visible[idx])
+            {
+                System.arraycopy(instance, 0, m_batch, count*CupMesh.INSTANCE_SIZE, CupMesh.INSTANCE_SIZE);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int perObjectStatic()
+    {
+        int count = 0;
+        for (int idx=0; idx<objects; idx++)
+        {
+            if (m_visible[idx])
+            {
+                System.arraycopy(m_instance[idx], 0, m_batch, count*CupMesh.INSTANCE_SIZE, CupMesh.INSTANCE_SIZE);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void updateMatrix(float [] matrix, float x, float y, float z, float scale)
+    {
+        final float [] tmp = m_tmp;
+        GLMatrix.setIdentityM(tmp, 0);
+        GLMatrix.translateM(tmp, 0, x, y, z);
+        GLMatrix.setIdentityM(tmp, 16);
+        GLMatrix.scaleM(tmp, 16, scale, scale, scale);
+        GLMatrix.multiplyMM(matrix, 0, tmp, 0, tmp, 16);
+        GLMatrix.invertM(matrix, 16, matrix, 0);
+    }
+
+    private int drawMatrices()
+    {
+        final float [] tmp = m_tmp;
+        int count = 0;
+        for (int idx=0; idx<objects; idx++)
+        {
+            if (m_visible[idx])
+            {
+                final float [] matrix = m_matrix[idx];
+                GLMatrix.multiplyMM(tmp, 0, m_vpMatrix, 0, matrix, 0);
+                GLMatrix.multiplyMV(tmp, 16, matrix, 16, m_eyeLight, 0);
+                GLMatrix.multiplyMV(tmp, 20, matrix, 16, m_eyeLight, 4);
+                GLMatrix.multiplyMM(tmp, 32, m_shadowMatrix, 0, matrix, 0);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int perCupMatrixMoveAll()
+    {
+        final float x = (m_x += 0.5f);
+        for (int idx=0; idx<objects; idx++)
+            updateMatrix(m_matrix[idx], x, idx, 0f, 1f);
+        return drawMatrices();
+    }
+
+    @Benchmark
+    public int perCupMatrixStatic()
+    {
+        return drawMatrices();
+    }
+}
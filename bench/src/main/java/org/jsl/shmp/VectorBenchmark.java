@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VectorBenchmark
+{
+    private final float [] m_v = new float[12];
+
+    @Setup
+    public void setup()
+    {
+        Vector.set(m_v, 0, 1f, 2f, 3f);
+        Vector.set(m_v, 4, -3f, 0.5f, 2f);
+    }
+
+    @Benchmark
+    public float [] crossProduct()
+    {
+        Vector.crossProduct(m_v, 8, m_v, 0, m_v, 4);
+        return m_v;
+    }
+
+    @Benchmark
+    public float length()
+    {
+        return Vector.length(m_v, 4);
+    }
+
+    @Benchmark
+    public float [] normalize()
+    {
+        Vector.set(m_v, 8, 1f, 2f, 3f);
+        Vector.normalize(m_v, 8);
+        return m_v;
+    }
+
+    @Benchmark
+    public float [] rotateAroundZ()
+    {
+        Vector.rotateAroundZ(m_v, 0, 0.7071068f, 0.7071068f);
+        return m_v;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package android.util;
+
+/* Stand-in for the Android logger,
+ * lets the application classes run on a plain JVM.
+ */
+public final class Log
+{
+    private Log()
+    {
+    }
+
+    private static int print(String level, String tag, String msg)
+    {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int d(String tag, String msg)
+    {
+        return print("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg)
+    {
+        return print("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg)
+    {
+        return print("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg)
+    {
+        return print("E", tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr)
+    {
+        return print("E", tag, msg + ": " + tr);
+    }
+}
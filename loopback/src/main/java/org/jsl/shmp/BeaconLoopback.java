@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.jsl.collider.Collider;
+import org.jsl.collider.TimerQueue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/* Runs BeaconSender and BeaconListener against each other over
+ * the multicast group on this host and checks the listener events:
+ * game found, switched to spectators only, stopped, expired.
+ * Exits with status 1 if some check fails.
+ */
+public class BeaconLoopback
+{
+    private static final long EVENT_TIMEOUT = 6000; /* milliseconds, more than the expire time */
+
+    private static class Event
+    {
+        public final boolean found;
+        public final Beacon beacon;
+        public final InetSocketAddress addr;
+
+        public Event(boolean found, Beacon beacon, InetSocketAddress addr)
+        {
+            this.found = found;
+            this.beacon = beacon;
+            this.addr = addr;
+        }
+    }
+
+    private final LinkedBlockingQueue<Event> m_events = new LinkedBlockingQueue<Event>();
+    private final String m_deviceId = ("loopback-" + System.nanoTime());
+    private int m_failures;
+
+    private void check(String what, boolean ok)
+    {
+        System.out.println((ok ? "PASS " : "FAIL ") + what);
+        if (!ok)
+            m_failures++;
+    }
+
+    /* Skips events of other games running in the LAN */
+    private Event nextEvent() throws InterruptedException
+    {
+        final long deadline = (System.currentTimeMillis() + EVENT_TIMEOUT);
+        for (;;)
+        {
+            final long timeout = (deadline - System.currentTimeMillis());
+            if (timeout <= 0)
+                return null;
+            final Event event = m_events.poll(timeout, TimeUnit.MILLISECONDS);
+            if ((event == null) || event.beacon.deviceId.equals(m_deviceId))
+                return event;
+        }
+    }
+
+    private Beacon createBeacon(int port, int freeSlots, int spectatorSlots)
+    {
+        /* Non ASCII player name checks the string encoding */
+        return new Beacon(Protocol.VERSION, m_deviceId, "Loopback \u0418\u0433\u0440\u043e\u043a",
+                port, (short) freeSlots, (short) spectatorSlots);
+    }
+
+    private int run() throws IOException, InterruptedException
+    {
+        final Collider.Config colliderConfig = new Collider.Config();
+        colliderConfig.byteOrder = Protocol.BYTE_ORDER;
+        final Collider collider = Collider.create(colliderConfig);
+        final Thread colliderThread = new Thread("Collider") {
+            public void run() {
+                collider.run();
+            }
+        };
+        colliderThread.start();
+        final TimerQueue timerQueue = new TimerQueue(collider.getThreadPool());
+
+        final InetAddress group = InetAddress.getByName(Beacon.GROUP);
+        final BeaconListener listener = new BeaconListener(group, Beacon.PORT, new BeaconListener.Listener() {
+            public void onGameFound(Beacon beacon, InetSocketAddress addr) {
+                m_events.add(new Event(true, beacon, addr));
+            }
+            public void onGameLost(Beacon beacon) {
+                m_events.add(new Event(false, beacon, null));
+            }
+        });
+        listener.start();
+
+        try
+        {
+            /* Game waiting for the client */
+            final Beacon beacon = createBeacon(12345, 1, 2);
+            BeaconSender sender = new BeaconSender(group, Beacon.PORT, beacon);
+            timerQueue.schedule(sender, 0, TimeUnit.MILLISECONDS);
+
+            Event event = nextEvent();
+            check("game found", (event != null) && event.found);
+            if (event != null)
+            {
+                check("player name", event.beacon.playerName.equals(beacon.playerName));
+                check("port", (event.addr != null) && (event.addr.getPort() == beacon.port));
+                check("free slots", (event.beacon.freeSlots == 1) && (event.beacon.spectatorSlots == 2));
+            }
+
+            /* Game started, can be watched only */
+            sender.setBeacon(createBeacon(12345, 0, 2));
+            event = nextEvent();
+            check("open game lost when started", (event != null) && !event.found && (event.beacon.freeSlots > 0));
+            event = nextEvent();
+            check("started game found", (event != null) && event.found && (event.beacon.freeSlots == 0));
+
+            /* Stop beacon removes the game at once */
+            final long stopTime = System.currentTimeMillis();
+            sender.stop(timerQueue);
+            event = nextEvent();
+            check("game lost on stop", (event != null) && !event.found);
+            check("stop is not waiting for expiration",
+                    (System.currentTimeMillis() - stopTime) < Beacon.INTERVAL);
+
+            /* Sender gone without the stop beacon, game expires */
+            sender = new BeaconSender(group, Beacon.PORT, beacon);
+            timerQueue.schedule(sender, 0, TimeUnit.MILLISECONDS);
+            event = nextEvent();
+            check("game found again", (event != null) && event.found);
+            timerQueue.cancel(sender);
+            event = nextEvent();
+            check("game expired", (event != null) && !event.found);
+            sender.stop(timerQueue);
+        }
+        finally
+        {
+            listener.stop();
+            collider.stop();
+            colliderThread.join();
+        }
+
+        System.out.println((m_failures == 0) ? "OK" : (m_failures + " check(s) failed"));
+        return m_failures;
+    }
+
+    public static void main(String [] args) throws Exception
+    {
+        final int failures = new BeaconLoopback().run();
+        System.exit((failures == 0) ? 0 : 1);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Prepares CPU side of the game assets (shader sources, meshes, glyph images)
+ * on the background threads while activity and GL surface are being created,
+ * so the render thread has only to upload them to the GPU.
+ * Failures are not fatal, the render thread prepares the asset itself then.
+ */
+class AssetLoader
+{
+    private static final String LOG_TAG = AssetLoader.class.getSimpleName();
+
+    private static final int THREADS = 2;
+    private static final String GLYPHS =
+            " !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~";
+
+    private static final int [][] SHADERS =
+    {
+        { R.raw.sprite_vs, R.raw.sprite_fs },
+        { R.raw.solid_line_vs, R.raw.solid_line_fs },
+        { R.raw.text_vs, R.raw.text_fs },
+        { R.raw.ball_vs, R.raw.ball_fs },
+        { R.raw.ball_shadow_vs, R.raw.ball_shadow_fs },
+        { R.raw.cup_shadow_vs, R.raw.shadow_fs }
+    };
+
+    /* Table and cup shaders are used with and without shadows */
+    private static final int [][] SHADOW_SHADERS =
+    {
+        { R.raw.table_vs, R.raw.table_fs },
+        { R.raw.cup_vs, R.raw.cup_fs }
+    };
+
+    private final Context m_context;
+    private final ExecutorService m_executor;
+
+    private class ShaderLoader implements Runnable
+    {
+        private final int [][] m_shaders;
+        private final Set<String> m_macro;
+
+        public ShaderLoader(int [][] shaders, Set<String> macro)
+        {
+            m_shaders = shaders;
+            m_macro = macro;
+        }
+
+        public void run()
+        {
+            try
+            {
+                for (int [] shader : m_shaders)
+                {
+                    for (int resourceId : shader)
+                        Canvas3D.getShaderSource(m_context, resourceId, m_macro);
+                }
+            }
+            catch (final IOException ex)
+            {
+                Log.w(LOG_TAG, ex.toString());
+            }
+        }
+    }
+
+    public AssetLoader(Context context)
+    {
+        m_context = context.getApplicationContext();
+        m_executor = Executors.newFixedThreadPool(THREADS);
+
+        final HashSet<String> shadowMacro = new HashSet<String>();
+        shadowMacro.add("RENDER_SHADOWS");
+
+        m_executor.execute(new ShaderLoader(SHADERS, null));
+        m_executor.execute(new ShaderLoader(SHADOW_SHADERS, null));
+        m_executor.execute(new ShaderLoader(SHADOW_SHADERS, shadowMacro));
+
+        m_executor.execute(new Runnable() {
+            public void run() {
+                ModelCup.prepare(GameView.CUP_STRIPES);
+            }
+        });
+
+        m_executor.execute(new Runnable() {
+            public void run() {
+                Canvas3D.prepareGlyphs(GLYPHS);
+            }
+        });
+    }
+
+    /* Runs an additional loading task in parallel with the others */
+    public void execute(Runnable runnable)
+    {
+        m_executor.execute(runnable);
+    }
+
+    /* Does not wait for the started tasks,
+     * they complete in background and threads exit then.
+     */
+    public void stop()
+    {
+        m_executor.shutdown();
+    }
+}
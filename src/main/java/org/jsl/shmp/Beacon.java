@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/* Game announcement multicast by the server over the LAN,
+ * low latency alternative to the NSD discovery.
+ * Datagram format (Protocol.BYTE_ORDER):
+ *   int   : magic
+ *   short : protocol version
+ *   short : game port (unsigned)
+ *   short : free slots
+ *   short : device id length, device id (UTF-8)
+ *   short : player name length, player name (UTF-8)
+ *   short : spectator slots (optional, 0 if missing)
+ */
+class Beacon
+{
+    public static final String GROUP = "239.255.83.77";
+    public static final int PORT = 47311;
+    public static final int MAX_SIZE = 512;
+    public static final long INTERVAL = 1000; /* milliseconds */
+
+    private static final int MAGIC = 0x53484D50; /* "SHMP" */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public final short protocolVersion;
+    public final String deviceId;
+    public final String playerName;
+    public final int port;
+    public final short freeSlots;
+    public final short spectatorSlots;
+
+    public Beacon(short protocolVersion, String deviceId, String playerName, int port, short freeSlots, short spectatorSlots)
+    {
+        this.protocolVersion = protocolVersion;
+        this.deviceId = deviceId;
+        this.playerName = playerName;
+        this.port = port;
+        this.freeSlots = freeSlots;
+        this.spectatorSlots = spectatorSlots;
+    }
+
+    public byte [] encode()
+    {
+        final byte [] deviceIdBytes = deviceId.getBytes(CHARSET);
+        final byte [] playerNameBytes = playerName.getBytes(CHARSET);
+        final int size = (Integer.SIZE/Byte.SIZE) + (Short.SIZE/Byte.SIZE)*6 + deviceIdBytes.length + playerNameBytes.length;
+        if (size > MAX_SIZE)
+            throw new IllegalArgumentException("beacon size " + size);
+
+        final byte [] data = new byte[size];
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.order(Protocol.BYTE_ORDER);
+        buf.putInt(MAGIC);
+        buf.putShort(protocolVersion);
+        buf.putShort((short) port);
+        buf.putShort(freeSlots);
+        buf.putShort((short) deviceIdBytes.length);
+        buf.put(deviceIdBytes);
+        buf.putShort((short) playerNameBytes.length);
+        buf.put(playerNameBytes);
+        buf.putShort(spectatorSlots);
+        return data;
+    }
+
+    /* Returns null if data is not a valid beacon */
+    public static Beacon decode(byte [] data, int offset, int length)
+    {
+        final ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+        buf.order(Protocol.BYTE_ORDER);
+        try
+        {
+            if (buf.getInt() != MAGIC)
+                return null;
+            final short protocolVersion = buf.getShort();
+            final int port = (buf.getShort() & 0xFFFF);
+            final short freeSlots = buf.getShort();
+            final String deviceId = getString(buf);
+            final String playerName = getString(buf);
+            if ((deviceId == null) || (playerName == null))
+                return null;
+            final short spectatorSlots = (buf.remaining() >= (Short.SIZE/Byte.SIZE)) ? buf.getShort() : 0;
+            return new Beacon(protocolVersion, deviceId, playerName, port, freeSlots, spectatorSlots);
+        }
+        catch (final BufferUnderflowException ex)
+        {
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer buf)
+    {
+        final int length = buf.getShort();
+        if ((length < 0) || (length > buf.remaining()))
+            return null;
+        final String str = new String(buf.array(), buf.arrayOffset() + buf.position(), length, CHARSET);
+        buf.position(buf.position() + length);
+        return str;
+    }
+}
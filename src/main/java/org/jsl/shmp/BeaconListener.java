@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/* Receives game beacons on its own thread,
+ * reports each game once by device id and
+ * reports it lost when the beacons stop coming.
+ */
+class BeaconListener
+{
+    private static final String LOG_TAG = BeaconListener.class.getSimpleName();
+
+    private static final int RECEIVE_TIMEOUT = 500; /* milliseconds */
+    private static final long EXPIRE_TIME = (Beacon.INTERVAL * 3 + RECEIVE_TIMEOUT);
+
+    public interface Listener
+    {
+        void onGameFound(Beacon beacon, InetSocketAddress addr);
+        void onGameLost(Beacon beacon);
+    }
+
+    private static class GameEntry
+    {
+        public final Beacon beacon;
+        public final InetSocketAddress addr;
+        public long lastSeen;
+
+        public GameEntry(Beacon beacon, InetSocketAddress addr, long lastSeen)
+        {
+            this.beacon = beacon;
+            this.addr = addr;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final MulticastSocket m_socket;
+    private final InetAddress m_group;
+    private final Listener m_listener;
+    private final Thread m_thread;
+    private final HashMap<String, GameEntry> m_games; /* listener thread */
+    private volatile boolean m_stop;
+
+    public BeaconListener(InetAddress group, int port, Listener listener) throws IOException
+    {
+        m_socket = new MulticastSocket(port);
+        m_socket.setSoTimeout(RECEIVE_TIMEOUT);
+        m_socket.joinGroup(group);
+        m_group = group;
+        m_listener = listener;
+        m_games = new HashMap<String, GameEntry>();
+        m_thread = new Thread("BeaconListener") {
+            public void run() {
+                receiveLoop();
+            }
+        };
+    }
+
+    private void receiveLoop()
+    {
+        final byte [] data = new byte[Beacon.MAX_SIZE];
+        final DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!m_stop)
+        {
+            try
+            {
+                packet.setLength(data.length);
+                m_socket.receive(packet);
+                final Beacon beacon = Beacon.decode(data, packet.getOffset(), packet.getLength());
+                if ((beacon != null) && (beacon.protocolVersion == Protocol.VERSION))
+                    onBeacon(beacon, new InetSocketAddress(packet.getAddress(), beacon.port));
+            }
+            catch (final SocketTimeoutException ex)
+            {
+                /* Check expiration */
+            }
+            catch (final IOException ex)
+            {
+                if (!m_stop)
+                    Log.w(LOG_TAG, ex.toString());
+                break;
+            }
+            expire(System.currentTimeMillis());
+        }
+    }
+
+    private void onBeacon(Beacon beacon, InetSocketAddress addr)
+    {
+        final GameEntry entry = m_games.get(beacon.deviceId);
+        if ((beacon.freeSlots <= 0) && (beacon.spectatorSlots <= 0))
+        {
+            if (entry != null)
+            {
+                m_games.remove(beacon.deviceId);
+                m_listener.onGameLost(entry.beacon);
+            }
+        }
+        else if ((entry == null) ||
+                 !entry.addr.equals(addr) ||
+                 !entry.beacon.playerName.equals(beacon.playerName) ||
+                 ((entry.beacon.freeSlots > 0) != (beacon.freeSlots > 0)))
+        {
+            if (entry != null)
+                m_listener.onGameLost(entry.beacon);
+            m_games.put(beacon.deviceId, new GameEntry(beacon, addr, System.currentTimeMillis()));
+            m_listener.onGameFound(beacon, addr);
+        }
+        else
+            entry.lastSeen = System.currentTimeMillis();
+    }
+
+    private void expire(long currentTime)
+    {
+        final Iterator<GameEntry> it = m_games.values().iterator();
+        while (it.hasNext())
+        {
+            final GameEntry entry = it.next();
+            if ((currentTime - entry.lastSeen) > EXPIRE_TIME)
+            {
+                it.remove();
+                m_listener.onGameLost(entry.beacon);
+            }
+        }
+    }
+
+    public void start()
+    {
+        m_thread.start();
+    }
+
+    public void stop() throws InterruptedException
+    {
+        m_stop = true;
+        try
+        {
+            m_socket.leaveGroup(m_group);
+        }
+        catch (final IOException ex)
+        {
+            Log.d(LOG_TAG, ex.toString());
+        }
+        m_socket.close();
+        m_thread.join();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.util.Log;
+import org.jsl.collider.TimerQueue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+/* Multicasts the game beacon every Beacon.INTERVAL
+ * while the server is waiting for a client or spectators,
+ * runs as a timer task in the collider thread pool.
+ */
+class BeaconSender implements TimerQueue.Task
+{
+    private static final String LOG_TAG = BeaconSender.class.getSimpleName();
+
+    private final MulticastSocket m_socket;
+    private final InetAddress m_group;
+    private final int m_groupPort;
+    private volatile Beacon m_beacon;
+    private volatile byte [] m_data;
+    private volatile boolean m_stop;
+
+    public BeaconSender(InetAddress group, int groupPort, Beacon beacon) throws IOException
+    {
+        m_socket = new MulticastSocket();
+        m_socket.setTimeToLive(1); /* LAN only */
+        m_socket.setLoopbackMode(false); /* false enables loopback, so it works on one device */
+        m_group = group;
+        m_groupPort = groupPort;
+        m_beacon = beacon;
+        m_data = beacon.encode();
+    }
+
+    private void send(byte [] data)
+    {
+        try
+        {
+            m_socket.send(new DatagramPacket(data, data.length, m_group, m_groupPort));
+        }
+        catch (final IOException ex)
+        {
+            /* Network can be temporary unavailable, try next time */
+            Log.d(LOG_TAG, ex.toString());
+        }
+    }
+
+    /* New beacon is sent since the next interval */
+    public void setBeacon(Beacon beacon)
+    {
+        m_data = beacon.encode();
+        m_beacon = beacon;
+    }
+
+    public long run()
+    {
+        if (m_stop)
+            return 0;
+        send(m_data);
+        return Beacon.INTERVAL;
+    }
+
+    /* Tells the listeners the game is not available any more */
+    public void stop(TimerQueue timerQueue) throws InterruptedException
+    {
+        m_stop = true;
+        try
+        {
+            timerQueue.cancel(this);
+            final Beacon beacon = new Beacon(
+                    m_beacon.protocolVersion, m_beacon.deviceId, m_beacon.playerName, m_beacon.port, (short) 0, (short) 0);
+            send(beacon.encode());
+        }
+        finally
+        {
+            m_socket.close();
+        }
+    }
+}
@@ -23,15 +23,22 @@ import android.graphics.*;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.util.Log;
+import android.util.SparseArray;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 public class Canvas3D
 {
+    private static final String LOG_TAG = Canvas3D.class.getSimpleName();
+
     public static final float [] s_identityMatrix = createIdentityMatrix();
 
     public enum Align
@@ -63,35 +70,31 @@ public class Canvas3D
         return matrix;
     }
 
+    /* Programs are never deleted, so they are shared by all users
+     * while the EGL context is alive, should be used on the render thread only.
+     */
+    private static final HashMap<String, Integer> s_programs = new HashMap<String, Integer>();
+
+    /* Shader sources with macro definitions by (resource, macro set) */
+    private static final HashMap<String, String> s_shaderSources = new HashMap<String, String>();
+    private static int s_programsContextId = -1;
+
     private final SpriteDrawer m_spriteDrawer;
     private final LinesDrawer m_linesDrawer;
     private final TextDrawer m_textDrawer;
 
-    private static String loadRawResource(Context context, int resourceId, Set<String> macro) throws IOException
+    private static String loadRawResource(Context context, int resourceId) throws IOException
     {
         final StringBuilder sb = new StringBuilder();
-        BufferedReader reader = null;
+        Reader reader = null;
         try
         {
             final InputStream inputStream = context.getResources().openRawResource(resourceId);
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            if (macro != null)
-            {
-                for(String s : macro)
-                {
-                    sb.append("#define ");
-                    sb.append(s);
-                    sb.append(" 1\r\n");
-                }
-            }
-
-            String line;
-            while ((line = reader.readLine()) != null)
-            {
-                sb.append(line);
-                sb.append("\r\n");
-            }
+            reader = new InputStreamReader(inputStream);
+            final char [] buf = new char[1024];
+            int bytesRead;
+            while ((bytesRead = reader.read(buf)) > 0)
+                sb.append(buf, 0, bytesRead);
         }
         finally
         {
@@ -101,9 +104,43 @@ public class Canvas3D
         return sb.toString();
     }
 
+    /* Returns the shader source with macro definitions,
+     * each (resource, macro set) variant is prepared once per process.
+     * Could be called from any thread.
+     */
+    public static String getShaderSource(Context context, int resourceId, Set<String> macro) throws IOException
+    {
+        final String key = getVariantKey(resourceId, macro);
+        synchronized (s_shaderSources)
+        {
+            final String source = s_shaderSources.get(key);
+            if (source != null)
+                return source;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        if (macro != null)
+        {
+            for (String s : macro)
+            {
+                sb.append("#define ");
+                sb.append(s);
+                sb.append(" 1\r\n");
+            }
+        }
+        sb.append(loadRawResource(context, resourceId));
+        final String source = sb.toString();
+
+        synchronized (s_shaderSources)
+        {
+            s_shaderSources.put(key, source);
+        }
+        return source;
+    }
+
     public static int createShader(Context context, int resourceId, int shaderType, Set<String> macro) throws IOException
     {
-        final String shaderCode = loadRawResource(context, resourceId, macro);
+        final String shaderCode = getShaderSource(context, resourceId, macro);
         final int shaderId = GLES20.glCreateShader(shaderType);
         GLES20.glShaderSource(shaderId, shaderCode);
         GLES20.glCompileShader(shaderId);
@@ -118,15 +155,55 @@ public class Canvas3D
         return shaderId;
     }
 
+    private static String getVariantKey(int resourceId, Set<String> macro)
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(resourceId);
+        if (macro != null)
+        {
+            for (String s : new TreeSet<String>(macro))
+            {
+                sb.append(':');
+                sb.append(s);
+            }
+        }
+        return sb.toString();
+    }
+
+    /* Returns program already created in the current EGL context
+     * for the same shaders and macro set, or creates a new one,
+     * from the program binary cache if possible.
+     */
     public static int createProgram(
             Context context, int vertexShaderResourceId, int fragmentShaderResourceId, Set<String> macro) throws IOException
     {
+        final int contextId = VertexBuffer.getContextId();
+        if (s_programsContextId != contextId)
+        {
+            /* Programs of the lost context do not exist any more */
+            s_programs.clear();
+            s_programsContextId = contextId;
+        }
+
+        final String key = (vertexShaderResourceId + ":" + getVariantKey(fragmentShaderResourceId, macro));
+        final Integer cachedProgramId = s_programs.get(key);
+        if (cachedProgramId != null)
+            return cachedProgramId;
+
+        int programId = ProgramBinaryCache.load(context, key);
+        if (programId != 0)
+        {
+            s_programs.put(key, programId);
+            return programId;
+        }
+
         final int vertexShaderId = createShader(context, vertexShaderResourceId, GLES20.GL_VERTEX_SHADER, macro);
         final int fragmentShaderId = createShader(context, fragmentShaderResourceId, GLES20.GL_FRAGMENT_SHADER, macro);
 
-        final int programId = GLES20.glCreateProgram();
+        programId = GLES20.glCreateProgram();
         GLES20.glAttachShader( programId, vertexShaderId );
         GLES20.glAttachShader( programId, fragmentShaderId );
+        ProgramBinaryCache.prepare(context, programId);
         GLES20.glLinkProgram( programId );
 
         final int [] linkStatus = new int[1];
@@ -138,13 +215,15 @@ public class Canvas3D
             throw new IOException( infoString );
         }
 
+        ProgramBinaryCache.store(context, key, programId);
+        s_programs.put(key, programId);
         return programId;
     }
 
     public static class Sprite
     {
         private final int m_textureId;
-        private final FloatBuffer m_vertexData;
+        private final VertexBuffer m_vertexBuffer;
         private boolean m_hasAlpha;
 
         public float x;
@@ -159,10 +238,7 @@ public class Canvas3D
                 throw new IOException( "glGenTextures() failed" );
             m_textureId = textureId[0];
 
-            final int bufferCapacity = (Float.SIZE/Byte.SIZE) * (3 * 4);
-            final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bufferCapacity);
-            byteBuffer.order(ByteOrder.nativeOrder());
-            m_vertexData = byteBuffer.asFloatBuffer();
+            m_vertexBuffer = new VertexBuffer(2 * 4, GLES20.GL_STATIC_DRAW);
         }
 
         public void setBitmap(Bitmap bitmap)
@@ -173,17 +249,19 @@ public class Canvas3D
             {
                 final int right = (width - 1);
                 final int bottom = -(height - 1);
-                m_vertexData.position(0);
-                m_vertexData.put(0f);
-                m_vertexData.put(bottom);
-                m_vertexData.put(0f);
-                m_vertexData.put(0f);
-                m_vertexData.put(right);
-                m_vertexData.put(bottom);
-                m_vertexData.put(right);
-                m_vertexData.put(0f);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, m_textureId);
+                final FloatBuffer vertexData = m_vertexBuffer.getData();
+                vertexData.position(0);
+                vertexData.put(0f);
+                vertexData.put(bottom);
+                vertexData.put(0f);
+                vertexData.put(0f);
+                vertexData.put(right);
+                vertexData.put(bottom);
+                vertexData.put(right);
+                vertexData.put(0f);
+                m_vertexBuffer.setDirty();
+
+                GLState.bindTexture(0, m_textureId);
 
                 GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
                 GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
@@ -193,8 +271,6 @@ public class Canvas3D
                     GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, bitmap, 0);
                 else
                     GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
             }
             else
                 throw new AssertionError();
@@ -202,13 +278,52 @@ public class Canvas3D
 
         public void setCenterAt( float cx, float cy )
         {
-            float width = (m_vertexData.get(6) + 1);
-            float height = (-m_vertexData.get(4) + 1);
+            final FloatBuffer vertexData = m_vertexBuffer.getData();
+            float width = (vertexData.get(6) + 1);
+            float height = (-vertexData.get(4) + 1);
             x = (cx - (width / 2));
             y = (cy + (height / 2));
         }
     }
 
+    /* Text changing often (ping time for example), laid out into
+     * the own fixed size vertex buffer on each change instead of
+     * going through the text drawer layout cache. Render thread only.
+     */
+    public static class DynamicText
+    {
+        private final int m_maxLength;
+        private final float m_textSize;
+        private final Align m_align;
+        private final VerticalAlign m_valign;
+        private final VertexBuffer m_vertexBuffer;
+        private String m_str;
+        private TextDrawer.Layout m_layout;
+
+        public DynamicText(int maxLength, float textSize, Align align, VerticalAlign valign)
+        {
+            m_maxLength = maxLength;
+            m_textSize = textSize;
+            m_align = align;
+            m_valign = valign;
+            /* Each character is drawn with 2 triangles */
+            m_vertexBuffer = new VertexBuffer(maxLength * (3 * 2) * (2 + 2), GLES20.GL_DYNAMIC_DRAW);
+            m_str = "";
+        }
+
+        /* Text longer than maxLength is truncated */
+        public void setText(String str)
+        {
+            if (str.length() > m_maxLength)
+                str = str.substring(0, m_maxLength);
+            if (!str.equals(m_str))
+            {
+                m_str = str;
+                m_layout = null;
+            }
+        }
+    }
+
     private static class SpriteDrawer
     {
         private static final String SV_MATRIX = "u_m4Matrix";
@@ -220,22 +335,11 @@ public class Canvas3D
         private final int m_positionLocation;
         private final int m_textureMapLocation;
         private final int m_textureUnitLocation;
-        private final FloatBuffer m_textureMap;
+        private final VertexBuffer m_textureMap;
 
         public SpriteDrawer(Context context) throws IOException
         {
-            final int vertexShaderId = createShader(context, R.raw.sprite_vs, GLES20.GL_VERTEX_SHADER, null);
-            final int fragmentShaderId = createShader(context, R.raw.sprite_fs, GLES20.GL_FRAGMENT_SHADER, null);
-
-            m_programId = GLES20.glCreateProgram();
-            GLES20.glAttachShader(m_programId, vertexShaderId);
-            GLES20.glAttachShader(m_programId, fragmentShaderId);
-            GLES20.glLinkProgram(m_programId);
-
-            final int [] linkStatus = new int[1];
-            GLES20.glGetProgramiv(m_programId, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0)
-                throw new IOException();
+            m_programId = createProgram(context, R.raw.sprite_vs, R.raw.sprite_fs, null);
 
             m_matrixLocation = GLES20.glGetUniformLocation(m_programId, SV_MATRIX);
             if (m_matrixLocation < 0)
@@ -257,48 +361,41 @@ public class Canvas3D
                 1f, 0f
             };
 
-            final int bufferCapacity = (Float.SIZE/Byte.SIZE) * textureMap.length;
-            final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bufferCapacity);
-            byteBuffer.order(ByteOrder.nativeOrder());
-            m_textureMap = byteBuffer.asFloatBuffer();
-            m_textureMap.put(textureMap);
-            m_textureMap.position(0);
+            m_textureMap = new VertexBuffer(textureMap, GLES20.GL_STATIC_DRAW);
         }
 
         public void draw(float [] vpMatrix, Sprite sprite)
         {
             if (sprite.m_hasAlpha)
             {
-                GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-                GLES20.glEnable(GLES20.GL_BLEND);
+                GLState.setBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+                GLState.setBlend(true);
             }
 
             Matrix.translateM(s_matrix, 16, s_identityMatrix, 0, sprite.x, sprite.y, sprite.z);
             Matrix.multiplyMM(s_matrix, 0, vpMatrix, 0, s_matrix, 16);
 
-            GLES20.glUseProgram(m_programId);
+            GLState.useProgram(m_programId, (1 << m_positionLocation) | (1 << m_textureMapLocation));
 
-            final FloatBuffer vertexData = sprite.m_vertexData;
-            vertexData.position(0);
-            GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, vertexData);
-            GLES20.glEnableVertexAttribArray(m_positionLocation);
+            if (!sprite.m_vertexBuffer.bind())
+                return;
+            GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
+            GLState.enableVertexAttribArray(m_positionLocation);
 
-            m_textureMap.position(0);
-            GLES20.glVertexAttribPointer(m_textureMapLocation, 2, GLES20.GL_FLOAT, false, 0, m_textureMap);
-            GLES20.glEnableVertexAttribArray(m_textureMapLocation);
+            if (!m_textureMap.bind())
+                return;
+            GLES20.glVertexAttribPointer(m_textureMapLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
+            GLState.enableVertexAttribArray(m_textureMapLocation);
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sprite.m_textureId);
+            GLState.bindTexture(0, sprite.m_textureId);
 
             GLES20.glUniform1i(m_textureUnitLocation, 0);
 
             GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, s_matrix, 0);
             GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-            GLES20.glUseProgram(0);
-
             if (sprite.m_hasAlpha)
-                GLES20.glDisable(GLES20.GL_BLEND);
+                GLState.setBlend(false);
         }
     }
 
@@ -311,18 +408,7 @@ public class Canvas3D
 
         public LinesDrawer( Context context ) throws IOException
         {
-            final int vertexShaderId = createShader(context, R.raw.solid_line_vs, GLES20.GL_VERTEX_SHADER, null);
-            final int fragmentShaderId = createShader(context, R.raw.solid_line_fs, GLES20.GL_FRAGMENT_SHADER, null);
-
-            m_programId = GLES20.glCreateProgram();
-            GLES20.glAttachShader(m_programId, vertexShaderId);
-            GLES20.glAttachShader(m_programId, fragmentShaderId);
-            GLES20.glLinkProgram(m_programId);
-
-            final int [] linkStatus = new int[1];
-            GLES20.glGetProgramiv(m_programId, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] == 0)
-                throw new IOException();
+            m_programId = createProgram(context, R.raw.solid_line_vs, R.raw.solid_line_fs, null);
 
             m_matrixLocation = GLES20.glGetUniformLocation(m_programId, "uMatrix");
             if (m_matrixLocation < 0)
@@ -337,11 +423,13 @@ public class Canvas3D
 
         public void draw( float [] mvpMatrix, int size, int count, FloatBuffer vertexData, int color )
         {
-            GLES20.glUseProgram( m_programId );
+            GLState.useProgram( m_programId, (1 << m_positionLocation) );
 
             GLES20.glUniformMatrix4fv( m_matrixLocation, 1, false, mvpMatrix, 0 );
 
-            GLES20.glEnableVertexAttribArray( m_positionLocation );
+            /* Vertex data is in the client memory */
+            VertexBuffer.unbind();
+            GLState.enableVertexAttribArray( m_positionLocation );
             GLES20.glVertexAttribPointer( m_positionLocation, size, GLES20.GL_FLOAT, false, /*stride*/0, vertexData );
 
             final float red = ((float)Color.red(color)) / 255f;
@@ -350,21 +438,38 @@ public class Canvas3D
             GLES20.glUniform4f( m_colorLocation, red, green, blue, 1.0f );
 
             GLES20.glDrawArrays( GLES20.GL_LINE_STRIP, 0, count );
-            GLES20.glUseProgram( 0 );
         }
     }
 
+    /* Text is drawn with glyphs from the signed distance field atlas:
+     * each glyph is rasterized once at SDF_FONT_SIZE into its own atlas cell
+     * and the distance to the glyph edge is kept in the alpha channel,
+     * so the same texture gives sharp text of any size.
+     * Glyphs are rasterized on demand, when the atlas is full
+     * the cell of the least recently used glyph is reused.
+     */
     private static class TextDrawer
     {
-        private static final int TT_ROWS = 10;
-        private static final int TT_COLUMNS = 10;
-        private static final float TT_SPACING = 0.2f;
-        private static final char TT_START_CHAR = ' ';
-
-        private final int m_textureHeight;
-        private final int m_textureWidth;
-        private final float m_spacing;
-        private final float [] m_glyphMap;
+        private static final int ATLAS_SIZE = 1024;
+        private static final int SDF_FONT_SIZE = 40;
+        private static final int SDF_SPREAD = 8; /* pixels */
+        private static final int SDF_INF = (1 << 14);
+        private static final char REPLACEMENT_CHAR = '#';
+        private static final int TT_CACHE_SIZE = 16;
+
+        private final GlyphImages m_glyphImages;
+        private final float m_lineHeight;
+        private final int m_cellSize;
+        private final int m_cellsPerRow;
+
+        private final SparseArray<Glyph> m_glyphs;
+        private final Glyph [] m_cellGlyph;
+        private int m_nextCell;
+        private int m_useStamp;
+        private int m_generation;
+
+        /* Rasterization buffers, reused for all glyphs */
+        private final ByteBuffer m_cellData;
 
         private final int m_programId;
         private final int m_matrixLocation;
@@ -372,81 +477,218 @@ public class Canvas3D
         private final int m_texCoordLocation;
         private final int m_texUnitLocation;
         private final int m_colorLocation;
+        private final int m_smoothingLocation;
         private final int m_textureId;
 
-        private FloatBuffer m_fb;
+        private final LayoutKey m_lookupKey;
+        private final LayoutCache m_layoutCache;
 
-        public TextDrawer(Context context, int textSize) throws IOException
+        /* Signed distance field images of the glyphs, each glyph is rendered
+         * once per process and shared by all text drawers.
+         * Thread safe, so glyphs can be prepared by a background thread.
+         */
+        private static class GlyphImages
         {
-            final Paint paint = new Paint();
-            paint.setColor(Color.WHITE);
-            paint.setTextSize(textSize);
-            paint.setTextAlign(Paint.Align.LEFT);
-
-            final float fontSpacing = paint.getFontSpacing();
-            final int [] glyphWidth = new int[128];
-            int textureWidth = 0;
-            final char [] ch = new char[1];
-            ch[0] = TT_START_CHAR;
-            for (int row=0; row<TT_ROWS; row++)
+            public static class Image
             {
-                int rowWidth = 0;
-                for (int col=0; col<TT_COLUMNS; col++)
+                public final byte [] data; /* cellSize x cellSize alpha */
+                public final float advance; /* at SDF_FONT_SIZE */
+
+                public Image(byte [] data, float advance)
                 {
-                    final int gw = (int) (paint.measureText(ch, 0, 1) + 0.5);
-                    glyphWidth[ch[0]] = gw;
-                    rowWidth += gw;
-                    if (++ch[0] == 128)
-                        break;
+                    this.data = data;
+                    this.advance = advance;
                 }
-                if (rowWidth > textureWidth)
-                    textureWidth = rowWidth;
-                if (ch[0] == 128)
-                    break;
             }
-            final int spacing = (int) (((float)textureWidth)/TT_COLUMNS*TT_SPACING + 0.5);
-            textureWidth += (spacing * TT_COLUMNS);
-
-            final int rowHeight = (int) (fontSpacing + 0.5);
-            m_textureHeight = (rowHeight * TT_ROWS);
-            m_textureWidth = textureWidth;
-            m_spacing = (((float)spacing) / textureWidth);
-            m_glyphMap = new float[(TT_COLUMNS+1) * TT_ROWS];
-
-            final Bitmap bitmap = Bitmap.createBitmap(m_textureWidth, m_textureHeight, Bitmap.Config.ARGB_8888);
-            final Canvas canvas = new Canvas(bitmap);
-            int idx = 0;
-            ch[0] = TT_START_CHAR;
-            float y = -paint.ascent();
-            loop: for (int row=0; row<TT_COLUMNS; row++)
+
+            private static GlyphImages s_instance;
+
+            public final float ascent;
+            public final float lineHeight;
+            public final int cellSize;
+
+            private final Paint m_paint;
+            private final Bitmap m_bitmap;
+            private final Canvas m_canvas;
+            private final char [] m_chars;
+            private final int [] m_pixels;
+            private final int [] m_inDX;
+            private final int [] m_inDY;
+            private final int [] m_outDX;
+            private final int [] m_outDY;
+            private final SparseArray<Image> m_images;
+
+            public static synchronized GlyphImages getInstance()
             {
-                float x = 0;
-                m_glyphMap[idx++] = 0f;
-                for (int col=0; col<TT_ROWS; col++)
+                if (s_instance == null)
+                    s_instance = new GlyphImages();
+                return s_instance;
+            }
+
+            private GlyphImages()
+            {
+                m_paint = new Paint();
+                m_paint.setAntiAlias(true);
+                m_paint.setColor(Color.WHITE);
+                m_paint.setTextSize(SDF_FONT_SIZE);
+                m_paint.setTextAlign(Paint.Align.LEFT);
+
+                ascent = m_paint.ascent();
+                lineHeight = m_paint.getFontSpacing();
+                cellSize = ((int) Math.ceil(lineHeight) + 2*SDF_SPREAD);
+
+                final int cellPixels = (cellSize * cellSize);
+                m_bitmap = Bitmap.createBitmap(cellSize, cellSize, Bitmap.Config.ALPHA_8);
+                m_canvas = new Canvas(m_bitmap);
+                m_chars = new char[1];
+                m_pixels = new int[cellPixels];
+                m_inDX = new int[cellPixels];
+                m_inDY = new int[cellPixels];
+                m_outDX = new int[cellPixels];
+                m_outDY = new int[cellPixels];
+                m_images = new SparseArray<Image>();
+            }
+
+            /* 8-points signed sequential Euclidean distance transform,
+             * (dx, dy) is a vector to the nearest seed point.
+             */
+            private static void edtCompare(int [] dx, int [] dy, int size, int x, int y, int ox, int oy)
+            {
+                final int nx = (x + ox);
+                final int ny = (y + oy);
+                if ((nx >= 0) && (nx < size) && (ny >= 0) && (ny < size))
                 {
-                    canvas.drawText(ch, 0, 1, x, y, paint);
-                    x += (glyphWidth[ch[0]] + spacing);
-                    m_glyphMap[idx++] = (x / textureWidth);
-                    if (++ch[0] == 128)
-                        break loop;
+                    final int p = (y * size + x);
+                    final int n = (ny * size + nx);
+                    final int cx = (dx[n] + ox);
+                    final int cy = (dy[n] + oy);
+                    if ((cx*cx + cy*cy) < (dx[p]*dx[p] + dy[p]*dy[p]))
+                    {
+                        dx[p] = cx;
+                        dy[p] = cy;
+                    }
                 }
-                y += rowHeight;
             }
 
-            /* Initialize shader program */
+            private static void edt(int [] dx, int [] dy, int size)
+            {
+                for (int y=0; y<size; y++)
+                {
+                    for (int x=0; x<size; x++)
+                    {
+                        edtCompare(dx, dy, size, x, y, -1,  0);
+                        edtCompare(dx, dy, size, x, y,  0, -1);
+                        edtCompare(dx, dy, size, x, y, -1, -1);
+                        edtCompare(dx, dy, size, x, y,  1, -1);
+                    }
+                    for (int x=size-1; x>=0; x--)
+                        edtCompare(dx, dy, size, x, y, 1, 0);
+                }
 
-            final int vertexShaderId = createShader(context, R.raw.text_vs, GLES20.GL_VERTEX_SHADER, null);
-            final int fragmentShaderId = createShader(context, R.raw.text_fs, GLES20.GL_FRAGMENT_SHADER, null);
+                for (int y=size-1; y>=0; y--)
+                {
+                    for (int x=size-1; x>=0; x--)
+                    {
+                        edtCompare(dx, dy, size, x, y,  1, 0);
+                        edtCompare(dx, dy, size, x, y,  0, 1);
+                        edtCompare(dx, dy, size, x, y, -1, 1);
+                        edtCompare(dx, dy, size, x, y,  1, 1);
+                    }
+                    for (int x=0; x<size; x++)
+                        edtCompare(dx, dy, size, x, y, -1, 0);
+                }
+            }
 
-            m_programId = GLES20.glCreateProgram();
-            GLES20.glAttachShader(m_programId, vertexShaderId);
-            GLES20.glAttachShader(m_programId, fragmentShaderId);
-            GLES20.glLinkProgram(m_programId);
+            private Image render(char ch)
+            {
+                final int size = cellSize;
+                final int cellPixels = (size * size);
 
-            final int [] linkStatus = new int[1];
-            GLES20.glGetProgramiv( m_programId, GLES20.GL_LINK_STATUS, linkStatus, 0 );
-            if (linkStatus[0] == 0)
-                throw new IOException();
+                m_chars[0] = ch;
+                m_bitmap.eraseColor(0);
+                m_canvas.drawText(m_chars, 0, 1, SDF_SPREAD, SDF_SPREAD - ascent, m_paint);
+                m_bitmap.getPixels(m_pixels, 0, size, 0, 0, size, size);
+
+                for (int idx=0; idx<cellPixels; idx++)
+                {
+                    if ((m_pixels[idx] >>> 24) >= 128)
+                    {
+                        m_inDX[idx] = 0;
+                        m_inDY[idx] = 0;
+                        m_outDX[idx] = SDF_INF;
+                        m_outDY[idx] = SDF_INF;
+                    }
+                    else
+                    {
+                        m_inDX[idx] = SDF_INF;
+                        m_inDY[idx] = SDF_INF;
+                        m_outDX[idx] = 0;
+                        m_outDY[idx] = 0;
+                    }
+                }
+
+                edt(m_inDX, m_inDY, size);
+                edt(m_outDX, m_outDY, size);
+
+                /* 0.5 is on the glyph edge, greater values are inside */
+                final byte [] data = new byte[cellPixels];
+                for (int idx=0; idx<cellPixels; idx++)
+                {
+                    final float in = (float) Math.sqrt(m_inDX[idx]*m_inDX[idx] + m_inDY[idx]*m_inDY[idx]);
+                    final float out = (float) Math.sqrt(m_outDX[idx]*m_outDX[idx] + m_outDY[idx]*m_outDY[idx]);
+                    float v = 0.5f + (out - in) / (2 * SDF_SPREAD);
+                    if (v < 0f)
+                        v = 0f;
+                    else if (v > 1f)
+                        v = 1f;
+                    data[idx] = (byte) (v * 255f);
+                }
+
+                return new Image(data, m_paint.measureText(m_chars, 0, 1));
+            }
+
+            public synchronized Image get(char ch)
+            {
+                Image image = m_images.get(ch);
+                if (image == null)
+                {
+                    image = render(ch);
+                    m_images.put(ch, image);
+                }
+                return image;
+            }
+        }
+
+        private static class Glyph
+        {
+            public final char ch;
+            public final int cell;
+            public final float advance; /* at SDF_FONT_SIZE */
+            public int lastUse;
+
+            public Glyph(char ch, int cell, float advance)
+            {
+                this.ch = ch;
+                this.cell = cell;
+                this.advance = advance;
+            }
+        }
+
+        public TextDrawer(Context context) throws IOException
+        {
+            m_glyphImages = GlyphImages.getInstance();
+            m_lineHeight = m_glyphImages.lineHeight;
+            m_cellSize = m_glyphImages.cellSize;
+            m_cellsPerRow = (ATLAS_SIZE / m_cellSize);
+
+            m_glyphs = new SparseArray<Glyph>();
+            m_cellGlyph = new Glyph[m_cellsPerRow * m_cellsPerRow];
+
+            m_cellData = ByteBuffer.allocateDirect(m_cellSize * m_cellSize);
+
+            /* Initialize shader program */
+
+            m_programId = createProgram(context, R.raw.text_vs, R.raw.text_fs, null);
 
             m_matrixLocation = GLES20.glGetUniformLocation( m_programId, "u_m4Matrix" );
             if (m_matrixLocation < 0)
@@ -463,6 +705,9 @@ public class Canvas3D
             m_colorLocation = GLES20.glGetUniformLocation( m_programId, "u_v4Color" );
             if (m_colorLocation < 0)
                 throw new IOException();
+            m_smoothingLocation = GLES20.glGetUniformLocation( m_programId, "u_fSmoothing" );
+            if (m_smoothingLocation < 0)
+                throw new IOException();
 
             final int [] textureId = new int[1];
             GLES20.glGenTextures(1, textureId , 0);
@@ -470,226 +715,420 @@ public class Canvas3D
                 throw new IOException( "glGenTextures() failed" );
             m_textureId = textureId[0];
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, m_textureId);
+            GLState.bindTexture(0, m_textureId);
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, bitmap, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_ALPHA, ATLAS_SIZE, ATLAS_SIZE, 0,
+                    GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, null);
+
+            m_lookupKey = new LayoutKey();
+            m_layoutCache = new LayoutCache();
+        }
+
+        /* Uploads the glyph image to the atlas cell,
+         * returns glyph advance.
+         */
+        private float rasterize(char ch, int cell)
+        {
+            final GlyphImages.Image image = m_glyphImages.get(ch);
+            final int size = m_cellSize;
+
+            m_cellData.clear();
+            m_cellData.put(image.data);
+            m_cellData.position(0);
 
-            bitmap.recycle();
+            final int x = (cell % m_cellsPerRow) * size;
+            final int y = (cell / m_cellsPerRow) * size;
+            GLState.bindTexture(0, m_textureId);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, size, size,
+                    GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, m_cellData);
+
+            return image.advance;
         }
 
-        private static class LineInfo
+        /* Returns glyph for the character rasterizing it if required,
+         * or null if atlas is full of glyphs used by the current layout.
+         */
+        private Glyph getGlyph(char ch)
         {
-            public final int start;
-            public final int end;
-            public final float width;
+            if (ch < ' ')
+                ch = REPLACEMENT_CHAR;
 
-            public LineInfo(int start, int end, float width)
+            Glyph glyph = m_glyphs.get(ch);
+            if (glyph == null)
             {
-                this.start = start;
-                this.end = end;
-                this.width = width;
+                int cell;
+                if (m_nextCell < m_cellGlyph.length)
+                    cell = m_nextCell++;
+                else
+                {
+                    cell = -1;
+                    int lastUse = m_useStamp;
+                    for (int idx=0; idx<m_cellGlyph.length; idx++)
+                    {
+                        if (m_cellGlyph[idx].lastUse - lastUse < 0)
+                        {
+                            lastUse = m_cellGlyph[idx].lastUse;
+                            cell = idx;
+                        }
+                    }
+
+                    if (cell < 0)
+                        return null;
+
+                    /* Cached layouts can refer the evicted glyph */
+                    m_glyphs.remove(m_cellGlyph[cell].ch);
+                    m_generation++;
+                }
+
+                glyph = new Glyph(ch, cell, rasterize(ch, cell));
+                m_glyphs.put(ch, glyph);
+                m_cellGlyph[cell] = glyph;
             }
+
+            glyph.lastUse = m_useStamp;
+            return glyph;
         }
 
-        public void draw(float [] matrix, String str, float x, float y, float z, float textSize,
-                int color, Align align, VerticalAlign valign, float [] tmp, int tmpOffset)
+        /* Layout cache key, one mutable instance is used for lookups
+         * to avoid allocation when the text is already in the cache.
+         */
+        private static class LayoutKey
         {
-            final int STRIDE = (2 + 2) * (Float.SIZE / Byte.SIZE);
-            final int strLength = str.length();
+            private String m_str;
+            private float m_textSize;
+            private Align m_align;
+            private VerticalAlign m_valign;
 
-            int idx = 0;
-            int lines = 0;
-            int lineMaxLength = 0;
-            int lineStartIdx = 0;
+            public LayoutKey()
+            {
+            }
 
-            for (;;)
+            public LayoutKey(LayoutKey key)
             {
-                if ((idx == strLength) || (str.charAt(idx) == '\n'))
-                {
-                    lines++;
-                    final int lineLength = (idx - lineStartIdx);
-                    if (lineLength > lineMaxLength)
-                        lineMaxLength = lineLength;
+                set(key.m_str, key.m_textSize, key.m_align, key.m_valign);
+            }
+
+            public void set(String str, float textSize, Align align, VerticalAlign valign)
+            {
+                m_str = str;
+                m_textSize = textSize;
+                m_align = align;
+                m_valign = valign;
+            }
 
-                    if (idx == strLength)
-                        break;
+            public int hashCode()
+            {
+                int hash = m_str.hashCode();
+                hash = (hash * 31) + Float.floatToIntBits(m_textSize);
+                hash = (hash * 31) + m_align.value;
+                hash = (hash * 31) + m_valign.value;
+                return hash;
+            }
 
-                    lineStartIdx = (idx + 1);
-                }
-                idx++;
+            public boolean equals(Object obj)
+            {
+                if (!(obj instanceof LayoutKey))
+                    return false;
+                final LayoutKey key = (LayoutKey) obj;
+                return (m_textSize == key.m_textSize) &&
+                       (m_align == key.m_align) &&
+                       (m_valign == key.m_valign) &&
+                       m_str.equals(key.m_str);
             }
+        }
 
-            final int capacity = Math.max(lineMaxLength, 16) * (2 * 3 * (2 + 2));
-            if ((m_fb == null) || (m_fb.capacity() < capacity))
+        /* Glyph quads of the text laid out around (0, 0),
+         * (dx, dy) is an offset of the text origin required by the alignment.
+         * Layout is valid while atlas generation is the same.
+         */
+        private static class Layout
+        {
+            public final VertexBuffer vertexBuffer;
+            public final int vertices;
+            public final float dx;
+            public final float dy;
+            public final int generation;
+
+            public Layout(VertexBuffer vertexBuffer, int vertices, float dx, float dy, int generation)
             {
-                final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Float.SIZE/Byte.SIZE * capacity);
-                byteBuffer.order(ByteOrder.nativeOrder());
-                m_fb = byteBuffer.asFloatBuffer();
+                this.vertexBuffer = vertexBuffer;
+                this.vertices = vertices;
+                this.dx = dx;
+                this.dy = dy;
+                this.generation = generation;
             }
+        }
 
-            int startIdx = 0;
-            final float scale = textSize / (((float)m_textureHeight) / TT_ROWS);
-            float lineMaxWidth = 0f;
-            final LineInfo [] lineInfo = new LineInfo[lines];
-            int lineIdx = 0;
-            idx = 0;
+        private static class LayoutCache extends LinkedHashMap<LayoutKey, Layout>
+        {
+            private static final long serialVersionUID = 1L;
 
-            for (float lineWidth=0;;)
+            public LayoutCache()
             {
-                int ch;
-                if ((idx == strLength) || ((ch = str.charAt(idx)) == '\n'))
+                super(TT_CACHE_SIZE, 0.75f, /*accessOrder*/true);
+            }
+
+            protected boolean removeEldestEntry(Map.Entry<LayoutKey, Layout> eldest)
+            {
+                if (size() > TT_CACHE_SIZE)
                 {
-                    lineWidth *= (m_textureWidth * scale);
-                    lineInfo[lineIdx++] = new LineInfo(startIdx, idx, lineWidth);
+                    eldest.getValue().vertexBuffer.delete();
+                    return true;
+                }
+                return false;
+            }
+        }
 
-                    if (lineWidth > lineMaxWidth)
-                        lineMaxWidth = lineWidth;
+        /* Layout is written to the given vertex buffer if any,
+         * new static buffer of the required size is created otherwise.
+         */
+        private Layout createLayout(String str, float textSize, Align align, VerticalAlign valign, VertexBuffer vertexBuffer)
+        {
+            final int strLength = str.length();
+            final float scale = (textSize / m_lineHeight);
+            final Glyph [] glyphs = new Glyph[strLength];
+            final float [] lineWidth = new float[strLength + 1];
 
-                    if (idx == strLength)
-                        break;
+            /* Glyphs used by this layout will not be evicted */
+            m_useStamp++;
 
-                    idx++;
-                    startIdx = idx;
-                    lineWidth = 0f;
+            int lines = 0;
+            int vertices = 0;
+            float lineMaxWidth = 0f;
+
+            for (int idx=0; idx<=strLength; idx++)
+            {
+                if ((idx == strLength) || (str.charAt(idx) == '\n'))
+                {
+                    if (lineWidth[lines] > lineMaxWidth)
+                        lineMaxWidth = lineWidth[lines];
+                    lines++;
                 }
                 else
                 {
-                    if ((ch < TT_START_CHAR) || (ch > 128))
-                        ch = '#';
-                    ch -= TT_START_CHAR;
-                    final int row = (ch / TT_COLUMNS);
-                    final int col = (ch % TT_COLUMNS);
-                    final int c = (row * (TT_COLUMNS + 1)) + col;
-                    lineWidth += (m_glyphMap[c + 1] - m_glyphMap[c] - m_spacing);
-                    idx++;
+                    final Glyph glyph = getGlyph(str.charAt(idx));
+                    if (glyph != null)
+                    {
+                        glyphs[idx] = glyph;
+                        lineWidth[lines] += (glyph.advance * scale);
+                        /* Each character is drawn with 2 triangles */
+                        vertices += (3 * 2);
+                    }
                 }
             }
 
+            float dx;
             if (align == Align.LEFT)
-                x += (lineMaxWidth / 2f);
+                dx = (lineMaxWidth / 2f);
             else if (align == Align.RIGHT)
-                x -= (lineMaxWidth / 2f);
-            else if (align != Align.CENTER)
+                dx = -(lineMaxWidth / 2f);
+            else if (align == Align.CENTER)
+                dx = 0f;
+            else
             {
                 if (BuildConfig.DEBUG)
                     throw new AssertionError();
-                return;
+                return null;
             }
 
-            float y2 = (textSize * lines) / 2;
+            float y1 = (textSize * lines) / 2;
 
+            float dy;
             if (valign == VerticalAlign.UP)
-                y -= y2;
+                dy = -y1;
             else if (valign == VerticalAlign.DOWN)
-                y += y2;
-            else if (valign != VerticalAlign.CENTER)
+                dy = y1;
+            else if (valign == VerticalAlign.CENTER)
+                dy = 0f;
+            else
             {
                 if (BuildConfig.DEBUG)
                     throw new AssertionError();
-                return;
+                return null;
             }
 
-            Matrix.setIdentityM(tmp, tmpOffset+16);
-            Matrix.translateM(tmp, tmpOffset+16, x, y, z);
-            Matrix.multiplyMM(tmp, tmpOffset, matrix, 0, tmp, tmpOffset+16);
+            if (vertexBuffer == null)
+                vertexBuffer = new VertexBuffer(vertices * (2 + 2), GLES20.GL_STATIC_DRAW);
+            else if (vertexBuffer.getData().capacity() < (vertices * (2 + 2)))
+            {
+                if (BuildConfig.DEBUG)
+                    throw new AssertionError();
+                return null;
+            }
+            else
+                vertexBuffer.setDirty();
 
-            for (LineInfo ll : lineInfo)
+            final FloatBuffer fb = vertexBuffer.getData();
+            fb.position(0);
+            final float spread = (SDF_SPREAD * scale);
+            final float cellSize = (m_cellSize * scale);
+            final float cellTexSize = ((float) m_cellSize) / ATLAS_SIZE;
+
+            for (int idx=0, line=0; line<lines; line++)
             {
                 float x1;
                 if (align == Align.LEFT)
                     x1 = (-lineMaxWidth / 2f);
                 else if (align == Align.CENTER)
-                    x1 = (-ll.width / 2f);
-                else if (align == Align.RIGHT)
-                    x1 = (lineMaxWidth / 2f - ll.width);
+                    x1 = (-lineWidth[line] / 2f);
                 else
-                    return;
+                    x1 = (lineMaxWidth / 2f - lineWidth[line]);
 
-                final float y1 = y2;
-                y2 -= textSize;
+                /* Glyph cell has SDF_SPREAD pixels border around the line box */
+                final float qy1 = (y1 + spread);
+                final float qy2 = (qy1 - cellSize);
+                y1 -= textSize;
 
-                m_fb.position(0);
-                for (idx=ll.start; idx<ll.end; idx++)
+                for (; (idx < strLength) && (str.charAt(idx) != '\n'); idx++)
                 {
-                    int ch = str.charAt(idx);
-                    if ((ch < TT_START_CHAR) || (ch >= 128))
-                        ch = '#';
-                    ch -= TT_START_CHAR;
-
-                    final int row = (ch / TT_COLUMNS);
-                    final int col = (ch % TT_COLUMNS);
-                    final int c = (row * (TT_COLUMNS+1)) + col;
+                    final Glyph glyph = glyphs[idx];
+                    if (glyph == null)
+                        continue;
 
-                    final float tx1 = m_glyphMap[c];
-                    final float tx2 = (m_glyphMap[c+1] - m_spacing);
-                    final float ty1 = (((float)row) / TT_ROWS);
-                    final float ty2 = (ty1 + 1f/TT_ROWS);
-                    final float x2 = x1 + (m_glyphMap[c+1] - tx1 - m_spacing) * m_textureWidth * scale;
+                    final float tx1 = (glyph.cell % m_cellsPerRow) * cellTexSize;
+                    final float tx2 = (tx1 + cellTexSize);
+                    final float ty1 = (glyph.cell / m_cellsPerRow) * cellTexSize;
+                    final float ty2 = (ty1 + cellTexSize);
+                    final float qx1 = (x1 - spread);
+                    final float qx2 = (qx1 + cellSize);
 
                     /* first triangle */
-                    m_fb.put(x1); m_fb.put(y2);
-                    m_fb.put(tx1); m_fb.put(ty2);
+                    fb.put(qx1); fb.put(qy2);
+                    fb.put(tx1); fb.put(ty2);
 
-                    m_fb.put(x1); m_fb.put(y1);
-                    m_fb.put(tx1); m_fb.put(ty1);
+                    fb.put(qx1); fb.put(qy1);
+                    fb.put(tx1); fb.put(ty1);
 
-                    m_fb.put(x2); m_fb.put(y2);
-                    m_fb.put(tx2); m_fb.put(ty2);
+                    fb.put(qx2); fb.put(qy2);
+                    fb.put(tx2); fb.put(ty2);
 
                     /* second triangle */
-                    m_fb.put(x1); m_fb.put(y1);
-                    m_fb.put(tx1); m_fb.put(ty1);
+                    fb.put(qx1); fb.put(qy1);
+                    fb.put(tx1); fb.put(ty1);
 
-                    m_fb.put(x2); m_fb.put(y1);
-                    m_fb.put(tx2); m_fb.put(ty1);
+                    fb.put(qx2); fb.put(qy1);
+                    fb.put(tx2); fb.put(ty1);
 
-                    m_fb.put(x2); m_fb.put(y2);
-                    m_fb.put(tx2); m_fb.put(ty2);
+                    fb.put(qx2); fb.put(qy2);
+                    fb.put(tx2); fb.put(ty2);
 
-                    x1 = x2;
+                    x1 += (glyph.advance * scale);
                 }
+                /* skip '\n' */
+                idx++;
+            }
 
-                GLES20.glUseProgram(m_programId);
-                GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-                GLES20.glEnable(GLES20.GL_BLEND);
+            if (BuildConfig.DEBUG && (fb.position() != (vertices * (2 + 2))))
+                throw new AssertionError();
+            fb.position(0);
 
-                GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, tmp, tmpOffset);
+            return new Layout(vertexBuffer, vertices, dx, dy, m_generation);
+        }
 
-                m_fb.position(0);
-                GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, STRIDE, m_fb);
-                GLES20.glEnableVertexAttribArray(m_positionLocation);
+        public void draw(float [] matrix, String str, float x, float y, float z, float textSize,
+                int color, Align align, VerticalAlign valign, float [] tmp, int tmpOffset)
+        {
+            m_lookupKey.set(str, textSize, align, valign);
+            Layout layout = m_layoutCache.get(m_lookupKey);
+            if ((layout != null) && (layout.generation != m_generation))
+            {
+                m_layoutCache.remove(m_lookupKey);
+                layout.vertexBuffer.delete();
+                layout = null;
+            }
 
-                m_fb.position(2);
-                GLES20.glVertexAttribPointer(m_texCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE, m_fb);
-                GLES20.glEnableVertexAttribArray(m_texCoordLocation);
+            if (layout == null)
+            {
+                layout = createLayout(str, textSize, align, valign, null);
+                if (layout == null)
+                    return;
 
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, m_textureId);
-                GLES20.glUniform1i(m_texUnitLocation, 0);
+                m_layoutCache.put(new LayoutKey(m_lookupKey), layout);
+            }
 
-                GLES20.glUniform4f(m_colorLocation,
-                        ((float)Color.red(color)) / 255f,
-                        ((float)Color.green(color)) / 255f,
-                        ((float)Color.blue(color)) / 255f,
-                        1f);
+            draw(matrix, layout, x, y, z, textSize, color, tmp, tmpOffset);
+        }
 
-                final int lineLength = (ll.end - ll.start);
-                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 3*2*lineLength);
+        public void draw(float [] matrix, DynamicText text, float x, float y, float z,
+                int color, float [] tmp, int tmpOffset)
+        {
+            Layout layout = text.m_layout;
+            if ((layout == null) || (layout.generation != m_generation))
+            {
+                layout = createLayout(text.m_str, text.m_textSize, text.m_align, text.m_valign, text.m_vertexBuffer);
+                text.m_layout = layout;
+                if (layout == null)
+                    return;
             }
 
-            GLES20.glDisable(GLES20.GL_BLEND);
-            GLES20.glUseProgram(0);
+            draw(matrix, layout, x, y, z, text.m_textSize, color, tmp, tmpOffset);
+        }
+
+        private void draw(float [] matrix, Layout layout, float x, float y, float z, float textSize,
+                int color, float [] tmp, int tmpOffset)
+        {
+            final int STRIDE = (2 + 2) * VertexBuffer.FLOAT_SIZE;
+
+            if (layout.vertices == 0)
+                return;
+
+            Matrix.setIdentityM(tmp, tmpOffset+16);
+            Matrix.translateM(tmp, tmpOffset+16, x+layout.dx, y+layout.dy, z);
+            Matrix.multiplyMM(tmp, tmpOffset, matrix, 0, tmp, tmpOffset+16);
+
+            if (!layout.vertexBuffer.bind())
+                return;
+
+            GLState.useProgram(m_programId, (1 << m_positionLocation) | (1 << m_texCoordLocation));
+            GLState.setBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            GLState.setBlend(true);
+
+            GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, tmp, tmpOffset);
+            GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+            GLState.enableVertexAttribArray(m_positionLocation);
+            GLES20.glVertexAttribPointer(m_texCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 2*VertexBuffer.FLOAT_SIZE);
+            GLState.enableVertexAttribArray(m_texCoordLocation);
+
+            GLState.bindTexture(0, m_textureId);
+            GLES20.glUniform1i(m_texUnitLocation, 0);
+
+            GLES20.glUniform4f(m_colorLocation,
+                    ((float)Color.red(color)) / 255f,
+                    ((float)Color.green(color)) / 255f,
+                    ((float)Color.blue(color)) / 255f,
+                    1f);
+
+            /* Distance field changes by 1/(2*SDF_SPREAD*scale) per screen pixel,
+             * edge is smoothed over about one pixel.
+             */
+            final float scale = (textSize / m_lineHeight);
+            GLES20.glUniform1f(m_smoothingLocation, 0.7f / (2 * SDF_SPREAD * scale));
+
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, layout.vertices);
+
+            GLState.setBlend(false);
         }
     }
 
-    public Canvas3D(Context context, int textSize) throws IOException
+    /* Renders glyph images of the characters in advance,
+     * could be called from any thread.
+     */
+    public static void prepareGlyphs(String chars)
+    {
+        final TextDrawer.GlyphImages glyphImages = TextDrawer.GlyphImages.getInstance();
+        for (int idx=0; idx<chars.length(); idx++)
+            glyphImages.get(chars.charAt(idx));
+    }
+
+    public Canvas3D(Context context) throws IOException
     {
         m_spriteDrawer = new SpriteDrawer(context);
         m_linesDrawer = new LinesDrawer(context);
-        m_textDrawer = new TextDrawer(context, textSize);
+        m_textDrawer = new TextDrawer(context);
     }
 
     public void draw(float [] vpMatrix, Sprite sprite)
@@ -707,4 +1146,10 @@ public class Canvas3D
     {
         m_textDrawer.draw(matrix, str, x, y, z, textSize, color, align, valign, tmp, tmpOffset);
     }
+
+    public void drawText(float [] matrix, DynamicText text, float x, float y, float z,
+            int color, float [] tmp, int tmpOffset)
+    {
+        m_textDrawer.draw(matrix, text, x, y, z, color, tmp, tmpOffset);
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import java.nio.FloatBuffer;
+
+/* Cup geometry: the cup mesh converted to the list of triangles,
+ * repeated for each cup of the batch drawn by ModelCup.
+ * Vertex is (x, y, z, nx, ny, nz, instance index).
+ */
+class CupMesh
+{
+    public static final int INSTANCE_SIZE = 4; /* x, y, z, scale */
+    public static final int VERTEX_SIZE = (3 + 3 + 1);
+
+    private static final int MESH_STRIDE = (3 + 3);
+
+    private static int putVertex(FloatBuffer dst, FloatBuffer mesh, int vertex, float instance)
+    {
+        for (int idx=0; idx<MESH_STRIDE; idx++)
+            dst.put(mesh.get(vertex*MESH_STRIDE + idx));
+        dst.put(instance);
+        return 1;
+    }
+
+    private static int putTriangle(FloatBuffer dst, FloatBuffer mesh, int v1, int v2, int v3, float instance)
+    {
+        return putVertex(dst, mesh, v1, instance) +
+               putVertex(dst, mesh, v2, instance) +
+               putVertex(dst, mesh, v3, instance);
+    }
+
+    /* Side strip gives (stripes*2) triangles, bottom fan gives (stripes) triangles. */
+    public static int getVertices(int stripes)
+    {
+        return (stripes * 3 * 3);
+    }
+
+    /* Writes batchSize copies of the cup to dst,
+     * dst should have (getVertices(stripes) * VERTEX_SIZE * batchSize) floats remaining.
+     */
+    public static void create(FloatBuffer dst, int stripes, int batchSize)
+    {
+        /* Single cup mesh: side triangle strip followed by the bottom triangle fan,
+         * then it is converted to the list of triangles, so the batch can be drawn at once.
+         */
+        final int bottomOffs = ((stripes + 1) * 2 * MESH_STRIDE);
+        final FloatBuffer vertexData = FloatBuffer.allocate(bottomOffs + /*bottom*/(stripes+2)*MESH_STRIDE);
+
+        final float neckRadius = 1f;
+        final float [] tmp = new float[8];
+        final float height =  (neckRadius / 6f * 10f);
+        final float bottomRadius = (neckRadius / 6f * 4.5f);
+
+        final float pitch = (float) (-Math.PI * 2f / stripes);
+        final float pitchCos = (float) Math.cos( pitch );
+        final float pitchSin = (float) Math.sin( pitch );
+
+        final float [] neck = { (float)(neckRadius * Math.cos(pitch/2f)), (float)(neckRadius * Math.sin(pitch/2f)), 0f, 0f };
+        final float [] bottom = { bottomRadius, 0f, height, 0f };
+        final float [] n1 = new float[4];
+        final float [] n2 = new float[4];
+        final float [] bottomNormal = { 0f, 0f, 1f }; /* bottom normal */
+
+        /*  0 p1 -  3 p1n
+         *  6 p2 -  9 p2n
+         * 12 p3 - 15 p3n
+         */
+        vertexData.position(0);
+        vertexData.put(bottom, 0, 3);
+
+        vertexData.position(6);
+        vertexData.put(neck, 0, 3);
+
+        vertexData.position(bottomOffs);
+        vertexData.put(/*x*/0f);
+        vertexData.put(/*y*/0f);
+        vertexData.put(/*z*/height);
+        vertexData.put(bottomNormal);
+        vertexData.put(bottom, 0, 3);
+        vertexData.put(bottomNormal);
+
+        Vector.rotateAroundZ(bottom, 0, pitchCos, pitchSin);
+        Vector.rotateAroundZ(neck, 0, pitchCos, pitchSin);
+
+        vertexData.position(12);
+        vertexData.put(bottom, 0, 3);
+
+        vertexData.position(18);
+        vertexData.put(neck, 0, 3);
+
+        vertexData.position(bottomOffs + 6*2);
+        vertexData.put(bottom, 0, 3);
+        vertexData.put(bottomNormal);
+        int bottomPos = vertexData.position();
+
+        Vector.rotateAroundZ(bottom, 0, pitchCos, pitchSin);
+        Vector.rotateAroundZ(neck, 0, pitchCos, pitchSin);
+
+        /* Lighting requires face normal,
+         * we could calculate it once for one face and then rotate.
+         */
+        Vector.set(tmp, 0,
+                vertexData.get(0) - vertexData.get(6),
+                vertexData.get(1) - vertexData.get(7),
+                vertexData.get(2) - vertexData.get(8));
+
+        Vector.set(tmp, 4,
+                vertexData.get(12) - vertexData.get(6),
+                vertexData.get(13) - vertexData.get(7),
+                vertexData.get(14) - vertexData.get(8));
+
+        Vector.crossProduct(n1, 0, tmp, 0, tmp, 4);
+        Vector.normalize(n1, 0);
+
+        Vector.set(tmp, 0,
+                vertexData.get(18) - vertexData.get(12),
+                vertexData.get(19) - vertexData.get(13),
+                vertexData.get(20) - vertexData.get(14));
+
+        Vector.set(tmp, 4,
+                vertexData.get(6) - vertexData.get(12),
+                vertexData.get(7) - vertexData.get(13),
+                vertexData.get(8) - vertexData.get(14));
+
+        Vector.crossProduct(n2, 0, tmp, 0, tmp, 4);
+        Vector.normalize(n2, 0);
+
+        vertexData.position(3);
+        vertexData.put(n1, 0, 3);
+        vertexData.position(9);
+        vertexData.put(n2, 0, 3);
+
+        Vector.rotateAroundZ(n1, 0, pitchCos, pitchSin);
+        Vector.rotateAroundZ(n2, 0, pitchCos, pitchSin);
+
+        vertexData.position(15);
+        vertexData.put(n1, 0, 3);
+        vertexData.position(21);
+        vertexData.put(n2, 0, 3);
+
+        Vector.rotateAroundZ(n1, 0, pitchCos, pitchSin);
+        Vector.rotateAroundZ(n2, 0, pitchCos, pitchSin);
+
+        for (int idx=stripes-1; idx>0; idx--)
+        {
+            vertexData.put(bottom, 0, 3);
+            vertexData.put(n1, 0, 3);
+            vertexData.put(neck, 0, 3);
+            vertexData.put(n2, 0, 3);
+
+            final int pos = vertexData.position();
+            vertexData.position(bottomPos);
+            vertexData.put(bottom, 0, 3);
+            vertexData.put(bottomNormal);
+            bottomPos = vertexData.position();
+            vertexData.position(pos);
+
+            Vector.rotateAroundZ(bottom, 0, pitchCos, pitchSin);
+            Vector.rotateAroundZ(n1, 0, pitchCos, pitchSin);
+            Vector.rotateAroundZ(neck, 0, pitchCos, pitchSin);
+            Vector.rotateAroundZ(n2, 0, pitchCos, pitchSin);
+        }
+
+        final int meshVertices = getVertices(stripes);
+        final int sideVertices = (stripes*2 + 2);
+        final int bottomVertex = (bottomOffs / MESH_STRIDE);
+
+        for (int instance=0; instance<batchSize; instance++)
+        {
+            int vertices = 0;
+            for (int idx=0; idx<sideVertices-2; idx++)
+            {
+                /* Keep the strip winding order */
+                if ((idx % 2) == 0)
+                    vertices += putTriangle(dst, vertexData, idx, idx+1, idx+2, instance);
+                else
+                    vertices += putTriangle(dst, vertexData, idx+1, idx, idx+2, instance);
+            }
+
+            for (int idx=0; idx<stripes; idx++)
+                vertices += putTriangle(dst, vertexData, bottomVertex, bottomVertex+idx+1, bottomVertex+idx+2, instance);
+
+            if (BuildConfig.DEBUG && (vertices != meshVertices))
+                throw new AssertionError();
+        }
+    }
+}
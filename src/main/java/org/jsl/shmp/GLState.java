@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.opengl.GLES20;
+
+/* Shadow copy of the GL state changed by the models,
+ * calls not changing the state are not passed to the driver.
+ * Should be used on the render thread only, and all changes
+ * of the tracked state should go through this class.
+ */
+class GLState
+{
+    private static final int MAX_TEXTURE_UNITS = 8;
+
+    private static int s_programId;
+    private static int s_arrayBufferId;
+    private static int s_activeTexture;
+    private static final int [] s_textureId = new int[MAX_TEXTURE_UNITS];
+    private static int s_vertexAttribArrays;
+    private static int s_programAttribArrays; /* bit mask of enabled arrays */
+    private static boolean s_blend;
+    private static int s_blendSrc;
+    private static int s_blendDst;
+
+    private static int s_issuedCalls;
+    private static int s_elidedCalls;
+
+    /* Should be called when new EGL context is created,
+     * resets the state to the GL defaults.
+     */
+    public static void reset()
+    {
+        s_programId = 0;
+        s_arrayBufferId = 0;
+        s_activeTexture = 0;
+        for (int idx=0; idx<MAX_TEXTURE_UNITS; idx++)
+            s_textureId[idx] = 0;
+        s_vertexAttribArrays = 0;
+        s_programAttribArrays = 0;
+        s_blend = false;
+        s_blendSrc = GLES20.GL_ONE;
+        s_blendDst = GLES20.GL_ZERO;
+    }
+
+    /* attribArrays is a bit mask of the vertex attribute locations
+     * the program reads, arrays left enabled by the previous program
+     * outside of the mask are disabled here.
+     */
+    public static void useProgram(int programId, int attribArrays)
+    {
+        if (s_programId == programId)
+            s_elidedCalls++;
+        else
+        {
+            s_programId = programId;
+            s_issuedCalls++;
+            GLES20.glUseProgram(programId);
+        }
+
+        s_programAttribArrays = attribArrays;
+        int disable = (s_vertexAttribArrays & ~attribArrays);
+        while (disable != 0)
+        {
+            final int location = Integer.numberOfTrailingZeros(disable);
+            disable &= (disable - 1);
+            s_issuedCalls++;
+            GLES20.glDisableVertexAttribArray(location);
+        }
+        s_vertexAttribArrays &= attribArrays;
+    }
+
+    public static void bindArrayBuffer(int bufferId)
+    {
+        if (s_arrayBufferId == bufferId)
+            s_elidedCalls++;
+        else
+        {
+            s_arrayBufferId = bufferId;
+            s_issuedCalls++;
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferId);
+        }
+    }
+
+    /* Deleted buffer is unbound by GL if it was bound */
+    public static void deleteArrayBuffer(int bufferId)
+    {
+        if (s_arrayBufferId == bufferId)
+            s_arrayBufferId = 0;
+        final int [] ids = { bufferId };
+        GLES20.glDeleteBuffers(1, ids, 0);
+    }
+
+    /* Binds GL_TEXTURE_2D texture to the given texture unit (0, 1, ...) */
+    public static void bindTexture(int unit, int textureId)
+    {
+        if (BuildConfig.DEBUG && ((unit < 0) || (unit >= MAX_TEXTURE_UNITS)))
+            throw new AssertionError();
+
+        if (s_textureId[unit] == textureId)
+            s_elidedCalls++;
+        else
+        {
+            if (s_activeTexture == unit)
+                s_elidedCalls++;
+            else
+            {
+                s_activeTexture = unit;
+                s_issuedCalls++;
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            }
+            s_textureId[unit] = textureId;
+            s_issuedCalls++;
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        }
+    }
+
+    public static void enableVertexAttribArray(int location)
+    {
+        final int mask = (1 << location);
+        if (BuildConfig.DEBUG && ((s_programAttribArrays & mask) == 0))
+            throw new AssertionError();
+        if ((s_vertexAttribArrays & mask) != 0)
+            s_elidedCalls++;
+        else
+        {
+            s_vertexAttribArrays |= mask;
+            s_issuedCalls++;
+            GLES20.glEnableVertexAttribArray(location);
+        }
+    }
+
+    public static void setBlend(boolean enable)
+    {
+        if (s_blend == enable)
+            s_elidedCalls++;
+        else
+        {
+            s_blend = enable;
+            s_issuedCalls++;
+            if (enable)
+                GLES20.glEnable(GLES20.GL_BLEND);
+            else
+                GLES20.glDisable(GLES20.GL_BLEND);
+        }
+    }
+
+    public static void setBlendFunc(int src, int dst)
+    {
+        if ((s_blendSrc == src) && (s_blendDst == dst))
+            s_elidedCalls++;
+        else
+        {
+            s_blendSrc = src;
+            s_blendDst = dst;
+            s_issuedCalls++;
+            GLES20.glBlendFunc(src, dst);
+        }
+    }
+
+    public static int getIssuedCalls()
+    {
+        return s_issuedCalls;
+    }
+
+    public static int getElidedCalls()
+    {
+        return s_elidedCalls;
+    }
+
+    public static void resetCounters()
+    {
+        s_issuedCalls = 0;
+        s_elidedCalls = 0;
+    }
+}
@@ -38,10 +38,17 @@ public class GameActivity extends Activity
 
     private static final float TICK_VOLUME = 0.4f;
 
+    private AssetLoader m_assetLoader;
     private SoundPool m_soundPool;
-    private int m_soundBallSet;
-    private int m_soundCupSet;
-    private int m_soundTick;
+    /* Loaded by the asset loader threads */
+    private volatile int m_soundBallSet;
+    private volatile int m_soundCupSet;
+    private volatile int m_soundTick;
+    /* Sound pool is released by the activity or by the loading task,
+     * whichever finishes last, guarded by the m_soundPool lock.
+     */
+    private boolean m_soundsLoaded;
+    private boolean m_destroyed;
 
     protected void playSound_BallPut()
     {
@@ -73,16 +80,40 @@ public class GameActivity extends Activity
         //final boolean supportsEs2 = configurationInfo.reqGlEsVersion >= 0x20000;
         Log.d( LOG_TAG, "Supported OpenGL API: " + configurationInfo.reqGlEsVersion );
 
+        m_assetLoader = new AssetLoader(this);
+
         m_soundPool = new SoundPool(3, AudioManager.STREAM_MUSIC, 0);
-        m_soundBallSet = m_soundPool.load(this, R.raw.ball_set, 1);
-        m_soundCupSet = m_soundPool.load(this, R.raw.cup_set, 1);
-        m_soundTick = m_soundPool.load(this, R.raw.tick, 1);
+        m_assetLoader.execute(new Runnable() {
+            public void run() {
+                m_soundBallSet = m_soundPool.load(GameActivity.this, R.raw.ball_set, 1);
+                m_soundCupSet = m_soundPool.load(GameActivity.this, R.raw.cup_set, 1);
+                m_soundTick = m_soundPool.load(GameActivity.this, R.raw.tick, 1);
+
+                final boolean release;
+                synchronized (m_soundPool)
+                {
+                    m_soundsLoaded = true;
+                    release = m_destroyed;
+                }
+                if (release)
+                    m_soundPool.release();
+            }
+        });
     }
 
     public void onDestroy()
     {
         Log.d(LOG_TAG, "onDestroy");
-        m_soundPool.release();
+        m_assetLoader.stop();
+
+        final boolean release;
+        synchronized (m_soundPool)
+        {
+            m_destroyed = true;
+            release = m_soundsLoaded;
+        }
+        if (release)
+            m_soundPool.release();
         super.onDestroy();
     }
 
@@ -99,7 +130,7 @@ public class GameActivity extends Activity
                     public void onDismiss( DialogInterface dialog ) {
                         final Intent result = new Intent();
                         result.putExtra(MainActivity.EXTRA_DEVICE_ID, deviceId);
-                        result.putExtra(MainActivity.EXTRA_WIN, true);
+                        result.putExtra(MainActivity.EXTRA_WINS, 1);
                         GameActivity.this.setResult(0, result);
                         GameActivity.this.finish();
                     }
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.RetainableByteBufferPool;
+import org.jsl.collider.TimerQueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Sends the game messages to the client and to all spectators,
+ * each message is encoded once and the same buffer is queued
+ * to every session. Last messages describing the table are kept,
+ * the table state (TableState followed by CupState for each cup)
+ * is built from them and sent periodically while the table changes
+ * and to the spectator joined later.
+ */
+class GameBroadcast
+{
+    private class TableStateTimer implements TimerQueue.Task
+    {
+        public long run()
+        {
+            m_lock.lock();
+            try
+            {
+                /* Cups do not move after the guess */
+                if (m_tableChanged && (getPhase() == GameView.TABLE_PHASE_SETUP))
+                {
+                    m_tableChanged = false;
+                    sendTableStateLocked();
+                }
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            return Prefs.TABLE_STATE_INTERVAL;
+        }
+    }
+
+    private final ReentrantLock m_lock;
+    private final RetainableByteBufferPool m_byteBufferPool;
+    private final TableStateTimer m_tableStateTimer;
+    private GameServerSession m_session;
+    private final ArrayList<SpectatorSession> m_spectators;
+
+    /* Table state, guarded by m_lock */
+    private RetainableByteBuffer m_ball;
+    private final RetainableByteBuffer [] m_cup;
+    private RetainableByteBuffer m_guess;
+    private RetainableByteBuffer m_guessReply;
+    private boolean m_tableChanged;
+
+    private static RetainableByteBuffer replace(RetainableByteBuffer state, RetainableByteBuffer msg)
+    {
+        if (state != null)
+            state.release();
+        if (msg != null)
+            msg.retain();
+        return msg;
+    }
+
+    public GameBroadcast(int caps)
+    {
+        m_lock = new ReentrantLock();
+        m_byteBufferPool = new RetainableByteBufferPool(1024, true, Protocol.BYTE_ORDER);
+        m_tableStateTimer = new TableStateTimer();
+        m_spectators = new ArrayList<SpectatorSession>();
+        m_cup = new RetainableByteBuffer[caps];
+    }
+
+    private void clearState()
+    {
+        m_ball = replace(m_ball, null);
+        for (int idx=0; idx<m_cup.length; idx++)
+            m_cup[idx] = replace(m_cup[idx], null);
+        m_guess = replace(m_guess, null);
+        m_guessReply = replace(m_guessReply, null);
+    }
+
+    /* Position messages are idempotent, last one per object is enough */
+    private void updateState(RetainableByteBuffer msg)
+    {
+        switch (Protocol.Message.getMessageId(msg))
+        {
+            case Protocol.DragBall.ID:
+            case Protocol.PutBall.ID:
+            case Protocol.RemoveBall.ID:
+                m_ball = replace(m_ball, msg);
+                m_tableChanged = true;
+            break;
+
+            case Protocol.DragCup.ID:
+            {
+                final int idx = Protocol.DragCup.getId(msg);
+                m_cup[idx] = replace(m_cup[idx], msg);
+                m_tableChanged = true;
+            }
+            break;
+
+            case Protocol.PutCup.ID:
+            {
+                final int idx = Protocol.PutCup.getId(msg);
+                m_cup[idx] = replace(m_cup[idx], msg);
+                m_tableChanged = true;
+            }
+            break;
+
+            case Protocol.RemoveCup.ID:
+            {
+                final int idx = Protocol.RemoveCup.getId(msg);
+                m_cup[idx] = replace(m_cup[idx], msg);
+                m_tableChanged = true;
+            }
+            break;
+
+            case Protocol.Guess.ID:
+                m_guess = replace(m_guess, msg);
+            break;
+
+            case Protocol.GuessReply.ID:
+                m_guessReply = replace(m_guessReply, msg);
+            break;
+
+            case Protocol.NewRound.ID:
+                clearState();
+            break;
+        }
+    }
+
+    private void sendToSpectatorsLocked(RetainableByteBuffer msg)
+    {
+        updateState(msg);
+
+        /* Intermediate positions can be dropped for the congested spectator,
+         * slow spectator is removed when the connection is closed.
+         */
+        final short messageId = Protocol.Message.getMessageId(msg);
+        final boolean droppable = ((messageId == Protocol.DragBall.ID) || (messageId == Protocol.DragCup.ID));
+        for (SpectatorSession spectator : m_spectators)
+            spectator.sendMessage(msg, droppable);
+    }
+
+    private short getPhase()
+    {
+        if (m_guessReply != null)
+            return GameView.TABLE_PHASE_FINISHED;
+        if (m_guess != null)
+            return GameView.TABLE_PHASE_GUESS;
+        return GameView.TABLE_PHASE_SETUP;
+    }
+
+    private RetainableByteBuffer [] createTableState()
+    {
+        final RetainableByteBuffer [] msgs = new RetainableByteBuffer[m_cup.length + 1];
+
+        boolean ballVisible = false;
+        boolean ballDrag = false;
+        float ballX = 0f;
+        float ballY = 0f;
+        if (m_ball != null)
+        {
+            final short messageId = Protocol.Message.getMessageId(m_ball);
+            if (messageId == Protocol.DragBall.ID)
+            {
+                ballVisible = true;
+                ballDrag = true;
+                ballX = Protocol.DragBall.getX(m_ball);
+                ballY = Protocol.DragBall.getY(m_ball);
+            }
+            else if (messageId == Protocol.PutBall.ID)
+            {
+                ballVisible = true;
+                ballX = Protocol.PutBall.getX(m_ball);
+                ballY = Protocol.PutBall.getY(m_ball);
+            }
+        }
+        msgs[0] = Protocol.TableState.create(m_byteBufferPool, getPhase(), ballVisible, ballDrag, ballX, ballY, (short) m_cup.length);
+
+        for (int idx=0; idx<m_cup.length; idx++)
+        {
+            final RetainableByteBuffer cup = m_cup[idx];
+            boolean visible = false;
+            float x = 0f;
+            float y = 0f;
+            float z = 0f;
+            if (cup != null)
+            {
+                final short messageId = Protocol.Message.getMessageId(cup);
+                if (messageId == Protocol.DragCup.ID)
+                {
+                    visible = true;
+                    x = Protocol.DragCup.getX(cup);
+                    y = Protocol.DragCup.getY(cup);
+                    z = Protocol.DragCup.getZ(cup);
+                }
+                else if (messageId == Protocol.PutCup.ID)
+                {
+                    visible = true;
+                    x = Protocol.PutCup.getX(cup);
+                    y = Protocol.PutCup.getY(cup);
+                }
+            }
+            msgs[idx+1] = Protocol.CupState.create(m_byteBufferPool, (short) idx, visible, x, y, z);
+        }
+        return msgs;
+    }
+
+    /* Each message of the table state is counted by the game session,
+     * so they are sent one by one.
+     */
+    private void sendTableStateLocked()
+    {
+        for (RetainableByteBuffer msg : createTableState())
+        {
+            if (m_session != null)
+                m_session.sendMessage(msg);
+            for (SpectatorSession spectator : m_spectators)
+                spectator.sendMessage(msg, false);
+            msg.release();
+        }
+    }
+
+    public void start(TimerQueue timerQueue)
+    {
+        timerQueue.schedule(m_tableStateTimer, Prefs.TABLE_STATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop(TimerQueue timerQueue) throws InterruptedException
+    {
+        timerQueue.cancel(m_tableStateTimer);
+    }
+
+    public void setSession(GameServerSession session)
+    {
+        m_lock.lock();
+        try
+        {
+            m_session = session;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    public void sendMessage(RetainableByteBuffer msg)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_session != null)
+                m_session.sendMessage(msg);
+            sendToSpectatorsLocked(msg);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /* For messages the client should not receive */
+    public void sendToSpectators(RetainableByteBuffer msg)
+    {
+        m_lock.lock();
+        try
+        {
+            sendToSpectatorsLocked(msg);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /* Sends the handshake reply and the current table state,
+     * then the guess of the round if any,
+     * returns false if there are too many spectators already.
+     */
+    public boolean addSpectator(SpectatorSession spectator, ByteBuffer handshakeReply)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_spectators.size() == Prefs.MAX_SPECTATORS)
+                return false;
+
+            spectator.sendMessage(handshakeReply);
+            for (RetainableByteBuffer msg : createTableState())
+            {
+                spectator.sendMessage(msg, false);
+                msg.release();
+            }
+            if (m_guess != null)
+                spectator.sendMessage(m_guess, false);
+            if (m_guessReply != null)
+                spectator.sendMessage(m_guessReply, false);
+
+            m_spectators.add(spectator);
+            return true;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    public void removeSpectator(SpectatorSession spectator)
+    {
+        m_lock.lock();
+        try
+        {
+            m_spectators.remove(spectator);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    public int getSpectators()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_spectators.size();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /* Releases the table state, sessions are closed by the collider stop */
+    public void close()
+    {
+        m_lock.lock();
+        try
+        {
+            clearState();
+            m_spectators.clear();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.util.Log;
 import android.view.Window;
 import android.view.WindowManager;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 
 public class GameClientActivity extends GameActivity
 {
@@ -42,11 +43,15 @@ public class GameClientActivity extends GameActivity
 
         final String deviceId = (String) getIntent().getSerializableExtra(MainActivity.EXTRA_DEVICE_ID);
         final String playerName = (String) getIntent().getSerializableExtra(MainActivity.EXTRA_PLAYER_NAME);
-        final InetSocketAddress serverAddr = (InetSocketAddress) getIntent().getSerializableExtra(MainActivity.EXTRA_SERVER_ADDRESS);
+        final ArrayList<?> serverAddrList = (ArrayList<?>) getIntent().getSerializableExtra(MainActivity.EXTRA_SERVER_ADDRESSES);
+        final InetSocketAddress [] serverAddrs = new InetSocketAddress[serverAddrList.size()];
+        for (int idx=0; idx<serverAddrs.length; idx++)
+            serverAddrs[idx] = (InetSocketAddress) serverAddrList.get(idx);
         final String serverDeviceId = (String) getIntent().getSerializableExtra(MainActivity.EXTRA_SERVER_DEVICE_ID);
         final String serverPlayerName = (String) getIntent().getSerializableExtra(MainActivity.EXTRA_SERVER_PLAYER_NAME);
+        final boolean spectator = getIntent().getBooleanExtra(MainActivity.EXTRA_SPECTATOR, false);
 
-        m_view = new GameClientView(this, deviceId, playerName, serverAddr, serverDeviceId, serverPlayerName);
+        m_view = new GameClientView(this, deviceId, playerName, serverAddrs, serverDeviceId, serverPlayerName, spectator);
         setContentView(m_view);
     }
 
@@ -25,15 +25,19 @@ import org.jsl.collider.StreamDefragger;
 
 public class GameClientSession extends GameSession
 {
+    private static final String LOG_TAG = GameClientSession.class.getSimpleName();
+
     private final GameClientView m_view;
+    private GameClientView.TableState m_tableState; /* collider thread */
 
     public GameClientSession(
             Session session,
             StreamDefragger streamDefragger,
             PingConfig pingConfig,
-            GameClientView view)
+            GameClientView view,
+            int resumeToken)
     {
-        super(session, streamDefragger, pingConfig, view);
+        super(session, streamDefragger, pingConfig, view, resumeToken);
         m_view = view;
     }
 
@@ -119,6 +123,74 @@ public class GameClientSession extends GameSession
                 m_view.guessCT(Protocol.Guess.getCupWithBall(msg));
             break;
 
+            case Protocol.GuessReply.ID:
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.GuessReply.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+                m_view.guessReplyCT(Protocol.GuessReply.getFound(msg));
+            break;
+
+            case Protocol.TableState.ID:
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.TableState.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+                m_tableState = new GameClientView.TableState(
+                        Protocol.TableState.getPhase(msg),
+                        Protocol.TableState.getBallVisible(msg),
+                        Protocol.TableState.getBallDrag(msg),
+                        Protocol.TableState.getBallX(msg),
+                        Protocol.TableState.getBallY(msg),
+                        Protocol.TableState.getCups(msg));
+                if (m_tableState.cupVisible.length == 0)
+                {
+                    m_view.setTableStateCT(m_tableState);
+                    m_tableState = null;
+                }
+            break;
+
+            case Protocol.CupState.ID:
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.CupState.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+                if (m_tableState != null)
+                {
+                    final int id = Protocol.CupState.getId(msg);
+                    if ((id < 0) || (id >= m_tableState.cupVisible.length))
+                    {
+                        Log.w(LOG_TAG, "Invalid cup id " + id + " in the table state");
+                        m_tableState = null;
+                    }
+                    else if (m_tableState.setCup(id,
+                            Protocol.CupState.getVisible(msg),
+                            Protocol.CupState.getX(msg),
+                            Protocol.CupState.getY(msg),
+                            Protocol.CupState.getZ(msg)))
+                    {
+                        m_view.setTableStateCT(m_tableState);
+                        m_tableState = null;
+                    }
+                }
+            break;
+
+            case Protocol.NewRound.ID:
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.NewRound.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+                m_view.newRoundCT(Protocol.NewRound.getRound(msg));
+            break;
+
             default:
                 if (BuildConfig.DEBUG)
                     throw new AssertionError();
@@ -126,9 +198,13 @@ public class GameClientSession extends GameSession
         return 0;
     }
 
-    public void onConnectionClosed()
+    boolean onConnectionLost()
+    {
+        return m_view.onConnectionLost(this);
+    }
+
+    void onSessionClosed()
     {
         m_view.onServerDisconnected();
-        super.onConnectionClosed();
     }
 }
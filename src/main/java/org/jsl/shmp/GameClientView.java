@@ -36,7 +36,9 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class GameClientView extends GameView
 {
@@ -61,18 +63,19 @@ public class GameClientView extends GameView
     private static final int TOUCH_STATE_TOUCH = 1;
     private static final int TOUCH_STATE_DRAG = 2;
 
+    private static final long RESUME_RETRY_INTERVAL = 500; /* ms */
+    private static final long CONNECT_ATTEMPT_DELAY = 250; /* ms */
+
     private class GameConnector extends Connector
     {
         private final PingConfig m_pingConfig;
-        private final short m_desiredTableHeight;
         private final String m_deviceId;
         private final String m_playerName;
 
-        public GameConnector(InetSocketAddress addr, PingConfig pingConfig, short desiredTableHeight, String deviceId, String playerName)
+        public GameConnector(InetSocketAddress addr, PingConfig pingConfig, String deviceId, String playerName)
         {
             super( addr );
             m_pingConfig = pingConfig;
-            m_desiredTableHeight = desiredTableHeight;
             m_deviceId = deviceId;
             m_playerName = playerName;
         }
@@ -80,118 +83,146 @@ public class GameClientView extends GameView
         public Session.Listener createSessionListener( Session session )
         {
             Log.d( LOG_TAG, session.getRemoteAddress().toString() + ": connected" );
+            onConnectorDone(this);
             return new HandshakeClientSession(
                     GameClientView.this,
                     session,
                     m_pingConfig,
-                    m_desiredTableHeight,
                     m_deviceId,
-                    m_playerName);
+                    m_playerName,
+                    m_serverDeviceId);
         }
 
         public void onException( IOException ex )
         {
-            m_state = STATE_FINISHED; // avoid score discount
-            Log.i(LOG_TAG, getAddr().toString(), ex);
-            m_activity.showMessageAndFinish(R.string.error, R.string.cant_connect_to_server, m_serverDeviceId);
+            Log.i(LOG_TAG, getAddr().toString() + ": " + ex.toString());
+            onConnectorDone(this);
+            onConnectFailed();
         }
     }
 
-    public static class Ball
+    private class ResumeConnector extends Connector
     {
-        private static final int MODEL = 0;
-        private static final int MODEL_INVERTED = 16;
-        private static final int SHADOW = 32;
-
-        private final ModelBall m_model;
-        private final float [] m_matrix;
-        private boolean m_visible;
-        private float m_x;
-        private float m_y;
-        private float m_z;
+        private final GameClientSession m_gameSession;
 
-        private static void orientMatrixTo(float [] m, int offset, float [] to, int toOffset, float [] tmp, int tmpOffset)
+        public ResumeConnector(GameClientSession gameSession)
         {
-            Vector.set(tmp, tmpOffset, /*x*/0f, /*y*/0f, /*z*/1f);
-            Vector.crossProduct(tmp, tmpOffset+4, tmp, tmpOffset, to, toOffset);
-            final double angle = (Math.asin(Vector.length(tmp, tmpOffset+4) / Vector.length(to, toOffset)) * 180d / Math.PI);
-            Matrix.setRotateM(m, offset, (float)angle, tmp[tmpOffset+4], tmp[tmpOffset+4+1], tmp[tmpOffset+4+2]);
+            super(m_serverAddr);
+            m_gameSession = gameSession;
         }
 
-        public Ball(Context context, int color) throws IOException
+        public Session.Listener createSessionListener(Session session)
         {
-            m_model = new ModelBall(context, color);
-            m_matrix = new float[16*3];
-            m_visible = false;
+            Log.d(LOG_TAG, session.getRemoteAddress().toString() + ": connected, resume session");
+            return new ResumeClientSession(GameClientView.this, session, getPingConfig(), m_gameSession);
         }
 
-        public void updateMatrix(float x, float y, float z, float radius, Vector eyePosition, Vector light, float [] tmp)
+        public void onException(IOException ex)
         {
-            m_visible = true;
-            m_x = x;
-            m_y = y;
-            m_z = z;
+            Log.i(LOG_TAG, getAddr().toString() + ": " + ex.toString());
+            scheduleResume(m_gameSession);
+        }
+    }
 
-            updateMatrix(radius, eyePosition, tmp);
+    public static class Ball
+    {
+        private final ModelBall m_model;
+        private final float [] m_ball; /* center, radius */
+        private boolean m_visible;
+        private boolean m_shadowDirty;
 
-            // shadow model matrix = [translate matrix] x [orient matrix] x [scale matrix]
-            Vector.set(tmp, 16, light.getX()-m_x, light.getY()-m_y, light.getZ()-m_z);
-            orientMatrixTo(tmp, 0, tmp, 16, tmp, 20);
-            Matrix.setIdentityM(tmp, 16);
-            Matrix.scaleM(tmp, 16, radius, radius, radius);
-            Matrix.multiplyMM(tmp, 32, tmp, 0, tmp, 16);
-            Matrix.setIdentityM(tmp, 0);
-            Matrix.translateM(tmp, 0, m_x, m_y, m_z);
-            Matrix.multiplyMM(m_matrix, SHADOW, tmp, 0, tmp, 32);
+        public Ball(Context context, int color) throws IOException
+        {
+            m_model = new ModelBall(context, color);
+            m_ball = new float[4];
+            m_visible = false;
         }
 
-        public void updateMatrix(float radius, Vector eyePosition, float [] tmp)
+        public void updateMatrix(float x, float y, float z, float radius)
         {
-            // model matrix = [translate matrix] x [orient matrix] x [scale matrix]
-            Vector.set(tmp, 16, eyePosition.getX()-m_x, eyePosition.getY()-m_y, eyePosition.getZ()-m_z);
-            orientMatrixTo(tmp, 0, tmp, 16, tmp, 19);
-            Matrix.setIdentityM(tmp, 16);
-            Matrix.scaleM(tmp, 16, radius, radius, radius);
-            Matrix.multiplyMM(tmp, 32, tmp, 0, tmp, 16);
-            Matrix.setIdentityM(tmp, 0);
-            Matrix.translateM(tmp, 0, m_x, m_y, m_z);
-            Matrix.multiplyMM(m_matrix, MODEL, tmp, 0, tmp, 32);
-            Matrix.invertM(m_matrix, MODEL_INVERTED, m_matrix, MODEL);
+            m_ball[0] = x;
+            m_ball[1] = y;
+            m_ball[2] = z;
+            m_ball[3] = radius;
+            m_visible = true;
+            m_shadowDirty = true;
         }
 
-        public void draw(float [] vpMatrix, Vector light, float [] tmp)
+        /* Ball quad is oriented to the eye in the vertex shader,
+         * so camera rotation does not require any update.
+         */
+        public void draw(float [] vpMatrix, Vector eyePosition, Vector light)
         {
             if (m_visible)
             {
-                Matrix.multiplyMM(tmp, 0, vpMatrix, 0, m_matrix, MODEL);
-                Matrix.multiplyMV(tmp, 16, m_matrix, MODEL_INVERTED, light.v, light.offs);
-                tmp[16+3] = light.v[light.offs+4];
-                tmp[16+4] = light.v[light.offs+5];
-                tmp[16+5] = light.v[light.offs+6];
-                m_model.draw(tmp, 0, tmp, 16);
+                m_model.draw(vpMatrix, 0, m_ball,
+                        eyePosition.getX(), eyePosition.getY(), eyePosition.getZ(), 1f, light);
             }
         }
 
-        public void drawShadow(float [] vpMatrix, int vpMatrixOffset, float [] tmp)
+        public void drawShadow(float [] vpMatrix, int vpMatrixOffset, Vector light)
         {
             if (m_visible)
+                m_model.drawShadow(vpMatrix, vpMatrixOffset, m_ball, light);
+        }
+
+        public void setVisible( boolean visible )
+        {
+            if (m_visible != visible)
             {
-                Matrix.multiplyMM(tmp, 0, vpMatrix, vpMatrixOffset, m_matrix, SHADOW);
-                m_model.drawShadow(tmp, 0);
+                m_visible = visible;
+                m_shadowDirty = true;
             }
         }
 
-        public void setVisible( boolean visible )
+        public boolean resetShadowDirty()
+        {
+            final boolean ret = m_shadowDirty;
+            m_shadowDirty = false;
+            return ret;
+        }
+    }
+
+    /* Table state received from the server,
+     * applied at once when all cups are received.
+     */
+    public static class TableState
+    {
+        public final short phase;
+        public final boolean ballVisible;
+        public final boolean ballDrag;
+        public final float ballX;
+        public final float ballY;
+        public final boolean [] cupVisible;
+        public final float [] cup; /* x, y, z */
+        private int m_cups;
+
+        public TableState(short phase, boolean ballVisible, boolean ballDrag, float ballX, float ballY, int cups)
         {
-            m_visible = visible;
+            this.phase = phase;
+            this.ballVisible = ballVisible;
+            this.ballDrag = ballDrag;
+            this.ballX = ballX;
+            this.ballY = ballY;
+            this.cupVisible = new boolean[cups];
+            this.cup = new float[cups*3];
+        }
+
+        /* Returns true if the state is complete */
+        public boolean setCup(int id, boolean visible, float x, float y, float z)
+        {
+            cupVisible[id] = visible;
+            cup[id*3] = x;
+            cup[id*3+1] = y;
+            cup[id*3+2] = z;
+            return (++m_cups == cupVisible.length);
         }
     }
 
     public static class Cup
     {
-        private final ModelCup m_model;
-        private final float [] m_matrix;
-        private boolean m_visible;
+        private final int m_id;
+        private final TransformStore m_transforms;
         private float m_x;
         private float m_y;
         private float m_z;
@@ -199,23 +230,16 @@ public class GameClientView extends GameView
         private float m_lastFrameX;
         private float m_lastFrameY;
 
-        public Cup(ModelCup model)
+        public Cup(int id, TransformStore transforms)
         {
-            m_model = model;
-            m_matrix = new float[16*2];
-            m_visible = false;
+            m_id = id;
+            m_transforms = transforms;
             m_lastFrameId = -1;
         }
 
-        public boolean updateMatrix(float x, float y, float z, float radius, int frameId, float [] tmp)
+        public boolean updateMatrix(float x, float y, float z, float radius, int frameId)
         {
-            Matrix.setIdentityM(tmp, 0);
-            Matrix.translateM(tmp, 0, x, y, z);
-            Matrix.setIdentityM(tmp, 16);
-            Matrix.scaleM(tmp, 16, radius, radius, radius);
-            Matrix.multiplyMM(m_matrix, 0, tmp, 0, tmp, 16);
-            Matrix.invertM(m_matrix, 16, m_matrix, 0);
-            m_visible = true;
+            m_transforms.set(m_id, x, y, z, radius);
             m_x = x;
             m_y = y;
             m_z = z;
@@ -238,53 +262,14 @@ public class GameClientView extends GameView
             return false;
         }
 
-        public void draw(float [] vpMatrix, Vector eyePosition, Vector light, ShadowObject shadowObject, float [] tmp)
-        {
-            if (m_visible)
-            {
-                if (shadowObject == null)
-                {
-                    Matrix.multiplyMM(tmp, 0, vpMatrix, 0, m_matrix, 0);
-                    Matrix.multiplyMV(tmp, 16, m_matrix, 16, eyePosition.v, eyePosition.offs);
-                    Matrix.multiplyMV(tmp, 20, m_matrix, 16, light.v, light.offs);
-                    tmp[20+3] = light.get(4);
-                    tmp[20+4] = light.get(5);
-                    tmp[20+5] = light.get(6);
-                    m_model.draw(tmp, 0, tmp, 16, tmp, 20, null, 0, 0);
-                }
-                else
-                {
-                    final float[] shadowMatrix = shadowObject.matrix;
-                    final int shadowTextureId = shadowObject.textureId;
-                    Matrix.multiplyMM(tmp, 0, vpMatrix, 0, m_matrix, 0);
-                    Matrix.multiplyMV(tmp, 16, m_matrix, 16, eyePosition.v, eyePosition.offs);
-                    Matrix.multiplyMV(tmp, 20, m_matrix, 16, light.v, light.offs);
-                    Matrix.multiplyMM(tmp, 32, shadowMatrix, 16, m_matrix, 0);
-                    tmp[20+3] = light.get(4);
-                    tmp[20+4] = light.get(5);
-                    tmp[20+5] = light.get(6);
-                    m_model.draw(tmp, 0, tmp, 16, tmp, 20, tmp, 32, shadowTextureId);
-                }
-            }
-        }
-
-        public void drawShadow(float [] vpMatrix, int vpMatrixOffset, float [] tmp)
-        {
-            if (m_visible)
-            {
-                Matrix.multiplyMM(tmp, 0, vpMatrix, vpMatrixOffset, m_matrix, 0);
-                m_model.drawShadow(tmp, 0);
-            }
-        }
-
         public void setVisible( boolean visible )
         {
-            m_visible = visible;
+            m_transforms.setVisible(m_id, visible);
         }
 
         public boolean isVisible()
         {
-            return m_visible;
+            return m_transforms.isVisible(m_id);
         }
 
         public float getX() { return m_x; }
@@ -344,8 +329,6 @@ public class GameClientView extends GameView
               /*up Y*/     upY,
               /*up Z*/     upZ);
         Matrix.multiplyMM(m_tableMatrix, 0, m_tableMatrix, 16, m_tableMatrix, 32);
-
-        m_ball.updateMatrix(m_ballRadius, m_eyePosition, m_tmpMatrix);
     }
 
     private void onTouchEventRT(float touchX, float touchY, int frameId)
@@ -384,25 +367,27 @@ public class GameClientView extends GameView
             s_stateUpdater.set( this, STATE_FINISHED );
 
             Cup cup = m_cup[touchCupIdx];
-            cup.updateMatrix( cup.getX(), cup.getY(), m_ballRadius*4, m_ballRadius, frameId, m_tmpMatrix );
+            cup.updateMatrix( cup.getX(), cup.getY(), m_ballRadius*4, m_ballRadius, frameId );
 
             boolean found;
 
             if (touchCupIdx == m_cupWithBall)
             {
                 setBottomLineText(R.string.you_win, WIN_TEXT_COLOR, GAMBLE_TIMER_FONT_SIZE);
+                m_wins++;
                 found = true;
             }
             else
             {
                 setBottomLineText(R.string.you_lose, LOSE_TEXT_COLOR, GAMBLE_TIMER_FONT_SIZE);
+                m_losses++;
 
                 cup = m_cup[m_cupWithBall];
-                cup.updateMatrix(cup.getX(), cup.getY(), m_ballRadius*4, m_ballRadius, frameId, m_tmpMatrix);
+                cup.updateMatrix(cup.getX(), cup.getY(), m_ballRadius*4, m_ballRadius, frameId);
                 found = false;
             }
 
-            m_ball.updateMatrix(cup.getX(), cup.getY(), m_ballRadius, m_ballRadius, m_eyePosition, m_light, m_tmpMatrix);
+            m_ball.updateMatrix(cup.getX(), cup.getY(), m_ballRadius, m_ballRadius);
 
             final ByteBuffer msg = Protocol.GuessReply.create( found );
             m_session.sendMessage( msg );
@@ -448,9 +433,11 @@ public class GameClientView extends GameView
     }
 
     private final GameClientActivity m_activity;
-    private final InetSocketAddress m_serverAddr;
+    private final InetSocketAddress [] m_serverAddrs;
+    private volatile InetSocketAddress m_serverAddr;
     private final String m_serverDeviceId;
     private final String m_serverPlayerName;
+    private final boolean m_spectator; /* watches the game only */
     private final float [] m_tmpMatrix;
     private GameClientSession m_session;
     private boolean m_pause;
@@ -467,11 +454,21 @@ public class GameClientView extends GameView
     private Ball m_ball;
     private float m_ballRadius;
     private Cup [] m_cup;
+    private TransformStore m_cupTransforms;
+    private ModelCup m_modelCup;
 
     private final TimerManager m_timerManager;
 
+    private final ReentrantLock m_connectLock;
+    private final HashSet<GameConnector> m_connectors; /* not connected yet, guarded by m_connectLock */
+    private int m_connectAttempts;
+    private int m_connectFailures;
+    private boolean m_connected;
+
     private volatile int m_state;
     private int m_cupWithBall;
+    private int m_wins; /* render thread */
+    private int m_losses; /* render thread */
 
     private float m_bottomLineX;
     private float m_bottomLineY;
@@ -489,19 +486,170 @@ public class GameClientView extends GameView
             GameClientActivity activity,
             String deviceId,
             String playerName,
-            InetSocketAddress serverAddr,
+            InetSocketAddress [] serverAddrs,
             String serverDeviceId,
-            String serverPlayerName)
+            String serverPlayerName,
+            boolean spectator)
     {
         super(activity, deviceId, playerName);
         m_activity = activity;
-        m_serverAddr = serverAddr;
+        m_serverAddrs = serverAddrs;
+        m_serverAddr = serverAddrs[0];
         m_serverDeviceId = serverDeviceId;
         m_serverPlayerName = serverPlayerName;
+        m_spectator = spectator;
         m_tmpMatrix = new float[16*5];
         m_eyePosition = new Vector();
         m_timerManager = new TimerManager();
+        m_connectLock = new ReentrantLock();
+        m_connectors = new HashSet<GameConnector>();
         m_state = STATE_WATCH;
+
+        /* Connect and handshake run in parallel with the render setup,
+         * handshake request waits for the surface size only.
+         */
+        try
+        {
+            startCollider();
+            connectNext();
+        }
+        catch (final IOException ex)
+        {
+            Log.e(LOG_TAG, ex.toString(), ex);
+        }
+    }
+
+    /* Server addresses are tried one by one with a short delay,
+     * next attempt starts without waiting if the previous one failed.
+     * The first connection completed the handshake wins,
+     * others are closed before or after the handshake request.
+     */
+    private void connectNext()
+    {
+        final GameConnector connector;
+        final boolean last;
+        m_connectLock.lock();
+        try
+        {
+            if (m_connected || (m_connectAttempts == m_serverAddrs.length))
+                return;
+            final InetSocketAddress addr = m_serverAddrs[m_connectAttempts++];
+            last = (m_connectAttempts == m_serverAddrs.length);
+            connector = new GameConnector(addr, getPingConfig(), getDeviceId(), getPlayerName());
+            m_connectors.add(connector);
+        }
+        finally
+        {
+            m_connectLock.unlock();
+        }
+
+        getCollider().addConnector(connector);
+
+        if (!last)
+        {
+            getTimerQueue().schedule(new TimerQueue.Task() {
+                public long run() {
+                    connectNext();
+                    return 0;
+                }
+            }, CONNECT_ATTEMPT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onConnectorDone(GameConnector connector)
+    {
+        m_connectLock.lock();
+        try
+        {
+            m_connectors.remove(connector);
+        }
+        finally
+        {
+            m_connectLock.unlock();
+        }
+    }
+
+    public void onConnectFailed()
+    {
+        final boolean failed;
+        m_connectLock.lock();
+        try
+        {
+            failed = (!m_connected && (++m_connectFailures == m_serverAddrs.length));
+        }
+        finally
+        {
+            m_connectLock.unlock();
+        }
+
+        if (failed)
+        {
+            m_state = STATE_FINISHED; // avoid score discount
+            m_activity.showMessageAndFinish(R.string.error, R.string.cant_connect_to_server,
+                    (m_spectator ? null : m_serverDeviceId));
+        }
+        else
+            connectNext();
+    }
+
+    public boolean isSpectator()
+    {
+        return m_spectator;
+    }
+
+    public boolean isConnected()
+    {
+        m_connectLock.lock();
+        try
+        {
+            return m_connected;
+        }
+        finally
+        {
+            m_connectLock.unlock();
+        }
+    }
+
+    /* Returns false if another connection already completed the handshake,
+     * connectors still waiting for the connection are removed otherwise.
+     */
+    public boolean onHandshakeReplyOk(InetSocketAddress serverAddr)
+    {
+        final GameConnector [] connectors;
+        m_connectLock.lock();
+        try
+        {
+            if (m_connected)
+                return false;
+            m_connected = true;
+            /* Session is resumed using the address worked */
+            m_serverAddr = serverAddr;
+            connectors = m_connectors.toArray(new GameConnector[m_connectors.size()]);
+            m_connectors.clear();
+        }
+        finally
+        {
+            m_connectLock.unlock();
+        }
+
+        boolean interrupted = false;
+        final Collider collider = getCollider();
+        for (GameConnector connector : connectors)
+        {
+            try
+            {
+                collider.removeConnector(connector);
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w(LOG_TAG, ex.toString());
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return true;
     }
 
     public void onSurfaceCreated(GL10 gl, EGLConfig config)
@@ -511,7 +659,6 @@ public class GameClientView extends GameView
 
     public void onSurfaceChanged(GL10 gl, int width, int height)
     {
-        /* Looks like a better place to start all than surfaceCreated() */
         super.onSurfaceChanged(gl, width, height);
 
         final float [] light =
@@ -528,21 +675,7 @@ public class GameClientView extends GameView
         m_light = new Vector(light, 0);
         m_shadowObject = ShadowObject.create(width, m_light, m_tmpMatrix);
 
-        try
-        {
-            final Collider collider = startCollider();
-            final Connector connector = new GameConnector(
-                    m_serverAddr,
-                    getPingConfig(),
-                    getDesiredTableHeight(width, height),
-                    getDeviceId(),
-                    getPlayerName() );
-            collider.addConnector(connector);
-        }
-        catch (final IOException ex)
-        {
-            Log.e(LOG_TAG, ex.toString(), ex);
-        }
+        setDesiredTableHeight(width, height);
     }
 
     public void onDrawFrame(float [] vpMatrix, Canvas3D canvas3D)
@@ -553,7 +686,20 @@ public class GameClientView extends GameView
 
         if (m_table != null)
         {
+            final int cups = m_cupTransforms.pack();
+
             if (m_shadowObject != null)
+            {
+                /* Camera rotation does not change the shadow map,
+                 * only ball or cup movement does.
+                 */
+                boolean shadowDirty = m_ball.resetShadowDirty();
+                shadowDirty |= m_cupTransforms.resetShadowDirty();
+                if (shadowDirty)
+                    m_shadowObject.setDirty();
+            }
+
+            if ((m_shadowObject != null) && m_shadowObject.resetDirty())
             {
                 final int frameBufferId = m_shadowObject.frameBufferId;
                 final int mapSize = m_shadowObject.mapSize;
@@ -566,18 +712,16 @@ public class GameClientView extends GameView
                 GLES20.glClearColor(0f, 0f, 0f, 1f);
                 GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT|GLES20.GL_COLOR_BUFFER_BIT);
 
-                m_ball.drawShadow(m_shadowObject.matrix, 0, tmp);
-                for (Cup cup : m_cup)
-                    cup.drawShadow(m_shadowObject.matrix, 0, tmp);
+                m_ball.drawShadow(m_shadowObject.matrix, 0, m_light);
+                m_modelCup.drawShadow(m_shadowObject.matrix, 0, m_cupTransforms.getPacked(), cups);
 
                 GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
                 GLES20.glViewport(0, 0, viewWidth, viewHeight);
             }
 
             m_table.draw(m_tableMatrix, m_eyePosition, m_light, m_shadowObject, tmp, 0);
-            m_ball.draw(m_tableMatrix, m_light, tmp);
-            for (Cup cup : m_cup)
-                cup.draw(m_tableMatrix, m_eyePosition, m_light, m_shadowObject, tmp);
+            m_ball.draw(m_tableMatrix, m_eyePosition, m_light);
+            m_modelCup.draw(m_tableMatrix, m_eyePosition, m_light, m_shadowObject, m_cupTransforms.getPacked(), cups, tmp, 0);
         }
 
         if (m_bottomLineString != null)
@@ -596,7 +740,7 @@ public class GameClientView extends GameView
         }
     }
 
-    public void onConnected(GameClientSession session, short virtualTableHeight, short virtualBallRadius)
+    public void onConnected(GameClientSession session, short virtualTableHeight, short virtualBallRadius, final short caps)
     {
         final float viewWidth = getWidth();
         final float viewHeight = getHeight();
@@ -606,7 +750,7 @@ public class GameClientView extends GameView
         m_tableWidth = viewWidth;
         m_tableHeight = (virtualTableHeight * m_scale);
         m_ballRadius = (virtualBallRadius * m_scale);
-        final Bitmap statusLine = createStatusLine( -1, m_serverPlayerName );
+        final Bitmap statusLine = createStatusLine( m_serverPlayerName );
 
         Log.d( LOG_TAG, "onConnected: tableSize=(" + m_tableWidth + ", " + m_tableHeight + ")" );
 
@@ -641,10 +785,11 @@ public class GameClientView extends GameView
                     m_table = new Table(context, macro);
                     m_ball = new Ball(context, BALL_COLOR);
 
-                    final ModelCup modelCup = new ModelCup(context, CUP_STRIPES, macro);
-                    m_cup = new Cup[3];
+                    m_modelCup = new ModelCup(context, CUP_STRIPES, macro);
+                    m_cup = new Cup[caps];
+                    m_cupTransforms = new TransformStore(caps);
                     for (int idx = 0; idx< m_cup.length; idx++)
-                        m_cup[idx] = new Cup(modelCup);
+                        m_cup[idx] = new Cup(idx, m_cupTransforms);
                     m_cupWithBall = -1;
                 }
                 catch (final IOException ex)
@@ -660,6 +805,29 @@ public class GameClientView extends GameView
         } );
     }
 
+    /* Collider thread, returns true if game session should wait for resume */
+    public boolean onConnectionLost(GameClientSession session)
+    {
+        /* Spectator session can not be resumed */
+        if (m_pause || m_spectator)
+            return false;
+        Log.i(LOG_TAG, "Connection lost, resume session");
+        scheduleResume(session);
+        return true;
+    }
+
+    /* Tries to connect again while the session waits for resume */
+    public void scheduleResume(final GameClientSession session)
+    {
+        getTimerQueue().schedule(new TimerQueue.Task() {
+            public long run() {
+                if (!m_pause && session.isWaitingResume())
+                    getCollider().addConnector(new ResumeConnector(session));
+                return 0;
+            }
+        }, RESUME_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
     public void onServerDisconnected()
     {
         if (!m_pause)
@@ -685,7 +853,8 @@ public class GameClientView extends GameView
                 {
                     executeOnRenderThread( new RenderThreadRunnable() {
                         public boolean runOnRenderThread(int frameId) {
-                            setBottomLineText(R.string.thimblerigger_left_game, Color.GREEN, 0.4f);
+                            setBottomLineText((m_spectator ? R.string.connection_lost : R.string.thimblerigger_left_game),
+                                    Color.GREEN, 0.4f);
                             return false;
                         }
                     } );
@@ -709,7 +878,7 @@ public class GameClientView extends GameView
 
         paint.setColor(Color.WHITE);
         paint.setTextAlign(Paint.Align.CENTER);
-        canvas.drawText(m_serverAddr.toString(), 0, textY, paint);
+        canvas.drawText(m_serverAddrs[0].toString(), 0, textY, paint);
 
         return bitmap;
     }
@@ -816,17 +985,6 @@ public class GameClientView extends GameView
         return true;
     }
 
-    public void setPing(int ping)
-    {
-        final Bitmap statusLine = createStatusLine( ping, m_serverPlayerName );
-        executeOnRenderThread( new RenderThreadRunnable() {
-            public boolean runOnRenderThread(int frameId) {
-                setStatusLine(statusLine);
-                return false;
-            }
-        } );
-    }
-
     public void dragBallCT(float virtualX, float virtualY, final float rm)
     {
         /* ball position is relative to the center of the table,
@@ -837,7 +995,7 @@ public class GameClientView extends GameView
         final float y = -(virtualY * m_scale);
         executeOnRenderThread( new RenderThreadRunnable() {
             public boolean runOnRenderThread(int frameId) {
-                m_ball.updateMatrix(x, y, m_ballRadius*rm, m_ballRadius, m_eyePosition, m_light, m_tmpMatrix);
+                m_ball.updateMatrix(x, y, m_ballRadius*rm, m_ballRadius);
                 return false;
             }
         } );
@@ -870,7 +1028,7 @@ public class GameClientView extends GameView
         final int cupId = id;
         executeOnRenderThread( new RenderThreadRunnable() {
             public boolean runOnRenderThread(int frameId) {
-                return m_cup[cupId].updateMatrix(x, y, z, m_ballRadius, frameId, m_tmpMatrix);
+                return m_cup[cupId].updateMatrix(x, y, z, m_ballRadius, frameId);
             }
         } );
     }
@@ -912,6 +1070,14 @@ public class GameClientView extends GameView
 
         executeOnRenderThread( new RenderThreadRunnable() {
             public boolean runOnRenderThread(int frameId) {
+                if (m_spectator)
+                {
+                    /* Spectator watches the client guessing */
+                    m_cupWithBall = capWithBall;
+                    setBottomLineText(R.string.guess, Color.LTGRAY, 0.5f);
+                    return false;
+                }
+
                 for (;;)
                 {
                     final int state = s_stateUpdater.get( GameClientView.this );
@@ -939,6 +1105,89 @@ public class GameClientView extends GameView
             Thread.currentThread().interrupt();
     }
 
+    /* Spectator only, shows the cup with ball after the client guess */
+    public void guessReplyCT(final boolean found)
+    {
+        executeOnRenderThread( new RenderThreadRunnable() {
+            public boolean runOnRenderThread(int frameId) {
+                if (s_stateUpdater.compareAndSet(GameClientView.this, STATE_WATCH, STATE_FINISHED) && (m_cupWithBall >= 0))
+                {
+                    final Cup cup = m_cup[m_cupWithBall];
+                    cup.updateMatrix(cup.getX(), cup.getY(), m_ballRadius*4, m_ballRadius, frameId);
+                    m_ball.updateMatrix(cup.getX(), cup.getY(), m_ballRadius, m_ballRadius);
+                    setBottomLineText((found ? R.string.ball_found : R.string.ball_not_found),
+                            (found ? WIN_TEXT_COLOR : LOSE_TEXT_COLOR), GAMBLE_TIMER_FONT_SIZE);
+                }
+                return false;
+            }
+        } );
+    }
+
+    /* Replaces the positions received by the single object updates,
+     * so the scene converges even if some of them were dropped.
+     */
+    public void setTableStateCT(final TableState tableState)
+    {
+        Log.d(LOG_TAG, "tableState: phase=" + tableState.phase);
+        executeOnRenderThread( new RenderThreadRunnable() {
+            public boolean runOnRenderThread(int frameId) {
+                /* Scene is controlled by the client after the guess */
+                if ((s_stateUpdater.get(GameClientView.this) != STATE_WATCH) ||
+                    (tableState.cupVisible.length != m_cup.length))
+                {
+                    return false;
+                }
+
+                if (tableState.ballVisible)
+                {
+                    /* Dragged ball is drawn raised as by dragBallCT() */
+                    final float rm = (tableState.ballDrag ? 2f : 1f);
+                    m_ball.updateMatrix(-(tableState.ballX * m_scale), -(tableState.ballY * m_scale), m_ballRadius*rm, m_ballRadius);
+                }
+                else
+                    m_ball.setVisible(false);
+
+                for (int idx=0; idx<m_cup.length; idx++)
+                {
+                    if (tableState.cupVisible[idx])
+                    {
+                        final float [] cup = tableState.cup;
+                        m_cup[idx].updateMatrix(
+                                -(cup[idx*3] * m_scale), -(cup[idx*3+1] * m_scale), (cup[idx*3+2] * m_scale),
+                                m_ballRadius, frameId);
+                    }
+                    else
+                        m_cup[idx].setVisible(false);
+                }
+                return false;
+            }
+        } );
+    }
+
+    public void newRoundCT(final int round)
+    {
+        Log.d(LOG_TAG, "newRound: round=" + round);
+        executeOnRenderThread( new RenderThreadRunnable() {
+            public boolean runOnRenderThread(int frameId) {
+                /* Server starts next round only after the guess reply */
+                if (s_stateUpdater.compareAndSet(GameClientView.this, STATE_FINISHED, STATE_WATCH))
+                {
+                    m_ball.setVisible(false);
+                    for (Cup cup : m_cup)
+                        cup.setVisible(false);
+                    m_cupWithBall = -1;
+                    m_bottomLineString = null;
+                    setStatusLine(m_spectator
+                            ? createStatusLine(m_serverPlayerName)
+                            : createStatusLine(m_serverPlayerName, m_wins, m_losses));
+                }
+                else if (BuildConfig.DEBUG)
+                    throw new AssertionError();
+                return false;
+            }
+        } );
+    }
+
     public Intent onPauseEx()
     {
         if (BuildConfig.DEBUG && m_pause)
@@ -972,13 +1221,28 @@ public class GameClientView extends GameView
         if (interrupted)
             Thread.currentThread().interrupt();
 
-        if (m_state == STATE_FINISHED)
+        /* Spectator does not play, nothing to count */
+        if (m_spectator)
             return null;
 
+        if (m_state == STATE_FINISHED)
+        {
+            /* Round interrupted by the server disconnect is not counted */
+            if ((m_wins + m_losses) == 0)
+                return null;
+            final Intent result = new Intent();
+            result.putExtra(MainActivity.EXTRA_DEVICE_ID, m_serverDeviceId);
+            result.putExtra(MainActivity.EXTRA_WINS, m_wins);
+            result.putExtra(MainActivity.EXTRA_LOSSES, m_losses);
+            return result;
+        }
+
         final Intent result = new Intent();
         result.putExtra(MainActivity.EXTRA_TITLE_ID, R.string.info);
         result.putExtra(MainActivity.EXTRA_MESSAGE_ID, R.string.quit_game_before_end);
         result.putExtra(MainActivity.EXTRA_DEVICE_ID, m_serverDeviceId);
+        result.putExtra(MainActivity.EXTRA_WINS, m_wins);
+        result.putExtra(MainActivity.EXTRA_LOSSES, m_losses + 1);
 
         return result;
     }
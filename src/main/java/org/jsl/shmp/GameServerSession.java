@@ -31,9 +31,10 @@ public class GameServerSession extends GameSession
             Session session,
             StreamDefragger streamDefragger,
             PingConfig pingConfig,
-            GameServerView view )
+            GameServerView view,
+            int resumeToken )
     {
-        super( session, streamDefragger, pingConfig, view );
+        super( session, streamDefragger, pingConfig, view, resumeToken );
         m_view = view;
     }
 
@@ -54,9 +55,13 @@ public class GameServerSession extends GameSession
         return 0;
     }
 
-    public void onConnectionClosed()
+    boolean onConnectionLost()
+    {
+        return m_view.onClientConnectionLost();
+    }
+
+    void onSessionClosed()
     {
         m_view.onClientDisconnected();
-        super.onConnectionClosed();
     }
 }
@@ -36,9 +36,12 @@ import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class GameServerView extends GameView
 {
@@ -94,103 +97,82 @@ public class GameServerView extends GameView
 
     public static class Ball
     {
-        private static final int MODEL = 0;
-        private static final int MODEL_INVERTED = 16;
-        private static final int SHADOW = 32;
-
-        private final ModelBall m_model;
-        private final float [] m_matrix;
+        private ModelBall m_model;
+        private final float [] m_ball; /* center, radius */
         private boolean m_visible;
+        private boolean m_shadowDirty;
 
-        private static void orientMatrixTo(float [] m, int offset, float [] to, int toOffset, float [] tmp, int tmpOffset)
+        public Ball()
         {
-            Vector.set(tmp, tmpOffset, 0f, 0f, 1f, 0f);
-            Vector.crossProduct(tmp, tmpOffset+4, tmp, tmpOffset, to, toOffset);
-            final double angle = (Math.asin(Vector.length(tmp, tmpOffset+4) / Vector.length(to, toOffset)) * 180d / Math.PI);
-            Matrix.setRotateM(m, offset, (float)angle, tmp[tmpOffset+4], tmp[tmpOffset+4+1], tmp[tmpOffset+4+2]);
+            m_ball = new float[4];
+            m_visible = false;
         }
 
-        public Ball(Context context, int color) throws IOException
+        /* Model is recreated for each EGL context, ball state is kept */
+        public void setModel(ModelBall model)
         {
-            m_model = new ModelBall(context, color);
-            m_matrix = new float[16*3];
-            m_visible = false;
+            m_model = model;
         }
 
-        public void updateMatrix(float x, float y, float z, float radius, Vector light, float [] tmp)
+        public void updateMatrix(float x, float y, float z, float radius)
         {
+            m_ball[0] = x;
+            m_ball[1] = y;
+            m_ball[2] = z;
+            m_ball[3] = radius;
             m_visible = true;
-
-            // model matrix = [translate matrix] x [scale matrix]
-            Matrix.setIdentityM(tmp, 0);
-            Matrix.scaleM(tmp, 0, radius, radius, radius);
-            Matrix.setIdentityM(tmp, 16);
-            Matrix.translateM(tmp, 16, x, y, z);
-            Matrix.multiplyMM(m_matrix, MODEL, tmp, 16, tmp, 0);
-            Matrix.invertM(m_matrix, MODEL_INVERTED, m_matrix, MODEL);
-
-            // shadow model matrix = [translate matrix] x [orient matrix] x [scale matrix]
-            Vector.set(tmp, 16, light.getX()-x, light.getY()-y, light.getZ()-z);
-            orientMatrixTo(tmp, 0, tmp, 16, tmp, 20);
-            Matrix.setIdentityM(tmp, 16);
-            Matrix.scaleM(tmp, 16, radius, radius, radius);
-            Matrix.multiplyMM(tmp, 32, tmp, 0, tmp, 16);
-            Matrix.setIdentityM(tmp, 0);
-            Matrix.translateM(tmp, 0, x, y, z);
-            Matrix.multiplyMM(m_matrix, SHADOW, tmp, 0, tmp, 32);
+            m_shadowDirty = true;
         }
 
-        public void draw(float [] vpMatrix, Vector light, float [] tmp, int tmpOffset)
+        public void draw(float [] vpMatrix, Vector light)
         {
+            /* Table is viewed from above, ball faces Z axis */
             if (m_visible)
-            {
-                Matrix.multiplyMM(tmp, tmpOffset, vpMatrix, 0, m_matrix, MODEL);
-                Matrix.multiplyMV(tmp, tmpOffset+16, m_matrix, MODEL_INVERTED, light.v, light.offs);
-                tmp[tmpOffset+16+3] = light.v[light.offs+4];
-                tmp[tmpOffset+16+4] = light.v[light.offs+5];
-                tmp[tmpOffset+16+5] = light.v[light.offs+6];
-                m_model.draw(tmp, tmpOffset, tmp, tmpOffset+16);
-            }
+                m_model.draw(vpMatrix, 0, m_ball, 0f, 0f, 1f, 0f, light);
         }
 
-        public void drawShadow(float [] vpMatrix, int vpMatrixOffset, float [] tmp)
+        public void drawShadow(float [] vpMatrix, int vpMatrixOffset, Vector light)
         {
             if (m_visible)
-            {
-                Matrix.multiplyMM(tmp, 0, vpMatrix, vpMatrixOffset, m_matrix, SHADOW);
-                m_model.drawShadow(tmp, 0);
-            }
+                m_model.drawShadow(vpMatrix, vpMatrixOffset, m_ball, light);
         }
 
         public void setVisible(boolean visible)
         {
-            m_visible = visible;
+            if (m_visible != visible)
+            {
+                m_visible = visible;
+                m_shadowDirty = true;
+            }
         }
 
         public boolean isVisible()
         {
             return m_visible;
         }
+
+        public boolean resetShadowDirty()
+        {
+            final boolean ret = m_shadowDirty;
+            m_shadowDirty = false;
+            return ret;
+        }
     }
 
     private static class Cup extends SceneObject
     {
         private final int m_id;
-        private final ModelCup m_model;
-        private final float [] m_matrix;
-        private boolean m_visible;
+        private final TransformStore m_transforms;
 
         private float m_eventX;
         private float m_eventY;
         private int m_state;
 
-        public Cup(int id, ModelCup model)
+        public Cup(int id, TransformStore transforms)
         {
             m_id = id;
-            m_model = model;
-            m_matrix = new float[16*2];
-            Matrix.setIdentityM( m_matrix, 0 );
-            m_visible = false;
+            m_transforms = transforms;
+            transforms.setVisible(id, false);
         }
 
         public int getID()
@@ -198,45 +180,9 @@ public class GameServerView extends GameView
             return m_id;
         }
 
-        public void updateMatrix(float x, float y, float radius, float [] tmp)
-        {
-            Matrix.setIdentityM(tmp, 0);
-            Matrix.translateM(tmp, 0, x, y, 0);
-            Matrix.setIdentityM(tmp, 16);
-            Matrix.scaleM(tmp, 16, radius, radius, radius);
-            Matrix.multiplyMM(m_matrix, 0, tmp, 0, tmp, 16);
-            Matrix.invertM(m_matrix, 16, m_matrix, 0);
-            m_visible = true;
-        }
-
-        public void draw(float [] vpMatrix, Vector eyePosition, Vector light, ShadowObject shadowObject, float [] tmp, int tmpOffset)
-        {
-            if (m_visible)
-            {
-                Matrix.multiplyMM(tmp, tmpOffset, vpMatrix, 0, m_matrix, 0);
-                Matrix.multiplyMV(tmp, tmpOffset+16, m_matrix, 16, eyePosition.v, eyePosition.offs);
-                Matrix.multiplyMV(tmp, tmpOffset+20, m_matrix, 16, light.v, light.offs);
-                tmp[tmpOffset+20+3] = light.get(4);
-                tmp[tmpOffset+20+4] = light.get(5);
-                tmp[tmpOffset+20+5] = light.get(6);
-                if (shadowObject == null)
-                    m_model.draw(tmp, tmpOffset, tmp, tmpOffset + 16, tmp, tmpOffset + 20, null, 0, 0);
-                else
-                {
-                    Matrix.multiplyMM(tmp, tmpOffset+32, shadowObject.matrix, 16, m_matrix, 0);
-                    m_model.draw(tmp, tmpOffset, tmp, tmpOffset + 16, tmp, tmpOffset + 20,
-                            tmp, tmpOffset + 32, shadowObject.textureId);
-                }
-            }
-        }
-
-        public void drawShadow(float [] vpMatrix, int vpMatrixOffset, float [] tmp)
+        public void updateMatrix(float x, float y, float radius)
         {
-            if (m_visible)
-            {
-                Matrix.multiplyMM(tmp, 0, vpMatrix, vpMatrixOffset, m_matrix, 0);
-                m_model.drawShadow(tmp, 0);
-            }
+            m_transforms.set(m_id, x, y, 0f, radius);
         }
 
         void setEventPosition(float x, float y)
@@ -267,7 +213,7 @@ public class GameServerView extends GameView
 
         void setVisible(boolean visible)
         {
-            m_visible = visible;
+            m_transforms.setVisible(m_id, visible);
         }
     }
 
@@ -290,7 +236,7 @@ public class GameServerView extends GameView
                             public void run() {
                                 m_state = STATE_WAIT_REPLY;
                                 final RetainableByteBuffer msg = Protocol.Guess.create(m_byteBufferPool, (short) m_cupWithBall);
-                                m_session.sendMessage(msg);
+                                m_broadcast.sendMessage(msg);
                                 msg.release();
                             }
                         } );
@@ -340,8 +286,12 @@ public class GameServerView extends GameView
     private final boolean m_renderShadows;
     private final short m_gameTime;
     private final Cup [] m_cup;
+    private final TransformStore m_cupTransforms;
+    private ModelCup m_modelCup;
     private final String m_strPort;
     private final int m_ballRadius;
+    private short m_virtualBallRadius; /* published by the desired table height lock */
+    private volatile short m_virtualTableHeight; /* 0 until the client is connected */
     private final TimerManager m_timerManager;
 
     private final float [] m_tmpMatrix;
@@ -362,6 +312,8 @@ public class GameServerView extends GameView
     private int m_cupWithBall;
 
     private int m_state;
+    private int m_sceneContextId;
+    private int m_sceneWidth;
     private float m_eventX;
     private float m_eventY;
 
@@ -377,28 +329,27 @@ public class GameServerView extends GameView
     private final Condition m_cond;
     private RegistrationListener m_registrationListener;
     private boolean m_registrationListenerStop;
+    private GameAcceptor m_acceptor;
+    private boolean m_clientAccepted;
+    private BeaconSender m_beaconSender;
+    private int m_beaconPort;
+    private boolean m_beaconStop;
     private boolean m_pause;
-    private GameServerSession m_session;
+    private volatile GameServerSession m_session;
+    private final GameBroadcast m_broadcast;
 
     private float m_scale;
 
     private String m_clientDeviceId;
     private String m_clientPlayerName;
     private boolean m_clientDisconnected;
-    private int m_win;
+    private int m_round;
+    private int m_wins;
+    private int m_losses;
 
     private class GameAcceptor extends Acceptor
     {
-        private final short m_desiredTableHeight;
-        private final short m_ballRadius;
-
-        public GameAcceptor(short desiredTableHeight, short ballRadius)
-        {
-            m_desiredTableHeight = desiredTableHeight;
-            m_ballRadius = ballRadius;
-        }
-
-        public void onAcceptorStarted(Collider collider, int localPortNumber)
+        public void onAcceptorStarted(Collider collider, final int localPortNumber)
         {
             Log.d(LOG_TAG, "Acceptor started, port=" + localPortNumber);
             m_lock.lock();
@@ -410,10 +361,13 @@ public class GameServerView extends GameView
                 m_registrationListener = new RegistrationListener(localPortNumber);
                 m_registrationListenerStop = false;
                 m_nsdManager.registerService( serviceInfo, NsdManager.PROTOCOL_DNS_SD, m_registrationListener );
-                final Bitmap statusLine = createStatusLine( localPortNumber, Color.WHITE );
+                startBeacon(localPortNumber);
+                /* Acceptor can be started before the surface,
+                 * so status line is rendered on the render thread.
+                 */
                 executeOnRenderThread( new RenderThreadRunnable() {
                     public boolean runOnRenderThread(int frameId) {
-                        setStatusLine(statusLine);
+                        setStatusLine(createStatusLine(localPortNumber, Color.WHITE));
                         return false;
                     }
                 } );
@@ -426,40 +380,13 @@ public class GameServerView extends GameView
 
         public Session.Listener createSessionListener(Session session)
         {
-            boolean interrupted = false;
-            try
-            {
-                session.getCollider().removeAcceptor(this);
-            }
-            catch (final InterruptedException ex)
-            {
-                interrupted = true;
-                Log.e(LOG_TAG, ex.toString(), ex);
-            }
-            finally
-            {
-                if (interrupted)
-                    Thread.currentThread().interrupt();
-            }
-
-            m_lock.lock();
-            try
-            {
-                m_nsdManager.unregisterService(m_registrationListener);
-                m_registrationListenerStop = true;
-            }
-            finally
-            {
-                m_lock.unlock();
-            }
-
-            /* Session will register in the activity after handshake */
+            /* Connection could be a probe of the client looking for
+             * the recent games, acceptor is removed by the handshake.
+             */
             return new HandshakeServerSession(
                     GameServerView.this,
                     session,
                     getPingConfig(),
-                    m_desiredTableHeight,
-                    m_ballRadius,
                     (short) m_cup.length );
         }
     }
@@ -510,10 +437,9 @@ public class GameServerView extends GameView
                 final String serviceName = serviceInfo.getServiceName();
                 Log.d( LOG_TAG, "onServiceRegistered: " + serviceName );
 
-                final Bitmap statusLine = createStatusLine(m_portNumber, Color.GREEN);
                 executeOnRenderThread( new RenderThreadRunnable() {
                     public boolean runOnRenderThread(int frameId) {
-                        setStatusLine(statusLine);
+                        setStatusLine(createStatusLine(m_portNumber, Color.GREEN));
                         return false;
                     }
                 } );
@@ -558,7 +484,7 @@ public class GameServerView extends GameView
 
     private Bitmap createStatusLine( int portNumber, int color )
     {
-        final int width = getWidth();
+        final int width = getViewWidth();
         final Bitmap bitmap = Bitmap.createBitmap( width, getTopReservedHeight(), Bitmap.Config.RGB_565 );
         final Canvas canvas = new Canvas( bitmap );
         final Paint paint = getPaint();
@@ -588,6 +514,13 @@ public class GameServerView extends GameView
         m_renderShadows = renderShadows;
         m_gameTime = gameTime;
         m_cup = new Cup[caps];
+        m_cupTransforms = new TransformStore(caps);
+        for (int idx=0; idx<caps; idx++)
+            m_cup[idx] = new Cup(idx, m_cupTransforms);
+        m_ball = new Ball();
+        m_state = STATE_WAIT_CLIENT;
+        m_sceneContextId = -1;
+        m_broadcast = new GameBroadcast(caps);
         m_strPort = getResources().getString(R.string.port);
         m_ballRadius = (getBottomReservedHeight() / 3);
         m_timerManager = new TimerManager();
@@ -599,7 +532,175 @@ public class GameServerView extends GameView
 
         m_lock = new ReentrantLock();
         m_cond = m_lock.newCondition();
-        m_win = -1;
+        m_round = 1;
+        m_acceptor = new GameAcceptor();
+
+        /* Acceptor and service registration do not wait for the surface,
+         * client handshake waits for the desired table height only.
+         */
+        try
+        {
+            final Collider collider = startCollider();
+            collider.addAcceptor( m_acceptor );
+        }
+        catch (final IOException ex)
+        {
+            Log.e( LOG_TAG, ex.toString() );
+        }
+    }
+
+    /* Should be called with the lock held */
+    private void startBeacon(int portNumber)
+    {
+        if (m_beaconStop)
+            return;
+        try
+        {
+            final Beacon beacon = new Beacon(Protocol.VERSION, getDeviceId(), getPlayerName(), portNumber, (short) 1, (short) 0);
+            m_beaconSender = new BeaconSender(InetAddress.getByName(Beacon.GROUP), Beacon.PORT, beacon);
+            m_beaconPort = portNumber;
+            getTimerQueue().schedule(m_beaconSender, 0, TimeUnit.MILLISECONDS);
+        }
+        catch (final IOException ex)
+        {
+            /* Clients still can find the game with NSD */
+            Log.w(LOG_TAG, "Failed to start beacon: " + ex.toString());
+        }
+    }
+
+    /* Game is announced for spectators after the client is accepted */
+    private void updateBeacon()
+    {
+        final int spectatorSlots = (Prefs.MAX_SPECTATORS - m_broadcast.getSpectators());
+        m_lock.lock();
+        try
+        {
+            if (m_beaconSender != null)
+            {
+                m_beaconSender.setBeacon(new Beacon(
+                        Protocol.VERSION, getDeviceId(), getPlayerName(), m_beaconPort, (short) 0, (short) spectatorSlots));
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private void stopBeacon()
+    {
+        final BeaconSender beaconSender;
+        m_lock.lock();
+        try
+        {
+            m_beaconStop = true;
+            beaconSender = m_beaconSender;
+            m_beaconSender = null;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (beaconSender != null)
+        {
+            try
+            {
+                beaconSender.stop(getTimerQueue());
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w(LOG_TAG, ex.toString());
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Called by the first session received the handshake request,
+     * stops announcing the game for players. Returns false for the others.
+     * Acceptor is kept to let the client resume the game session
+     * after the connection loss and to accept spectators.
+     */
+    public boolean onHandshakeRequest()
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_clientAccepted)
+                return false;
+            m_clientAccepted = true;
+            m_nsdManager.unregisterService(m_registrationListener);
+            m_registrationListenerStop = true;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        updateBeacon();
+        return true;
+    }
+
+    public boolean isClientAccepted()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_clientAccepted;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /* Returns game session the client can resume with the token */
+    public GameServerSession getSession(int resumeToken)
+    {
+        final GameServerSession session = m_session;
+        if ((session != null) && (session.getResumeToken() == resumeToken))
+            return session;
+        return null;
+    }
+
+    /* Virtual table height of the game, 0 if the client is not connected yet */
+    public short getVirtualTableHeight()
+    {
+        return m_virtualTableHeight;
+    }
+
+    /* Collider thread, returns false if the spectator can not be accepted */
+    public boolean addSpectator(SpectatorSession spectator, ByteBuffer handshakeReply)
+    {
+        if (m_pause || !m_broadcast.addSpectator(spectator, handshakeReply))
+            return false;
+        Log.i(LOG_TAG, "Spectator [" + spectator.getPlayerName() + "] joined");
+        updateBeacon();
+        return true;
+    }
+
+    public void removeSpectator(SpectatorSession spectator)
+    {
+        m_broadcast.removeSpectator(spectator);
+        if (!m_pause)
+            updateBeacon();
+    }
+
+    /* Collider thread, returns true if game session should wait for resume */
+    public boolean onClientConnectionLost()
+    {
+        if (m_pause)
+            return false;
+        Log.i(LOG_TAG, "Client connection lost, waiting for resume");
+        return true;
+    }
+
+    /* Ball radius in the virtual table units,
+     * valid after the desired table height is set.
+     */
+    public short getVirtualBallRadius()
+    {
+        return m_virtualBallRadius;
     }
 
     public void onSurfaceCreated(GL10 gl, EGLConfig config)
@@ -609,14 +710,18 @@ public class GameServerView extends GameView
 
     public void onSurfaceChanged(GL10 gl, int width, int height)
     {
-        /* Looks like a better place to start all than surfaceCreated() */
         super.onSurfaceChanged(gl, width, height);
 
-        m_scale = (VIRTUAL_TABLE_WIDTH / width);
-        m_state = STATE_WAIT_CLIENT;
-
-        try
+        /* The first surface size is used for the whole game (see setDesiredTableHeight()),
+         * later calls (surface recreated after pause, EGL context loss) keep the scene
+         * and the game state, only GL objects are recreated for the new context.
+         */
+        final boolean firstCall = (m_light == null);
+        if (firstCall)
         {
+            m_scale = (VIRTUAL_TABLE_WIDTH / width);
+            m_sceneWidth = width;
+
             final float [] light =
             {
                 -(width / 2f), // x
@@ -631,46 +736,59 @@ public class GameServerView extends GameView
             m_light = new Vector(light, 0);
             m_eyePosition = new Vector(0f, 0f, 100f);
 
-            final HashSet<String> macro = new HashSet<String>();
-            if (m_renderShadows)
-            {
-                m_shadowObject = ShadowObject.create(width, m_light, m_tmpMatrix);
-                if (m_shadowObject != null)
-                    macro.add("RENDER_SHADOWS");
-            }
-
-            /***********************/
-
-            final Context context = getContext();
-            m_table = new Table(context, macro);
-            m_ball = new Ball(context, BALL_COLOR);
-
-            final ModelCup modelCup = new ModelCup(context, CUP_STRIPES, macro);
-            for (int idx = 0; idx< m_cup.length; idx++)
-                m_cup[idx] = new Cup(idx, modelCup);
-
-            final Collider collider = startCollider();
-            final GameAcceptor acceptor = new GameAcceptor(
-                    getDesiredTableHeight(width, height),
-                    (short) (m_ballRadius * VIRTUAL_TABLE_WIDTH / width) );
-            collider.addAcceptor( acceptor );
-
             /* Bottom line will be in the middle of the screen,
              * position will be adjusted after we will find the table height.
              */
-            m_bottomLineX = (width / 2f);
             m_bottomLineY = (height / 2f);
-
             m_bottomLineText = getContext().getString(R.string.waiting_second_player);
             m_bottomLineTextColor = Color.GREEN;
             m_bottomLineTextFontSize = (getBottomReservedHeight() * 0.3f);
         }
+        m_bottomLineX = (width / 2f);
+
+        try
+        {
+            final int contextId = VertexBuffer.getContextId();
+            if (m_sceneContextId != contextId)
+            {
+                createSceneObjects(m_sceneWidth);
+                m_sceneContextId = contextId;
+            }
+
+            if (firstCall)
+            {
+                /* Scene is ready, client handshake can complete */
+                m_virtualBallRadius = (short) (m_ballRadius * VIRTUAL_TABLE_WIDTH / width);
+                setDesiredTableHeight(width, height);
+            }
+        }
         catch (final IOException ex)
         {
             Log.e( LOG_TAG, ex.toString() );
         }
     }
 
+    /* GL objects of the scene, created for each EGL context */
+    private void createSceneObjects(int shadowMapSize) throws IOException
+    {
+        final HashSet<String> macro = new HashSet<String>();
+        m_shadowObject = null;
+        if (m_renderShadows)
+        {
+            m_shadowObject = ShadowObject.create(shadowMapSize, m_light, m_tmpMatrix);
+            if (m_shadowObject != null)
+                macro.add("RENDER_SHADOWS");
+        }
+
+        final Context context = getContext();
+        final Table table = new Table(context, macro);
+        if (m_tableWidth > 0)
+            table.setSize(m_tableWidth, m_tableHeight);
+        m_table = table;
+        m_ball.setModel(new ModelBall(context, BALL_COLOR));
+        m_modelCup = new ModelCup(context, CUP_STRIPES, macro);
+    }
+
     public void onDrawFrame(float [] vpMatrix, Canvas3D canvas3D)
     {
         super.onDrawFrame(vpMatrix, canvas3D);
@@ -679,7 +797,20 @@ public class GameServerView extends GameView
 
         if (m_tableWidth > 0)
         {
+            final int cups = m_cupTransforms.pack();
+
             if (m_shadowObject != null)
+            {
+                /* Light is static and table only receives shadows,
+                 * so shadow map should be rendered only if ball or some cup changed.
+                 */
+                boolean shadowDirty = m_ball.resetShadowDirty();
+                shadowDirty |= m_cupTransforms.resetShadowDirty();
+                if (shadowDirty)
+                    m_shadowObject.setDirty();
+            }
+
+            if ((m_shadowObject != null) && m_shadowObject.resetDirty())
             {
                 final int frameBufferId = m_shadowObject.frameBufferId;
                 final int mapSize = m_shadowObject.mapSize;
@@ -692,9 +823,8 @@ public class GameServerView extends GameView
                 GLES20.glClearColor(0f, 0f, 0f, 1f);
                 GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT|GLES20.GL_COLOR_BUFFER_BIT);
 
-                m_ball.drawShadow(m_shadowObject.matrix, 0, tmp);
-                for (Cup cup : m_cup)
-                    cup.drawShadow(m_shadowObject.matrix, 0, tmp);
+                m_ball.drawShadow(m_shadowObject.matrix, 0, m_light);
+                m_modelCup.drawShadow(m_shadowObject.matrix, 0, m_cupTransforms.getPacked(), cups);
 
                 GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
                 GLES20.glViewport(0, 0, viewWidth, viewHeight);
@@ -719,10 +849,9 @@ public class GameServerView extends GameView
             Matrix.multiplyMM(tmp, 0, vpMatrix, 0, m_tableMatrix, 0);
 
             m_table.draw(tmp, m_eyePosition, m_light, m_shadowObject, tmp, 16);
-            m_ball.draw(tmp, m_light, tmp, 16);
+            m_ball.draw(tmp, m_light);
 
-            for (Cup cup : m_cup)
-                cup.draw(tmp, m_eyePosition, m_light, m_shadowObject, tmp, 16);
+            m_modelCup.draw(tmp, m_eyePosition, m_light, m_shadowObject, m_cupTransforms.getPacked(), cups, tmp, 16);
         }
 
         if (m_bottomLineText != null)
@@ -765,6 +894,8 @@ public class GameServerView extends GameView
     public void onClientConnected(GameServerSession session, short virtualTableHeight, String clientDeviceId, String clientPlayerName)
     {
         m_session = session;
+        m_broadcast.setSession(session);
+        m_broadcast.start(getTimerQueue());
         m_clientDeviceId = clientDeviceId;
         m_clientPlayerName = clientPlayerName;
 
@@ -793,7 +924,7 @@ public class GameServerView extends GameView
 
         m_state = STATE_BALL_SET;
         
-        final Bitmap statusLine = createStatusLine(/*ping*/-1, clientPlayerName);
+        final Bitmap statusLine = createStatusLine(clientPlayerName);
 
         final float ballX = getBallStartX();
         final float ballY = getBallStartY();
@@ -805,15 +936,14 @@ public class GameServerView extends GameView
                         ballX,
                         ballY,
                         m_ballRadius,
-                        m_ballRadius,
-                        m_light,
-                        m_tmpMatrix);
+                        m_ballRadius);
                 return false;
             }
         } );
 
         m_ballX = ballX;
         m_ballY = ballY;
+        m_virtualTableHeight = virtualTableHeight;
     }
 
     public void onClientDisconnected()
@@ -821,7 +951,24 @@ public class GameServerView extends GameView
         m_activity.runOnUiThread( new Runnable() {
             public void run()
             {
-                if (!m_pause && (m_state != STATE_FINISHED))
+                if (m_pause)
+                    return;
+
+                if (m_state == STATE_FINISHED)
+                {
+                    /* Round is over, but next one will not be started */
+                    if (!m_clientDisconnected)
+                    {
+                        m_clientDisconnected = true;
+                        executeOnRenderThread(new RenderThreadRunnable() {
+                            public boolean runOnRenderThread(int frameId) {
+                                setBottomLineText(R.string.connection_lost, Color.GREEN, 0.4f);
+                                return false;
+                            }
+                        });
+                    }
+                }
+                else
                 {
                     m_clientDisconnected = true;
                     boolean interrupted = false;
@@ -860,30 +1007,62 @@ public class GameServerView extends GameView
         });
     }
 
-    public void setPing(int ping)
+    public void showGuessReplyCT(boolean found)
     {
-        final Bitmap statusLine = createStatusLine(ping, m_clientPlayerName);
+        /* Thimblerigger wins if the ball was not found */
+        final boolean win = !found;
+        if (win)
+            m_wins++;
+        else
+            m_losses++;
+        m_state = STATE_FINISHED;
+
+        final RetainableByteBuffer msg = Protocol.GuessReply.create(m_byteBufferPool, found);
+        m_broadcast.sendToSpectators(msg);
+        msg.release();
+
+        final Context context = getContext();
+        final String text = context.getString(win ? R.string.you_win : R.string.you_lose) +
+                '\n' + context.getString(R.string.play_again);
         executeOnRenderThread( new RenderThreadRunnable() {
             public boolean runOnRenderThread(int frameId) {
-                setStatusLine(statusLine);
+                setBottomLineText(text, (win ? WIN_TEXT_COLOR : LOSE_TEXT_COLOR), 0.4f);
                 return false;
             }
         } );
     }
 
-    public void showGuessReplyCT(boolean found)
+    /* Resets the table and starts next round with the same client,
+     * session and the render context are kept.
+     */
+    private void startRound()
     {
-        m_state = STATE_FINISHED;
-        m_win = (found ? 0 : 1);
+        final int round = ++m_round;
+        Log.d(LOG_TAG, "Start round " + round);
+
+        final float ballX = getBallStartX();
+        final float ballY = getBallStartY();
+
         executeOnRenderThread( new RenderThreadRunnable() {
             public boolean runOnRenderThread(int frameId) {
-                if (m_win > 0)
-                    setBottomLineText(R.string.you_win, WIN_TEXT_COLOR, GAMBLE_TIMER_FONT_SIZE);
-                else
-                    setBottomLineText(R.string.you_lose, LOSE_TEXT_COLOR, GAMBLE_TIMER_FONT_SIZE);
+                setStatusLine(createStatusLine(m_clientPlayerName, m_wins, m_losses));
+                for (Cup cup : m_cup)
+                    cup.setVisible(false);
+                m_ball.updateMatrix(ballX, ballY, m_ballRadius, m_ballRadius);
+                m_bottomLineText = null;
                 return false;
             }
         } );
+
+        m_ballX = ballX;
+        m_ballY = ballY;
+        m_cupIdx = 0;
+        m_cupByPointer.clear();
+        m_state = STATE_BALL_SET;
+
+        final RetainableByteBuffer msg = Protocol.NewRound.create(m_byteBufferPool, (short) round);
+        m_broadcast.sendMessage(msg);
+        msg.release();
     }
 
     public boolean onTouchEvent(MotionEvent event)
@@ -956,6 +1135,15 @@ public class GameServerView extends GameView
                             " pointerId=" + pointerId + ", no cap" );
                 }
             }
+            else if (m_state == STATE_FINISHED)
+            {
+                if (!m_clientDisconnected &&
+                    (Math.abs(event.getX() - m_bottomLineX) < getBottomReservedHeight()/2f) &&
+                    (Math.abs(event.getY() - m_bottomLineY) < getBottomReservedHeight()/2f))
+                {
+                    startRound();
+                }
+            }
         }
         else if (action == MotionEvent.ACTION_POINTER_DOWN)
         {
@@ -1005,16 +1193,14 @@ public class GameServerView extends GameView
                                 ballX,        // x
                                 ballY,        // y
                                 m_ballRadius, // z
-                                m_ballRadius,
-                                m_light,
-                                m_tmpMatrix);
+                                m_ballRadius);
                         return false;
                     }
                 } );
 
                 final RetainableByteBuffer msg = Protocol.DragBall.create(
                         m_byteBufferPool, getVirtualX(ballX), getVirtualY(ballY));
-                m_session.sendMessage(msg);
+                m_broadcast.sendMessage(msg);
                 msg.release();
 
                 m_eventX = eventX;
@@ -1032,14 +1218,14 @@ public class GameServerView extends GameView
 
                 executeOnRenderThread( new RenderThreadRunnable() {
                     public boolean runOnRenderThread(int frameId) {
-                        m_cup[capIdx].updateMatrix(cx, cy, m_ballRadius, m_tmpMatrix);
+                        m_cup[capIdx].updateMatrix(cx, cy, m_ballRadius);
                         return false;
                     }
                 } );
 
                 final RetainableByteBuffer msg = Protocol.DragCup.create(m_byteBufferPool, (short)capIdx,
                         getVirtualX(cx), getVirtualY(cy), (m_ballRadius * 2f * m_scale));
-                m_session.sendMessage( msg );
+                m_broadcast.sendMessage( msg );
                 msg.release();
 
                 m_eventX = eventX;
@@ -1098,14 +1284,14 @@ public class GameServerView extends GameView
 
                                 executeOnRenderThread( new RenderThreadRunnable() {
                                     public boolean runOnRenderThread(int frameId) {
-                                        cup.updateMatrix(fcx, fcy, m_ballRadius, m_tmpMatrix);
+                                        cup.updateMatrix(fcx, fcy, m_ballRadius);
                                         return false;
                                     }
                                 } );
 
                                 final RetainableByteBuffer msg = Protocol.DragCup.create(m_byteBufferPool,
                                         (short) cup.getID(), getVirtualX(cx), getVirtualY(cy), 0);
-                                m_session.sendMessage(msg);
+                                m_broadcast.sendMessage(msg);
                                 msg.release();
 
                                 cup.setEventPosition(eventX, eventY);
@@ -1122,7 +1308,7 @@ public class GameServerView extends GameView
                                 final float fcy = m_cup[idx].getY() + minDistance*dy/dist;
                                 executeOnRenderThread( new RenderThreadRunnable() {
                                     public boolean runOnRenderThread(int frameId) {
-                                        cup.updateMatrix(fcx, fcy, m_ballRadius, m_tmpMatrix);
+                                        cup.updateMatrix(fcx, fcy, m_ballRadius);
                                         return false;
                                     }
                                 } );
@@ -1150,7 +1336,7 @@ public class GameServerView extends GameView
 
                             executeOnRenderThread( new RenderThreadRunnable() {
                                 public boolean runOnRenderThread(int frameId) {
-                                    cup.updateMatrix(fcx, fcy, m_ballRadius, m_tmpMatrix);
+                                    cup.updateMatrix(fcx, fcy, m_ballRadius);
                                     return false;
                                 }
                             } );
@@ -1187,17 +1373,15 @@ public class GameServerView extends GameView
                                     ballX,        // x
                                     ballY,        // y
                                     m_ballRadius, // z
-                                    m_ballRadius,
-                                    m_light,
-                                    m_tmpMatrix);
-                            m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                                    m_ballRadius);
+                            m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                             return false;
                         }
                     } );
 
                     final RetainableByteBuffer msg = Protocol.PutBall.create(
                             m_byteBufferPool, getVirtualX(ballX), getVirtualY(ballY));
-                    m_session.sendMessage(msg);
+                    m_broadcast.sendMessage(msg);
                     msg.release();
 
                     m_cup[capIdx].moveTo(getBallStartX(), getBallStartY());
@@ -1212,15 +1396,13 @@ public class GameServerView extends GameView
                                     getBallStartX(), // x
                                     getBallStartY(), // y
                                     m_ballRadius,    // z
-                                    m_ballRadius,
-                                    m_light,
-                                    m_tmpMatrix);
+                                    m_ballRadius);
                             return false;
                         }
                     } );
 
                     final RetainableByteBuffer msg = Protocol.RemoveBall.create(m_byteBufferPool);
-                    m_session.sendMessage(msg);
+                    m_broadcast.sendMessage(msg);
                     msg.release();
 
                     m_ballX = getBallStartX();
@@ -1252,7 +1434,7 @@ public class GameServerView extends GameView
                             /* Last cap */
                             executeOnRenderThread( new RenderThreadRunnable() {
                                 public boolean runOnRenderThread(int frameId) {
-                                    m_cup[capIdx].updateMatrix(ballX, ballY, m_ballRadius, m_tmpMatrix);
+                                    m_cup[capIdx].updateMatrix(ballX, ballY, m_ballRadius);
                                     return false;
                                 }
                             } );
@@ -1270,8 +1452,8 @@ public class GameServerView extends GameView
                             /* Set next cap */
                             executeOnRenderThread( new RenderThreadRunnable() {
                                 public boolean runOnRenderThread(int frameId) {
-                                    m_cup[capIdx].updateMatrix(ballX, ballY, m_ballRadius, m_tmpMatrix);
-                                    m_cup[capIdxx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                                    m_cup[capIdx].updateMatrix(ballX, ballY, m_ballRadius);
+                                    m_cup[capIdxx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                                     return false;
                                 }
                             } );
@@ -1282,12 +1464,12 @@ public class GameServerView extends GameView
                         }
 
                         RetainableByteBuffer msg = Protocol.RemoveBall.create(m_byteBufferPool);
-                        m_session.sendMessage(msg);
+                        m_broadcast.sendMessage(msg);
                         msg.release();
 
                         msg = Protocol.PutCup.create(m_byteBufferPool, (short)capIdx,
                                 getVirtualX(ballX), getVirtualY(ballY), /*gambleTime*/ gambleTime);
-                        m_session.sendMessage(msg);
+                        m_broadcast.sendMessage(msg);
                         msg.release();
 
                         m_activity.playSound_CupPut();
@@ -1300,13 +1482,13 @@ public class GameServerView extends GameView
                          */
                         executeOnRenderThread( new RenderThreadRunnable() {
                             public boolean runOnRenderThread(int frameId) {
-                                m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                                m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                                 return false;
                             }
                         } );
 
                         final RetainableByteBuffer msg = Protocol.RemoveCup.create(m_byteBufferPool, (short)capIdx);
-                        m_session.sendMessage(msg);
+                        m_broadcast.sendMessage(msg);
                         msg.release();
 
                         m_cup[capIdx].moveTo(getBallStartX(), getBallStartY());
@@ -1332,13 +1514,13 @@ public class GameServerView extends GameView
                                     /* Last cap should cover ball if it is still visible */
                                     executeOnRenderThread( new RenderThreadRunnable() {
                                         public boolean runOnRenderThread(int frameId) {
-                                            m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                                            m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                                             return false;
                                         }
                                     } );
 
                                     final RetainableByteBuffer msg = Protocol.RemoveCup.create(m_byteBufferPool, (short)capIdx);
-                                    m_session.sendMessage(msg);
+                                    m_broadcast.sendMessage(msg);
                                     msg.release();
 
                                     m_cupIdx = capIdx;
@@ -1351,7 +1533,7 @@ public class GameServerView extends GameView
                                     final RetainableByteBuffer msg = Protocol.PutCup.create(m_byteBufferPool,
                                             (short)capIdx, getVirtualX(cup.getX()), getVirtualY(cup.getY()), m_gameTime);
 
-                                    m_session.sendMessage( msg );
+                                    m_broadcast.sendMessage( msg );
                                     msg.release();
 
                                     m_state = STATE_GAMBLE;
@@ -1365,7 +1547,7 @@ public class GameServerView extends GameView
                             {
                                 executeOnRenderThread( new RenderThreadRunnable() {
                                     public boolean runOnRenderThread(int frameId) {
-                                        m_cup[capIdxx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                                        m_cup[capIdxx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                                         return false;
                                     }
                                 } );
@@ -1373,7 +1555,7 @@ public class GameServerView extends GameView
                                 final Cup cup = m_cup[capIdx];
                                 final RetainableByteBuffer msg = Protocol.PutCup.create(m_byteBufferPool, (short)capIdx,
                                         getVirtualX(cup.getX()), getVirtualY(cup.getY()), /*gambleTime*/(short)0);
-                                m_session.sendMessage( msg );
+                                m_broadcast.sendMessage( msg );
                                 msg.release();
 
                                 m_cup[capIdxx].moveTo(getBallStartX(), getBallStartY());
@@ -1386,13 +1568,13 @@ public class GameServerView extends GameView
                             /* Cup intersects with a cap set before, remove it. */
                             executeOnRenderThread( new RenderThreadRunnable() {
                                 public boolean runOnRenderThread(int frameId) {
-                                    m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                                    m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                                     return false;
                                 }
                             } );
 
                             final RetainableByteBuffer msg = Protocol.RemoveCup.create(m_byteBufferPool, (short)capIdx);
-                            m_session.sendMessage(msg);
+                            m_broadcast.sendMessage(msg);
                             msg.release();
 
                             m_cup[capIdx].moveTo(getBallStartX(), getBallStartY());
@@ -1405,13 +1587,13 @@ public class GameServerView extends GameView
                     /* Cup is not in the valid range */
                     executeOnRenderThread( new RenderThreadRunnable() {
                         public boolean runOnRenderThread(int frameId) {
-                            m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius, m_tmpMatrix);
+                            m_cup[capIdx].updateMatrix(getBallStartX(), getBallStartY(), m_ballRadius);
                             return false;
                         }
                     } );
 
                     final RetainableByteBuffer msg = Protocol.RemoveCup.create(m_byteBufferPool, (short)capIdx);
-                    m_session.sendMessage(msg);
+                    m_broadcast.sendMessage(msg);
                     msg.release();
 
                     m_cup[capIdx].moveTo(getBallStartX(), getBallStartY());
@@ -1443,7 +1625,7 @@ public class GameServerView extends GameView
                             } );
 
                             final RetainableByteBuffer msg = Protocol.Guess.create(m_byteBufferPool, (short) m_cupWithBall);
-                            m_session.sendMessage(msg);
+                            m_broadcast.sendMessage(msg);
                             msg.release();
                         }
                     }
@@ -1477,6 +1659,18 @@ public class GameServerView extends GameView
             interrupted = true;
         }
 
+        try
+        {
+            m_broadcast.stop( getTimerQueue() );
+        }
+        catch (final InterruptedException ex)
+        {
+            Log.w( LOG_TAG, "Exception:", ex );
+            interrupted = true;
+        }
+
+        stopBeacon();
+
         try
         {
             stopCollider();
@@ -1487,6 +1681,8 @@ public class GameServerView extends GameView
             interrupted = true;
         }
 
+        m_broadcast.close();
+
         /* Game acceptor is not working now, no new session can appear.
          * The only thing remaining is a service registration.
          */
@@ -1526,13 +1722,15 @@ public class GameServerView extends GameView
 
         if (m_state == STATE_WAIT_CLIENT)
             return null;
-        else if (m_clientDisconnected)
-            return null; /* Activity result already set */
         else if (m_state == STATE_FINISHED)
         {
+            /* Round interrupted by the client disconnect is not counted */
+            if ((m_wins + m_losses) == 0)
+                return null;
             final Intent result = new Intent();
             result.putExtra(MainActivity.EXTRA_DEVICE_ID, m_clientDeviceId);
-            result.putExtra(MainActivity.EXTRA_WIN, (m_win > 0));
+            result.putExtra(MainActivity.EXTRA_WINS, m_wins);
+            result.putExtra(MainActivity.EXTRA_LOSSES, m_losses);
             return result;
         }
         else
@@ -1541,7 +1739,8 @@ public class GameServerView extends GameView
             result.putExtra(MainActivity.EXTRA_TITLE_ID, R.string.info);
             result.putExtra(MainActivity.EXTRA_MESSAGE_ID, R.string.quit_game_before_end);
             result.putExtra(MainActivity.EXTRA_DEVICE_ID, m_clientDeviceId);
-            result.putExtra(MainActivity.EXTRA_WIN, false);
+            result.putExtra(MainActivity.EXTRA_WINS, m_wins);
+            result.putExtra(MainActivity.EXTRA_LOSSES, m_losses + 1);
             return result;
         }
     }
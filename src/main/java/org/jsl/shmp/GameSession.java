@@ -22,16 +22,31 @@ import android.util.Log;
 import org.jsl.collider.*;
 
 import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
 
+/* Game session survives the connection loss for Prefs.RESUME_TIMEOUT,
+ * the other side can resume it on a new connection (see resume()).
+ * Last Prefs.RESUME_MESSAGES game messages sent are kept,
+ * messages not received by the other side are sent again after resume.
+ * Drag messages are not counted, each one supersedes the previous drag
+ * of the same object, so only the last one sent after the last counted
+ * message is kept for each object and sent again after resume.
+ */
 abstract class GameSession implements Session.Listener
 {
     private static final String LOG_TAG = GameSession.class.getSimpleName();
     protected static final String LOG_PROTOCOL = "Protocol";
 
+    public static final int RESUME_OK = 0;
+    public static final int RESUME_BUSY = 1; /* old connection is not closed yet, retry later */
+    public static final int RESUME_FAILED = -1;
+
+    private static final SecureRandom s_random = new SecureRandom();
+
     private static final AtomicIntegerFieldUpdater<GameSession> s_bytesReceivedUpdater =
             AtomicIntegerFieldUpdater.newUpdater( GameSession.class, "m_bytesReceived" );
 
@@ -51,6 +66,15 @@ abstract class GameSession implements Session.Listener
         };
     }
 
+    public static int createResumeToken()
+    {
+        int resumeToken;
+        do
+            resumeToken = s_random.nextInt();
+        while (resumeToken == 0);
+        return resumeToken;
+    }
+
     private class PingTimer implements TimerQueue.Task
     {
         private final long m_interval;
@@ -62,8 +86,18 @@ abstract class GameSession implements Session.Listener
             m_interval = timeUnit.toMillis( interval );
         }
 
+        public void reset()
+        {
+            m_bytesReceived = s_bytesReceivedUpdater.get( GameSession.this );
+            m_timeouts = 0;
+        }
+
         public long run()
         {
+            final Session session = m_session;
+            if (session == null)
+                return 0; /* connection lost, will be scheduled again on resume */
+
             final PingConfig pingConfig = m_pingConfig;
             if (pingConfig.timeout > 0)
             {
@@ -74,9 +108,9 @@ abstract class GameSession implements Session.Listener
                     final long timeout = (timeouts * pingConfig.interval);
                     if (timeout > pingConfig.timeout)
                     {
-                        Log.d( LOG_TAG, m_session.getRemoteAddress() +
+                        Log.d( LOG_TAG, session.getRemoteAddress() +
                                 ": session timeout (" + timeout + " sec), close connection." );
-                        m_session.closeConnection();
+                        session.closeConnection();
                     }
                 }
                 else
@@ -85,12 +119,48 @@ abstract class GameSession implements Session.Listener
                     m_timeouts = 0;
                 }
             }
-            sendPing();
+            sendPing( session );
             return m_interval;
         }
     }
 
-    private void sendPing()
+    private class ResumeTimer implements TimerQueue.Task
+    {
+        private final int m_connectionId;
+
+        public ResumeTimer( int connectionId )
+        {
+            m_connectionId = connectionId;
+        }
+
+        public long run()
+        {
+            boolean expired = false;
+            m_sendLock.lock();
+            try
+            {
+                if (!m_closed && (m_session == null) && (m_connectionId == m_connectionsLost))
+                {
+                    m_closed = true;
+                    expired = true;
+                    releaseMessagesLocked();
+                }
+            }
+            finally
+            {
+                m_sendLock.unlock();
+            }
+
+            if (expired)
+            {
+                Log.i( LOG_TAG, "Session was not resumed in " + Prefs.RESUME_TIMEOUT + " sec, close." );
+                onSessionClosed();
+            }
+            return 0; /*once*/
+        }
+    }
+
+    private void sendPing( Session session )
     {
         final int pingID = ++m_pingID;
         final RetainableByteBuffer ping = Protocol.Ping.create( m_byteBufferPool, pingID );
@@ -106,11 +176,12 @@ abstract class GameSession implements Session.Listener
             m_lock.unlock();
         }
 
-        m_session.sendData( ping );
+        session.sendData( ping );
     }
 
-    protected final Session m_session;
-    protected final StreamDefragger m_streamDefragger;
+    private volatile Session m_session; /* null while connection is lost */
+    private StreamDefragger m_streamDefragger; /* collider thread */
+    private final int m_resumeToken;
     private final PingConfig m_pingConfig;
     private final PingTimer m_pingTimer;
     private final GameView m_view;
@@ -121,14 +192,29 @@ abstract class GameSession implements Session.Listener
     private int m_pingID;
 
     private volatile int m_bytesReceived;
+    private volatile int m_messagesReceived;
+
+    private final ReentrantLock m_sendLock;
+    private final RetainableByteBuffer [] m_messagesSent; /* ring indexed by the message sequence number */
+    private final HashMap<Integer, RetainableByteBuffer> m_dragsSent; /* last drag of each object, by getDragObject() */
+    private int m_messageSequence; /* guarded by m_sendLock */
+    private int m_connectionsLost; /* guarded by m_sendLock */
+    private boolean m_closed; /* guarded by m_sendLock */
 
-    public GameSession( Session session, StreamDefragger streamDefragger, PingConfig pingConfig, GameView view )
+    public GameSession( Session session, StreamDefragger streamDefragger, PingConfig pingConfig, GameView view, int resumeToken )
     {
         m_session = session;
         m_streamDefragger = streamDefragger;
+        m_resumeToken = resumeToken;
         m_pingConfig = pingConfig;
         m_view = view;
         m_byteBufferPool = new RetainableByteBufferPool( 1024, true, Protocol.BYTE_ORDER );
+        m_sendLock = new ReentrantLock();
+        m_messagesSent = new RetainableByteBuffer[Prefs.RESUME_MESSAGES];
+        m_dragsSent = new HashMap<Integer, RetainableByteBuffer>();
+
+        if (BuildConfig.DEBUG && ((Prefs.RESUME_MESSAGES & (Prefs.RESUME_MESSAGES - 1)) != 0))
+            throw new AssertionError();
 
         final long pingInterval = pingConfig.interval;
         if (pingInterval > 0)
@@ -155,15 +241,19 @@ abstract class GameSession implements Session.Listener
             throw new AssertionError();
 
         s_bytesReceivedUpdater.addAndGet( this, bytesReceived );
+        onMessagesReceived( m_streamDefragger.getNext(data) );
+    }
 
-        RetainableByteBuffer msg = m_streamDefragger.getNext( data );
+    private void onMessagesReceived( RetainableByteBuffer msg )
+    {
+        final Session session = m_session;
         while (msg != null)
         {
             if (msg == StreamDefragger.INVALID_HEADER)
             {
-                Log.w( LOG_TAG, m_session.getRemoteAddress() +
+                Log.w( LOG_TAG, session.getRemoteAddress() +
                         ": invalid message header received, close connection." );
-                m_session.closeConnection();
+                session.closeConnection();
                 break;
             }
             else
@@ -180,7 +270,7 @@ abstract class GameSession implements Session.Listener
 
                     final int sequenceNumber = Protocol.Ping.getSequenceNumber( msg );
                     final RetainableByteBuffer pong = Protocol.Pong.create( m_byteBufferPool, sequenceNumber );
-                    m_session.sendData( pong );
+                    session.sendData( pong );
                     pong.release();
                 }
                 else if (messageID == Protocol.Pong.ID)
@@ -200,7 +290,7 @@ abstract class GameSession implements Session.Listener
                         final Long pingTime = m_pingTime.remove( sequenceNumber );
                         if (pingTime == null)
                         {
-                            Log.e( LOG_TAG, m_session.getRemoteAddress() +
+                            Log.e( LOG_TAG, session.getRemoteAddress() +
                                     ": internal error: ping " + sequenceNumber + " not found." );
                         }
                         else
@@ -219,6 +309,11 @@ abstract class GameSession implements Session.Listener
                 }
                 else
                 {
+                    /* Only game messages are sent again after resume,
+                     * drag messages are sent again without the sequence number.
+                     */
+                    if (!isDrag(messageID))
+                        m_messagesReceived++;
                     int rc = onMessageReceived( messageID, msg );
                     if (rc != 0)
                         break;
@@ -230,14 +325,228 @@ abstract class GameSession implements Session.Listener
 
     abstract int onMessageReceived( int messageID, RetainableByteBuffer msg );
 
+    /* Called when the connection is lost,
+     * should return true if the session should wait for resume.
+     */
+    abstract boolean onConnectionLost();
+
+    /* Called when the session is closed and will not be resumed */
+    abstract void onSessionClosed();
+
+    public int getResumeToken()
+    {
+        return m_resumeToken;
+    }
+
+    public int getMessagesReceived()
+    {
+        return m_messagesReceived;
+    }
+
+    private static boolean isDrag( int messageID )
+    {
+        return ((messageID == Protocol.DragBall.ID) || (messageID == Protocol.DragCup.ID));
+    }
+
+    /* Returns the key of the object moved by the drag message, -1 for the ball */
+    private static int getDragObject( int messageID, RetainableByteBuffer msg )
+    {
+        if (messageID == Protocol.DragCup.ID)
+            return Protocol.DragCup.getId( msg );
+        return -1;
+    }
+
+    private void releaseMessagesLocked()
+    {
+        for (int idx=0; idx<m_messagesSent.length; idx++)
+        {
+            if (m_messagesSent[idx] != null)
+            {
+                m_messagesSent[idx].release();
+                m_messagesSent[idx] = null;
+            }
+        }
+        releaseDragsLocked();
+    }
+
+    private void releaseDragsLocked()
+    {
+        for (RetainableByteBuffer msg : m_dragsSent.values())
+            msg.release();
+        m_dragsSent.clear();
+    }
+
+    /* Message is retained while kept for resume */
     public int sendMessage( RetainableByteBuffer msg )
     {
-        return m_session.sendData( msg );
+        final int messageID = Protocol.Message.getMessageId( msg );
+        m_sendLock.lock();
+        try
+        {
+            if (m_closed)
+                return -1;
+
+            msg.retain();
+            if (isDrag(messageID))
+            {
+                final RetainableByteBuffer prev = m_dragsSent.put( getDragObject(messageID, msg), msg );
+                if (prev != null)
+                    prev.release();
+            }
+            else
+            {
+                /* Drags sent before were superseded by this message,
+                 * replaying them after it would move the objects back.
+                 */
+                releaseDragsLocked();
+                final int idx = (m_messageSequence & (Prefs.RESUME_MESSAGES - 1));
+                if (m_messagesSent[idx] != null)
+                    m_messagesSent[idx].release();
+                m_messagesSent[idx] = msg;
+                m_messageSequence++;
+            }
+
+            final Session session = m_session;
+            if (session == null)
+                return 0; /* will be sent on resume */
+            return session.sendData( msg );
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
     }
 
+    /* Not used on the hot path, the message is copied to the pool buffer */
     public int sendMessage( ByteBuffer msg )
     {
-        return m_session.sendData( msg );
+        final RetainableByteBuffer buf = m_byteBufferPool.alloc( msg.remaining() );
+        buf.put( msg.duplicate() );
+        buf.rewind();
+        final int rc = sendMessage( buf );
+        buf.release();
+        return rc;
+    }
+
+    /* Attaches the session to the new connection,
+     * messages sent after the first messagesReceived ones are sent again.
+     * ResumeReplyOk is sent before them if requested.
+     */
+    public int resume( Session session, StreamDefragger streamDefragger, int messagesReceived, boolean sendReply )
+    {
+        Session oldSession = null;
+        boolean failed = false;
+        m_sendLock.lock();
+        try
+        {
+            if (m_closed)
+                return RESUME_FAILED;
+
+            if (m_session != null)
+            {
+                /* Other side found the connection is broken before us */
+                oldSession = m_session;
+            }
+            else
+            {
+                final int messages = (m_messageSequence - messagesReceived);
+                if ((messages < 0) || (messages > Prefs.RESUME_MESSAGES))
+                {
+                    Log.i( LOG_TAG, session.getRemoteAddress() + ": can not resume session, " +
+                            messages + " messages lost." );
+                    m_closed = true;
+                    failed = true;
+                    releaseMessagesLocked();
+                }
+                else
+                {
+                    if (sendReply)
+                    {
+                        final ByteBuffer reply = Protocol.ResumeReplyOk.create( m_messagesReceived );
+                        session.sendData( reply );
+                    }
+
+                    for (int seq=messagesReceived; seq!=m_messageSequence; seq++)
+                        session.sendData( m_messagesSent[seq & (Prefs.RESUME_MESSAGES - 1)] );
+
+                    /* Drags were sent after the last counted message */
+                    for (RetainableByteBuffer msg : m_dragsSent.values())
+                        session.sendData( msg );
+
+                    Log.i( LOG_TAG, session.getRemoteAddress() + ": session resumed, " +
+                            messages + " messages and " + m_dragsSent.size() + " drags sent again." );
+                    m_streamDefragger = streamDefragger;
+                    m_session = session;
+                }
+            }
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+
+        if (oldSession != null)
+        {
+            oldSession.closeConnection();
+            return RESUME_BUSY;
+        }
+
+        if (failed)
+        {
+            onSessionClosed();
+            return RESUME_FAILED;
+        }
+
+        if (m_pingTimer != null)
+        {
+            m_pingTimer.reset();
+            m_pingConfig.timerQueue.schedule( m_pingTimer, m_pingConfig.interval, m_pingConfig.timeUnit );
+        }
+        return RESUME_OK;
+    }
+
+    /* Should be called on the new connection thread after the listener replaced,
+     * handles messages received with the resume reply.
+     */
+    public void onResumed()
+    {
+        onMessagesReceived( m_streamDefragger.getNext() );
+    }
+
+    /* Closes the session waiting for resume */
+    public void close()
+    {
+        boolean closed = false;
+        m_sendLock.lock();
+        try
+        {
+            if (!m_closed && (m_session == null))
+            {
+                m_closed = true;
+                closed = true;
+                releaseMessagesLocked();
+            }
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+
+        if (closed)
+            onSessionClosed();
+    }
+
+    public boolean isWaitingResume()
+    {
+        m_sendLock.lock();
+        try
+        {
+            return (!m_closed && (m_session == null));
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
     }
 
     public void onConnectionClosed()
@@ -256,6 +565,43 @@ abstract class GameSession implements Session.Listener
                 interrupted = true;
             }
         }
+
+        if (m_lock != null)
+        {
+            /* Pings sent to the closed connection will never be replied */
+            m_lock.lock();
+            try
+            {
+                m_pingTime.clear();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+        }
+
+        final int connectionId;
+        m_sendLock.lock();
+        try
+        {
+            m_session = null;
+            connectionId = ++m_connectionsLost;
+        }
+        finally
+        {
+            m_sendLock.unlock();
+        }
+
+        m_streamDefragger.close();
+
+        if (onConnectionLost())
+        {
+            final ResumeTimer resumeTimer = new ResumeTimer( connectionId );
+            m_pingConfig.timerQueue.schedule( resumeTimer, Prefs.RESUME_TIMEOUT, TimeUnit.SECONDS );
+        }
+        else
+            close();
+
         if (interrupted)
             Thread.currentThread().interrupt();
     }
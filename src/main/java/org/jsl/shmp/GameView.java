@@ -33,7 +33,6 @@ import org.jsl.collider.Collider;
 import org.jsl.collider.TimerQueue;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import java.io.IOException;
@@ -53,18 +52,22 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
     protected static final int WIN_TEXT_COLOR = Color.GREEN;
     protected static final int LOSE_TEXT_COLOR = Color.RED;
 
-    private static String LOG_TAG = GameView.class.getSimpleName();
+    /* Round phase in the table state message */
+    protected static final short TABLE_PHASE_SETUP = 0;
+    protected static final short TABLE_PHASE_GUESS = 1;
+    protected static final short TABLE_PHASE_FINISHED = 2;
 
-    private static AtomicReferenceFieldUpdater<RenderThreadRunnable, RenderThreadRunnable> s_renderThreadRunnableNextUpdater =
-            AtomicReferenceFieldUpdater.newUpdater( RenderThreadRunnable.class, RenderThreadRunnable.class, "nextRenderThreadRunnable" );
+    private static String LOG_TAG = GameView.class.getSimpleName();
 
-    private static AtomicReferenceFieldUpdater<GameView, RenderThreadRunnable> s_tailUpdater =
-            AtomicReferenceFieldUpdater.newUpdater(GameView.class, RenderThreadRunnable.class, "m_tail");
+    /* Length of the Integer.MAX_VALUE */
+    private static final int PING_DIGITS_MAX = 10;
 
-    public static abstract class RenderThreadRunnable
+    /* Networking is started with the activity, before the surface size
+     * is known, so handshake waits for the desired table height.
+     */
+    protected interface TableHeightListener
     {
-        private volatile RenderThreadRunnable nextRenderThreadRunnable;
-        public abstract boolean runOnRenderThread(int frameId);
+        void onDesiredTableHeight(short desiredTableHeight);
     }
 
     protected static abstract class GambleTimer implements TimerQueue.Task
@@ -143,11 +146,12 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
     private final Paint m_paint;
     private final int m_touchSlop;
 
-    private final Runnable m_renderProcessor;
-    private final RenderThreadRunnable m_execMarker;
-    private RenderThreadRunnable m_head;
-    private volatile RenderThreadRunnable m_tail;
-    private int m_frameId;
+    private final RenderThreadQueue m_renderQueue;
+    private boolean m_renderQueuePending; /* render thread */
+
+    private final Object m_tableHeightLock;
+    private short m_desiredTableHeight;
+    private TableHeightListener m_tableHeightListener;
 
     private int m_viewWidth;
     private int m_viewHeight;
@@ -160,9 +164,12 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
 
     private Canvas3D.Sprite m_statusLine;
     private FloatBuffer m_statusLineDebug;
+    private float m_pingTextY;
+    private final float m_pingTextSize;
+    private final Canvas3D.DynamicText m_pingText; /* render thread */
+    private final float [] m_pingTextMatrix = new float[32];
 
     abstract protected Bitmap createStatusLine();
-    abstract public void setPing( int ping );
 
     private void colliderThread()
     {
@@ -171,89 +178,34 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
         Log.d( LOG_TAG, "Collider: done" );
     }
 
-    private void processUpdates()
-    {
-        final int frameId = ++m_frameId;
-        RenderThreadRunnable runnable = m_head;
-        for (;;)
-        {
-            RenderThreadRunnable next = s_renderThreadRunnableNextUpdater.get( runnable );
-            if (next == null)
-            {
-                if (BuildConfig.DEBUG && (m_execMarker.nextRenderThreadRunnable != null))
-                    throw new AssertionError();
-
-                if (s_tailUpdater.compareAndSet(this, runnable, m_execMarker))
-                {
-                    final boolean renderFrame = runnable.runOnRenderThread(frameId);
-
-                    m_head = null;
-                    if (s_tailUpdater.compareAndSet(this, m_execMarker, null))
-                    {
-                        if (BuildConfig.DEBUG && (m_execMarker.nextRenderThreadRunnable != null))
-                            throw new AssertionError();
-                        break;
-                    }
-
-                    while ((next = m_execMarker.nextRenderThreadRunnable) == null);
-                    s_renderThreadRunnableNextUpdater.lazySet(m_execMarker, null);
-
-                    if (renderFrame)
-                    {
-                        m_head = next;
-                        queueEvent(m_renderProcessor);
-                        break;
-                    }
-
-                    runnable = next;
-                    continue;
-                }
-
-                while ((next = s_renderThreadRunnableNextUpdater.get(runnable)) == null) ;
-                s_renderThreadRunnableNextUpdater.lazySet( runnable, null );
-            }
-            else
-                s_renderThreadRunnableNextUpdater.lazySet( runnable, null );
-
-            final boolean renderFrame = runnable.runOnRenderThread(frameId);
-            if (renderFrame)
-            {
-                m_head = next;
-                queueEvent(m_renderProcessor);
-                break;
-            }
-            runnable = next;
-        }
-
-        requestRender();
-    }
-
     protected void executeOnRenderThread( RenderThreadRunnable runnable )
     {
-        for (;;)
-        {
-            final RenderThreadRunnable tail = s_tailUpdater.get( this );
-            if (s_tailUpdater.compareAndSet(this, tail, runnable))
-            {
-                if (tail == null)
-                {
-                    m_head = runnable;
-                    queueEvent( m_renderProcessor );
-                }
-                else
-                    s_renderThreadRunnableNextUpdater.set( tail, runnable );
-                break;
-            }
-        }
+        m_renderQueue.execute( runnable );
     }
 
     protected void setStatusLine(Bitmap bitmap)
     {
         m_statusLine.setBitmap(bitmap);
         bitmap.recycle();
+        m_pingText.setText("");
     }
 
-    protected Bitmap createStatusLine(int ping, String player2Name)
+    /* Player names are static while the game lasts, so they are drawn
+     * to the status line bitmap once, the ping value changing every
+     * ping interval is drawn over it as a text (see setPing()).
+     */
+    protected Bitmap createStatusLine(String player2Name)
+    {
+        return drawStatusLine(m_playerName, player2Name);
+    }
+
+    /* Status line for the next rounds shows the session score */
+    protected Bitmap createStatusLine(String player2Name, int wins, int losses)
+    {
+        return drawStatusLine(m_playerName + " " + wins, losses + " " + player2Name);
+    }
+
+    private Bitmap drawStatusLine(String player1Text, String player2Text)
     {
         final Paint paint = m_paint;
         final int width = getWidth();
@@ -265,21 +217,25 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
         paint.setStyle(Paint.Style.FILL);
 
         paint.setTextAlign(Paint.Align.LEFT);
-        canvas.drawText(m_playerName, 0, textY, paint);
-
-        if (ping >= 0)
-        {
-            final String str = m_strPing + Integer.toString(ping);
-            paint.setTextAlign(Paint.Align.CENTER);
-            canvas.drawText(str, width / 2, textY, paint);
-        }
+        canvas.drawText(player1Text, 0, textY, paint);
 
         paint.setTextAlign(Paint.Align.RIGHT);
-        canvas.drawText(player2Name, width, textY, paint);
+        canvas.drawText(player2Text, width, textY, paint);
 
         return bitmap;
     }
 
+    public void setPing(int ping)
+    {
+        final String pingText = (m_strPing + Integer.toString(ping));
+        executeOnRenderThread( new RenderThreadRunnable() {
+            public boolean runOnRenderThread(int frameId) {
+                m_pingText.setText(pingText);
+                return false;
+            }
+        } );
+    }
+
     protected int getTopReservedHeight()
     {
         return m_topReservedHeight;
@@ -317,6 +273,45 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
         return (short) (VIRTUAL_TABLE_WIDTH / tableWidth * tableHeight);
     }
 
+    /* Calls the listener with the desired table height when it is known,
+     * right now or later on the render thread. Only one listener can wait.
+     */
+    protected void requestDesiredTableHeight(TableHeightListener listener)
+    {
+        final short desiredTableHeight;
+        synchronized (m_tableHeightLock)
+        {
+            if (m_desiredTableHeight == 0)
+            {
+                if (BuildConfig.DEBUG && (m_tableHeightListener != null))
+                    throw new AssertionError();
+                m_tableHeightListener = listener;
+                return;
+            }
+            desiredTableHeight = m_desiredTableHeight;
+        }
+        listener.onDesiredTableHeight(desiredTableHeight);
+    }
+
+    /* Called on the render thread when the surface size is known,
+     * the first size is used for the whole game.
+     */
+    protected void setDesiredTableHeight(int viewWidth, int viewHeight)
+    {
+        final short desiredTableHeight = getDesiredTableHeight(viewWidth, viewHeight);
+        final TableHeightListener listener;
+        synchronized (m_tableHeightLock)
+        {
+            if (m_desiredTableHeight != 0)
+                return;
+            m_desiredTableHeight = desiredTableHeight;
+            listener = m_tableHeightListener;
+            m_tableHeightListener = null;
+        }
+        if (listener != null)
+            listener.onDesiredTableHeight(desiredTableHeight);
+    }
+
     protected Collider startCollider() throws IOException
     {
         if (BuildConfig.DEBUG && (m_collider != null))
@@ -347,6 +342,11 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
         }
     }
 
+    protected Collider getCollider()
+    {
+        return m_collider;
+    }
+
     protected TimerQueue getTimerQueue()
     {
         return m_timerQueue;
@@ -393,24 +393,44 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
 
         m_paint = new Paint();
         m_paint.setTextSize( topReservedHeight );
+        m_pingTextSize = m_paint.getFontSpacing();
+        /* Ping value digits change every ping interval,
+         * so the text is kept out of the layout cache.
+         */
+        m_pingText = new Canvas3D.DynamicText(
+                m_strPing.length() + PING_DIGITS_MAX, m_pingTextSize,
+                Canvas3D.Align.CENTER, Canvas3D.VerticalAlign.CENTER);
 
         final ViewConfiguration viewConfig = ViewConfiguration.get( context );
         m_touchSlop = viewConfig.getScaledTouchSlop();
 
-        m_renderProcessor = new Runnable() {
-            public void run() {
-                processUpdates();
+        m_tableHeightLock = new Object();
+
+        m_renderQueue = new RenderThreadQueue() {
+            private final Runnable m_processor = new Runnable() {
+                public void run() {
+                    /* Events are executed by the GLSurfaceView even before
+                     * the surface is created, runnables expect the surface.
+                     */
+                    if (m_vpMatrix == null)
+                        m_renderQueuePending = true;
+                    else
+                        process();
+                }
+            };
+
+            protected void schedule() {
+                queueEvent( m_processor );
             }
-        };
 
-        m_execMarker = new RenderThreadRunnable() {
-            public boolean runOnRenderThread(int frameId) {
-                /* should never be called */
-                throw new AssertionError();
+            protected void requestRender() {
+                GameView.this.requestRender();
             }
         };
 
         setEGLContextClientVersion( 2 );
+        /* Programs, buffers and textures survive pause/resume if the device allows */
+        setPreserveEGLContextOnPause( true );
         setRenderer( this );
         setRenderMode( GLSurfaceView.RENDERMODE_WHEN_DIRTY );
     }
@@ -418,6 +438,10 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
     public void onSurfaceCreated(GL10 notUsed, EGLConfig config)
     {
         Log.d(LOG_TAG, "onSurfaceCreated");
+        VertexBuffer.onContextCreated();
+        GLState.reset();
+        m_canvas3D = null;
+        m_statusLine = null;
         GLES20.glEnable(GLES20.GL_CULL_FACE);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
         GLES20.glCullFace(GLES20.GL_BACK);
@@ -459,13 +483,18 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
 
         try
         {
-            m_canvas3D = new Canvas3D(getContext(), /*text size for text renderer*/m_bottomReservedHeight);
-            m_statusLine = new Canvas3D.Sprite();
+            /* Surface can be changed without EGL context loss */
+            if (m_canvas3D == null)
+                m_canvas3D = new Canvas3D(getContext());
+            /* Sprite texture is reused, setBitmap() replaces the image */
+            if (m_statusLine == null)
+                m_statusLine = new Canvas3D.Sprite();
 
             final Bitmap statusLineBitmap = createStatusLine();
             final float statusLineTop = (height - 1);
             m_statusLine.setBitmap( statusLineBitmap );
             m_statusLine.y = statusLineTop;
+            m_pingTextY = (statusLineTop - statusLineBitmap.getHeight() / 2f);
 
             if (Prefs.RENDER_DEBUG)
             {
@@ -500,15 +529,37 @@ public abstract class GameView extends GLSurfaceView implements GLSurfaceView.Re
     public void onDrawFrame(GL10 gl)
     {
         //Log.d( LOG_TAG, "onDrawFrame" );
+        if (m_renderQueuePending)
+        {
+            m_renderQueuePending = false;
+            m_renderQueue.process();
+        }
+
         GLES20.glClearColor(0f, 0f, 0f, 1f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         onDrawFrame(m_vpMatrix, m_canvas3D);
+
+        if (Prefs.RENDER_DEBUG)
+        {
+            Log.v(LOG_TAG, "GL state calls: issued=" + GLState.getIssuedCalls() +
+                    " elided=" + GLState.getElidedCalls());
+            GLState.resetCounters();
+        }
     }
 
     public void onDrawFrame(float [] vpMatrix, Canvas3D canvas3D)
     {
         canvas3D.draw(vpMatrix, m_statusLine);
 
+        canvas3D.drawText(
+                vpMatrix,
+                m_pingText,
+                m_viewWidth / 2f,
+                m_pingTextY,
+                1f,
+                Color.GREEN,
+                m_pingTextMatrix, 0);
+
         if (m_statusLineDebug != null)
         {
             m_statusLineDebug.position(0);
@@ -23,6 +23,7 @@ import org.jsl.collider.RetainableByteBuffer;
 import org.jsl.collider.Session;
 import org.jsl.collider.StreamDefragger;
 import org.jsl.collider.TimerQueue;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
@@ -35,7 +36,7 @@ public class HandshakeClientSession implements Session.Listener
     private final Session m_session;
     private final PingConfig m_pingConfig;
     private final StreamDefragger m_streamDefragger;
-    private TimerHandler m_timerHandler;
+    private final TimerHandler m_timerHandler;
 
     private class TimerHandler implements TimerQueue.Task
     {
@@ -51,26 +52,46 @@ public class HandshakeClientSession implements Session.Listener
             GameClientView view,
             Session session,
             PingConfig pingConfig,
-            short desiredTableHeight,
-            String deviceId,
-            String playerName )
+            final String deviceId,
+            final String playerName,
+            final String serverDeviceId )
     {
         m_view = view;
         m_session = session;
         m_pingConfig = pingConfig;
         m_streamDefragger = GameSession.createStreamDefragger();
+        m_timerHandler = (pingConfig.timeout > 0) ? new TimerHandler() : null;
+
+        /* Connection can be established before the view surface is created,
+         * request is sent as soon as the desired table height is known.
+         */
+        view.requestDesiredTableHeight( new GameView.TableHeightListener() {
+            public void onDesiredTableHeight(short desiredTableHeight) {
+                sendHandshakeRequest(desiredTableHeight, deviceId, playerName, serverDeviceId);
+            }
+        } );
+    }
 
-        final long pingTimeout = pingConfig.timeout;
-        if (pingTimeout > 0)
+    private void sendHandshakeRequest(short desiredTableHeight, String deviceId, String playerName, String serverDeviceId)
+    {
+        if (m_view.isConnected())
         {
-            final TimeUnit timeUnit = pingConfig.timeUnit;
-            final TimerQueue timerQueue = pingConfig.timerQueue;
-            m_timerHandler = new TimerHandler();
-            timerQueue.schedule( m_timerHandler, pingTimeout, timeUnit );
+            /* Game is already connected using another server address */
+            Log.d( LOG_TAG, m_session.getRemoteAddress() + ": game already connected, close connection." );
+            m_session.closeConnection();
+            return;
         }
 
-        final ByteBuffer handshakeRequest = Protocol.HandshakeRequest.create(Protocol.VERSION, desiredTableHeight, deviceId, playerName);
-        session.sendData( handshakeRequest );
+        if (m_timerHandler != null)
+        {
+            final PingConfig pingConfig = m_pingConfig;
+            pingConfig.timerQueue.schedule( m_timerHandler, pingConfig.timeout, pingConfig.timeUnit );
+        }
+
+        final ByteBuffer handshakeRequest = m_view.isSpectator()
+                ? Protocol.SpectateRequest.create(Protocol.VERSION, serverDeviceId, deviceId, playerName)
+                : Protocol.HandshakeRequest.create(Protocol.VERSION, desiredTableHeight, deviceId, playerName, serverDeviceId);
+        m_session.sendData( handshakeRequest );
     }
 
     public void onDataReceived( RetainableByteBuffer data )
@@ -126,15 +147,24 @@ public class HandshakeClientSession implements Session.Listener
 
                 final short virtualTableHeight = Protocol.HandshakeReplyOk.getTableHeight( msg );
                 final short virtualBallRadius = Protocol.HandshakeReplyOk.getBallRadius( msg );
+                final short caps = Protocol.HandshakeReplyOk.getCaps( msg );
+                final int resumeToken = Protocol.HandshakeReplyOk.getResumeToken( msg );
                 Log.i( LOG_TAG, m_session.getRemoteAddress() + ": handshake reply ok" );
 
+                if (!m_view.onHandshakeReplyOk((InetSocketAddress) m_session.getRemoteAddress()))
+                {
+                    Log.i( LOG_TAG, m_session.getRemoteAddress() + ": game already connected, close connection." );
+                    m_session.closeConnection();
+                    return;
+                }
+
                 final GameClientSession gameClientSession = new GameClientSession(
                         m_session,
                         m_streamDefragger, m_pingConfig,
-                        m_view );
+                        m_view, resumeToken );
 
                 m_session.replaceListener( gameClientSession );
-                m_view.onConnected( gameClientSession, virtualTableHeight, virtualBallRadius );
+                m_view.onConnected( gameClientSession, virtualTableHeight, virtualBallRadius, caps );
             }
             else if (messageId == Protocol.HandshakeReplyFail.ID)
             {
@@ -174,7 +204,7 @@ public class HandshakeClientSession implements Session.Listener
         }
 
         m_streamDefragger.close();
-        m_view.onServerDisconnected();
+        m_view.onConnectFailed();
 
         if (interrupted)
             Thread.currentThread().interrupt();
@@ -35,12 +35,18 @@ public class HandshakeServerSession implements Session.Listener
     private final GameServerView m_view;
     private final Session m_session;
     private final PingConfig m_pingConfig;
-    private final short m_desiredTableHeight;
-    private final short m_ballRadius;
     private final short m_caps;
     private final StreamDefragger m_streamDefragger;
     private final TimerHandler m_timerHandler;
 
+    /* Handshake can complete on the render thread if the request
+     * came before the view surface was created.
+     */
+    private boolean m_closed; /* guarded by this */
+    private boolean m_accepted; /* collider thread */
+    private GameServerSession m_gameServerSession; /* guarded by this */
+    private SpectatorSession m_spectatorSession; /* guarded by this */
+
     private class TimerHandler implements TimerQueue.Task
     {
         public long run()
@@ -55,15 +61,11 @@ public class HandshakeServerSession implements Session.Listener
             GameServerView view,
             Session session,
             PingConfig pingConfig,
-            short desiredTableHeight,
-            short ballRadius,
             short caps )
     {
         m_view = view;
         m_session = session;
         m_pingConfig = pingConfig;
-        m_desiredTableHeight = desiredTableHeight;
-        m_ballRadius = ballRadius;
         m_caps = caps;
         m_streamDefragger = GameSession.createStreamDefragger();
 
@@ -133,29 +135,39 @@ public class HandshakeServerSession implements Session.Listener
                 final short protocolVersion = Protocol.HandshakeRequest.getProtocolVersion(msg);
                 if (protocolVersion == Protocol.VERSION)
                 {
-                    short tableHeight = Protocol.HandshakeRequest.getDesiredTableHeight( msg );
+                    final short clientTableHeight = Protocol.HandshakeRequest.getDesiredTableHeight( msg );
                     final String clientDeviceId = Protocol.HandshakeRequest.getDeviceId( msg );
                     final String clientPlayerName = Protocol.HandshakeRequest.getPlayerName( msg );
-                    Log.i( LOG_TAG, m_session.getRemoteAddress() +
-                            ": handshake ok: playerName=[" + clientPlayerName + "]" );
-
-                    if (m_desiredTableHeight < tableHeight)
-                        tableHeight = m_desiredTableHeight;
+                    final String serverDeviceId = Protocol.HandshakeRequest.getServerDeviceId( msg );
+                    if (!serverDeviceId.equals(m_view.getDeviceId()))
+                    {
+                        /* Client used a stale address of another device */
+                        Log.i( LOG_TAG, m_session.getRemoteAddress() + ": another server requested, close connection." );
+                        final ByteBuffer handshakeReply = Protocol.HandshakeReplyFail.create( "Wrong server" );
+                        m_session.sendData( handshakeReply );
+                        m_session.closeConnection();
+                        return;
+                    }
 
-                    /* Send reply first to be sure other side will receive
-                     * HandshakeReplyOk before anything else.
-                     */
-                    final ByteBuffer handshakeReply = Protocol.HandshakeReplyOk.create(tableHeight, m_ballRadius, m_caps);
-                    m_session.sendData( handshakeReply );
+                    if (!m_view.onHandshakeRequest())
+                    {
+                        Log.i( LOG_TAG, m_session.getRemoteAddress() + ": game already started, close connection." );
+                        final ByteBuffer handshakeReply = Protocol.HandshakeReplyFail.create( "Game already started" );
+                        m_session.sendData( handshakeReply );
+                        m_session.closeConnection();
+                        return;
+                    }
 
-                    final GameServerSession gameServerSession = new GameServerSession(
-                            m_session,
-                            m_streamDefragger,
-                            m_pingConfig,
-                            m_view );
+                    m_accepted = true;
+                    Log.i( LOG_TAG, m_session.getRemoteAddress() +
+                            ": handshake ok: playerName=[" + clientPlayerName + "]" );
 
-                    m_session.replaceListener( gameServerSession );
-                    m_view.onClientConnected( gameServerSession, tableHeight, clientDeviceId, clientPlayerName );
+                    m_view.requestDesiredTableHeight( new GameView.TableHeightListener() {
+                        public void onDesiredTableHeight(short desiredTableHeight) {
+                            final short tableHeight = (desiredTableHeight < clientTableHeight) ? desiredTableHeight : clientTableHeight;
+                            completeHandshake( tableHeight, clientDeviceId, clientPlayerName );
+                        }
+                    } );
                 }
                 else
                 {
@@ -169,6 +181,61 @@ public class HandshakeServerSession implements Session.Listener
                     m_session.closeConnection();
                 }
             }
+            else if (messageId == Protocol.SpectateRequest.ID)
+            {
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.SpectateRequest.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+
+                final short protocolVersion = Protocol.SpectateRequest.getProtocolVersion(msg);
+                final String serverDeviceId = Protocol.SpectateRequest.getServerDeviceId(msg);
+                if ((protocolVersion != Protocol.VERSION) || !serverDeviceId.equals(m_view.getDeviceId()))
+                {
+                    Log.i( LOG_TAG, m_session.getRemoteAddress() + ": invalid spectate request, close connection." );
+                    final ByteBuffer handshakeReply = Protocol.HandshakeReplyFail.create( "Wrong server" );
+                    m_session.sendData( handshakeReply );
+                    m_session.closeConnection();
+                    return;
+                }
+
+                acceptSpectator( Protocol.SpectateRequest.getPlayerName(msg) );
+            }
+            else if (messageId == Protocol.ResumeRequest.ID)
+            {
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.ResumeRequest.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+
+                final short protocolVersion = Protocol.ResumeRequest.getProtocolVersion(msg);
+                final GameServerSession gameServerSession = (protocolVersion == Protocol.VERSION)
+                        ? m_view.getSession(Protocol.ResumeRequest.getResumeToken(msg)) : null;
+                if (gameServerSession == null)
+                {
+                    Log.i( LOG_TAG, m_session.getRemoteAddress() + ": session to resume not found, close connection." );
+                    final ByteBuffer handshakeReply = Protocol.HandshakeReplyFail.create( "Session not found" );
+                    m_session.sendData( handshakeReply );
+                    m_session.closeConnection();
+                    return;
+                }
+
+                resumeSession( gameServerSession, Protocol.ResumeRequest.getMessagesReceived(msg) );
+            }
+            else if (messageId == Protocol.ProbeRequest.ID)
+            {
+                /* Client checks the game is still waiting at the address it remembers */
+                if ((Protocol.ProbeRequest.getProtocolVersion(msg) == Protocol.VERSION) && !m_view.isClientAccepted())
+                {
+                    final ByteBuffer probeReply = Protocol.ProbeReply.create(m_view.getDeviceId(), m_view.getPlayerName());
+                    m_session.sendData( probeReply );
+                }
+                m_session.closeConnection();
+            }
             else
             {
                 Log.i( LOG_TAG, m_session.getRemoteAddress() +
@@ -178,10 +245,120 @@ public class HandshakeServerSession implements Session.Listener
         }
     }
 
+    private void completeHandshake(short tableHeight, String clientDeviceId, String clientPlayerName)
+    {
+        final GameServerSession gameServerSession;
+        synchronized (this)
+        {
+            if (m_closed)
+                return;
+
+            /* Send reply first to be sure other side will receive
+             * HandshakeReplyOk before anything else.
+             */
+            final int resumeToken = GameSession.createResumeToken();
+            final ByteBuffer handshakeReply = Protocol.HandshakeReplyOk.create(
+                    tableHeight, m_view.getVirtualBallRadius(), m_caps, resumeToken);
+            m_session.sendData( handshakeReply );
+
+            gameServerSession = new GameServerSession(
+                    m_session,
+                    m_streamDefragger,
+                    m_pingConfig,
+                    m_view,
+                    resumeToken );
+
+            m_session.replaceListener( gameServerSession );
+            m_gameServerSession = gameServerSession;
+        }
+        m_view.onClientConnected( gameServerSession, tableHeight, clientDeviceId, clientPlayerName );
+    }
+
+    private void acceptSpectator(String playerName)
+    {
+        final short tableHeight = m_view.getVirtualTableHeight();
+        if (tableHeight == 0)
+        {
+            Log.i( LOG_TAG, m_session.getRemoteAddress() + ": game is not started yet, close connection." );
+            final ByteBuffer handshakeReply = Protocol.HandshakeReplyFail.create( "Game is not started yet" );
+            m_session.sendData( handshakeReply );
+            m_session.closeConnection();
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (m_closed)
+                return;
+
+            /* Spectator session is not resumed, so no resume token */
+            final SpectatorSession spectatorSession = new SpectatorSession( m_view, m_session, m_streamDefragger, playerName );
+            final ByteBuffer handshakeReply = Protocol.HandshakeReplyOk.create(
+                    tableHeight, m_view.getVirtualBallRadius(), m_caps, 0 );
+            if (!m_view.addSpectator(spectatorSession, handshakeReply))
+            {
+                Log.i( LOG_TAG, m_session.getRemoteAddress() + ": too many spectators, close connection." );
+                final ByteBuffer reply = Protocol.HandshakeReplyFail.create( "Too many spectators" );
+                m_session.sendData( reply );
+                m_session.closeConnection();
+                return;
+            }
+
+            m_session.replaceListener( spectatorSession );
+            m_spectatorSession = spectatorSession;
+        }
+    }
+
+    private synchronized void resumeSession(GameServerSession gameServerSession, int messagesReceived)
+    {
+        if (m_closed)
+            return;
+
+        final int rc = gameServerSession.resume( m_session, m_streamDefragger, messagesReceived, true );
+        if (rc == GameSession.RESUME_OK)
+        {
+            m_session.replaceListener( gameServerSession );
+            m_gameServerSession = gameServerSession;
+        }
+        else if (rc == GameSession.RESUME_BUSY)
+        {
+            /* Old connection is being closed now, client will retry */
+            m_session.closeConnection();
+        }
+        else
+        {
+            final ByteBuffer handshakeReply = Protocol.HandshakeReplyFail.create( "Session can not be resumed" );
+            m_session.sendData( handshakeReply );
+            m_session.closeConnection();
+        }
+    }
+
     public void onConnectionClosed()
     {
         Log.i( LOG_TAG, m_session.getRemoteAddress() + ": connection closed" );
 
+        final GameServerSession gameServerSession;
+        final SpectatorSession spectatorSession;
+        synchronized (this)
+        {
+            m_closed = true;
+            gameServerSession = m_gameServerSession;
+            spectatorSession = m_spectatorSession;
+        }
+
+        if (gameServerSession != null)
+        {
+            /* Connection was closed while the listener was being replaced */
+            gameServerSession.onConnectionClosed();
+            return;
+        }
+
+        if (spectatorSession != null)
+        {
+            spectatorSession.onConnectionClosed();
+            return;
+        }
+
         boolean interrupted = false;
         if (m_timerHandler != null)
         {
@@ -198,7 +375,10 @@ public class HandshakeServerSession implements Session.Listener
         }
 
         m_streamDefragger.close();
-        m_view.onClientDisconnected();
+
+        /* Probes and rejected clients do not affect the game */
+        if (m_accepted)
+            m_view.onClientDisconnected();
 
         if (interrupted)
             Thread.currentThread().interrupt();
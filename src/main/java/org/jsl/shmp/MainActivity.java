@@ -36,9 +36,15 @@ import android.util.Log;
 import android.view.*;
 import android.widget.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -50,26 +56,30 @@ public class MainActivity extends Activity
 
     private static final String NSD_SERVICE_TYPE = "_shells_mp._tcp.";
     private static final String NSD_SERVICE_NAME_SEPARATOR = ":";
+    private static final String SPECTATE_KEY_SUFFIX = ":spectate";
 
     public static final String EXTRA_DEVICE_ID = "device-id";
     public static final String EXTRA_SERVER_DEVICE_ID = "server-device-id";
     public static final String EXTRA_SERVER_PLAYER_NAME = "server-player-name";
+    public static final String EXTRA_SPECTATOR = "spectator";
     public static final String EXTRA_GAME_TIME = "game-time";
     public static final String EXTRA_CAPS = "caps";
     public static final String EXTRA_PLAYER_NAME = "player-name";
-    public static final String EXTRA_SERVER_ADDRESS = "game-server-address";
+    public static final String EXTRA_SERVER_ADDRESSES = "game-server-addresses";
     public static final String EXTRA_TITLE_ID = "title-id";
     public static final String EXTRA_MESSAGE_ID = "message-id";
-    public static final String EXTRA_WIN = "win";
+    public static final String EXTRA_WINS = "wins";
+    public static final String EXTRA_LOSSES = "losses";
 
     private static final int STATE_START_DISCOVERY = 1;
     private static final int STATE_DISCOVERY = 2;
     private static final int STATE_STOP_DISCOVERY_START_GAME = 3;
-    private static final int STATE_STOP_DISCOVERY_RESOLVE_GAME = 4;
-    private static final int STATE_RESOLVE_GAME = 5;
+
+    private static final String SCORE_STORE_FILE = "scores.bin";
 
     /* Shared preferences keys */
-    private static final String SPK_SCORE_PREFIX = "score-";
+    private static final String SPK_SCORE_PREFIX = "score-"; /* moved to the score store */
+    private static final String SPK_RECENT_SERVERS = "recent-servers";
 
     private String m_deviceID;
     private String m_playerName;
@@ -80,36 +90,69 @@ public class MainActivity extends Activity
 
     /* Will not be modified */
     private NsdManager.DiscoveryListener m_discoveryListener;
-    private NsdManager.ResolveListener m_resolveListener;
+    private ServiceResolver m_resolver;
+    private ServerProbe m_serverProbe;
+    private BeaconListener m_beaconListener;
+    private WifiManager.MulticastLock m_multicastLock;
+    private ScoreStore m_scoreStore; /* null if failed to open */
 
     private ReentrantLock m_lock;
     private Condition m_cond;
     private boolean m_stop;
     private int m_state;
-    private GameInfo m_gameInfo;
+    private GameInfo m_gameInfo; /* selected game waiting for the address */
+    private boolean m_connectGame;
 
     private static class GameInfo
     {
         final NsdServiceInfo serviceInfo;
         final String deviceId;
         final String playerName;
-        final String score;
+        final boolean spectate; /* game is started already, can be watched only */
 
-        public GameInfo(NsdServiceInfo serviceInfo, String deviceId, String playerName, String score)
+        public GameInfo(NsdServiceInfo serviceInfo, String deviceId, String playerName, boolean spectate)
         {
             this.serviceInfo = serviceInfo;
             this.deviceId = deviceId;
             this.playerName = playerName;
-            this.score = score;
+            this.spectate = spectate;
         }
     }
 
-    private static class ListViewAdapter extends ArrayAdapter<GameInfo>
+    /* Games are indexed by the service name, discovery events coming
+     * from any thread are queued and applied on the UI thread once per frame.
+     * Game can be found by NSD, beacon and recent servers probe,
+     * it is listed while at least one of the sources sees it.
+     */
+    private static class ListViewAdapter extends BaseAdapter
     {
+        public static final int SOURCE_NSD = 1;
+        public static final int SOURCE_BEACON = 2;
+        public static final int SOURCE_PROBE = 4;
+
         private final MainActivity m_activity;
         private final LayoutInflater m_inflater;
-        private final TreeMap<String, GameInfo> m_gameInfoByServiceName;
-        private GameInfo [] m_items;
+        private final Choreographer m_choreographer;
+        private final Choreographer.FrameCallback m_frameCallback;
+        private final ConcurrentLinkedQueue<Event> m_events;
+        private final AtomicBoolean m_scheduled;
+        private final HashMap<String, Integer> m_indexByServiceName;
+        private final HashMap<String, Integer> m_sourcesByServiceName;
+        private final ArrayList<GameInfo> m_items;
+
+        private static class Event
+        {
+            public final String serviceName;
+            public final GameInfo gameInfo; /* null if game is lost */
+            public final int source;
+
+            public Event(String serviceName, GameInfo gameInfo, int source)
+            {
+                this.serviceName = serviceName;
+                this.gameInfo = gameInfo;
+                this.source = source;
+            }
+        }
 
         private static class ViewInfo
         {
@@ -125,59 +168,155 @@ public class MainActivity extends Activity
             }
         }
 
-        private void updateItems()
+        /* Should be called on the UI thread */
+        public ListViewAdapter(MainActivity activity)
+        {
+            m_activity = activity;
+            m_inflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            m_choreographer = Choreographer.getInstance();
+            m_frameCallback = new Choreographer.FrameCallback() {
+                public void doFrame(long frameTimeNanos) {
+                    processEvents();
+                }
+            };
+            m_events = new ConcurrentLinkedQueue<Event>();
+            m_scheduled = new AtomicBoolean();
+            m_indexByServiceName = new HashMap<String, Integer>();
+            m_sourcesByServiceName = new HashMap<String, Integer>();
+            m_items = new ArrayList<GameInfo>();
+        }
+
+        private void postEvent(Event event)
+        {
+            m_events.add(event);
+            if (m_scheduled.compareAndSet(false, true))
+                m_choreographer.postFrameCallback(m_frameCallback);
+        }
+
+        private void processEvents()
         {
-            m_items = new GameInfo[m_gameInfoByServiceName.size()];
-            final Iterator<TreeMap.Entry<String, GameInfo>> it = m_gameInfoByServiceName.entrySet().iterator();
-            for (int idx=0; it.hasNext(); idx++)
+            m_scheduled.set(false);
+            final boolean stop = m_activity.m_stop;
+            boolean added = false;
+            boolean removed = false;
+            Event event;
+            while ((event = m_events.poll()) != null)
             {
-                final Map.Entry<String, GameInfo> entry = it.next();
-                m_items[idx] = entry.getValue();
+                /* Events coming after onPause() are not relevant */
+                if (stop)
+                    continue;
+                if (event.gameInfo == null)
+                    removed |= removeItem(event.serviceName, event.source);
+                else
+                    added |= addItem(event.serviceName, event.gameInfo, event.source);
             }
-            notifyDataSetChanged();
+            if (removed)
+                compactItems();
+            if (added || removed)
+                notifyDataSetChanged();
         }
 
-        public ListViewAdapter(MainActivity activity)
+        /* Drops the slots of the removed games keeping the display order,
+         * indices of the items moved are updated, once per events batch.
+         */
+        private void compactItems()
         {
-            super(activity, R.layout.list_view_item_games);
-            m_activity = activity;
-            m_inflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            m_gameInfoByServiceName = new TreeMap<String, GameInfo>();
+            final int size = m_items.size();
+            int dst = 0;
+            for (int src=0; src<size; src++)
+            {
+                final GameInfo gameInfo = m_items.get(src);
+                if (gameInfo != null)
+                {
+                    if (dst != src)
+                    {
+                        m_items.set(dst, gameInfo);
+                        m_indexByServiceName.put(getKey(gameInfo.serviceInfo, gameInfo.spectate), dst);
+                    }
+                    dst++;
+                }
+            }
+            m_items.subList(dst, size).clear();
         }
 
-        public void add(GameInfo gameInfo)
+        private boolean addItem(String serviceName, GameInfo gameInfo, int source)
         {
-            final String serviceName = gameInfo.serviceInfo.getServiceName();
-            if (m_gameInfoByServiceName.get(serviceName) == null)
+            final Integer sources = m_sourcesByServiceName.get(serviceName);
+            if (sources != null)
             {
-                m_gameInfoByServiceName.put(serviceName, gameInfo);
-                updateItems();
+                Log.d( LOG_TAG, "[" + serviceName + "] already listed." );
+                m_sourcesByServiceName.put(serviceName, (sources | source));
+                return false;
             }
-            else
-                Log.d( LOG_TAG, "Internal error: [" + serviceName + "] already registered." );
+            m_sourcesByServiceName.put(serviceName, source);
+            m_indexByServiceName.put(serviceName, m_items.size());
+            m_items.add(gameInfo);
+            return true;
         }
 
-        public void remove(NsdServiceInfo serviceInfo)
+        private boolean removeItem(String serviceName, int source)
+        {
+            final Integer sources = m_sourcesByServiceName.get(serviceName);
+            if (sources == null)
+                return false;
+
+            /* Some other source still sees the game */
+            final int remaining = (sources & ~source);
+            if (remaining != 0)
+            {
+                m_sourcesByServiceName.put(serviceName, remaining);
+                return false;
+            }
+            m_sourcesByServiceName.remove(serviceName);
+
+            final Integer index = m_indexByServiceName.remove(serviceName);
+            if (index == null)
+                return false;
+
+            /* Slot is dropped by compactItems() after the events batch */
+            m_items.set(index, null);
+            return true;
+        }
+
+        /* Game can be listed to play and to watch for a short time,
+         * while the old beacon is not expired yet.
+         */
+        private static String getKey(NsdServiceInfo serviceInfo, boolean spectate)
         {
             final String serviceName = serviceInfo.getServiceName();
-            if (m_gameInfoByServiceName.remove(serviceName) != null)
-                updateItems();
+            return spectate ? (serviceName + SPECTATE_KEY_SUFFIX) : serviceName;
+        }
+
+        /* Could be called from any thread */
+        public void add(GameInfo gameInfo, int source)
+        {
+            postEvent(new Event(getKey(gameInfo.serviceInfo, gameInfo.spectate), gameInfo, source));
+        }
+
+        /* Could be called from any thread */
+        public void remove(NsdServiceInfo serviceInfo, boolean spectate, int source)
+        {
+            postEvent(new Event(getKey(serviceInfo, spectate), null, source));
         }
 
+        /* Should be called on the UI thread */
         public void clear()
         {
-            m_gameInfoByServiceName.clear();
-            updateItems();
+            m_events.clear();
+            m_indexByServiceName.clear();
+            m_sourcesByServiceName.clear();
+            m_items.clear();
+            notifyDataSetChanged();
         }
 
         public int getCount()
         {
-            return ((m_items == null) ? 0 : m_items.length);
+            return m_items.size();
         }
 
         public GameInfo getItem(int position)
         {
-            return m_items[position];
+            return m_items.get(position);
         }
 
         public long getItemId( int position )
@@ -205,9 +344,10 @@ public class MainActivity extends Activity
                 viewInfo = (ViewInfo) view.getTag();
             }
 
-            final GameInfo gameInfo = m_items[position];
+            final GameInfo gameInfo = m_items.get(position);
             viewInfo.playerName.setText(gameInfo.playerName);
-            viewInfo.score.setText(gameInfo.score);
+            viewInfo.score.setText(m_activity.getScore(gameInfo.deviceId));
+            viewInfo.connect.setText(gameInfo.spectate ? R.string.watch : R.string.connect);
 
             viewInfo.connect.setOnClickListener(new View.OnClickListener() {
                 public void onClick(View v) {
@@ -301,11 +441,6 @@ public class MainActivity extends Activity
                         }
                     } );
                 }
-                else if (m_state == STATE_STOP_DISCOVERY_RESOLVE_GAME)
-                {
-                    m_state = STATE_RESOLVE_GAME;
-                    m_nsdManager.resolveService( m_gameInfo.serviceInfo, m_resolveListener );
-                }
                 else if (BuildConfig.DEBUG)
                 {
                     /* Not expected */
@@ -331,17 +466,10 @@ public class MainActivity extends Activity
                 }
                 else
                 {
-                    final SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
                     final String deviceId = ss[0];
-                    final String key = SPK_SCORE_PREFIX + deviceId;
-                    final String score = sharedPreferences.getString(key, "0-0");
                     final String playerName = new String(Base64.decode(ss[1], 0));
-                    final GameInfo gameInfo = new GameInfo(nsdServiceInfo, deviceId, playerName, score);
-                    runOnUiThread( new Runnable() {
-                        public void run() {
-                            m_discoveredGames.add( gameInfo );
-                        }
-                    } );
+                    m_discoveredGames.add( new GameInfo(nsdServiceInfo, deviceId, playerName, false), ListViewAdapter.SOURCE_NSD );
+                    m_resolver.resolve( nsdServiceInfo );
                 }
             }
             else
@@ -356,70 +484,68 @@ public class MainActivity extends Activity
             {
                 if (ss[0].compareTo(m_deviceID) != 0)
                 {
-                    runOnUiThread( new Runnable() {
-                        public void run() {
-                            m_discoveredGames.remove( nsdServiceInfo );
-                        }
-                    } );
+                    m_resolver.remove( nsdServiceInfo );
+                    m_discoveredGames.remove( nsdServiceInfo, false, ListViewAdapter.SOURCE_NSD );
                 }
             }
         }
     }
 
-    private class ResolveListener implements NsdManager.ResolveListener
+    private class GameResolveListener implements ServiceResolver.Listener
     {
-        public void onResolveFailed( NsdServiceInfo serviceInfo, int errorCode )
+        private final GameInfo m_game;
+
+        public GameResolveListener(GameInfo gameInfo)
+        {
+            m_game = gameInfo;
+        }
+
+        public void onServiceResolved(NsdServiceInfo serviceInfo, final InetSocketAddress serverAddr)
         {
-            Log.d( LOG_TAG, "onResolveFailed: " + errorCode + ": " + serviceInfo );
             m_lock.lock();
             try
             {
-                if (m_stop)
-                {
-                    m_state = 0;
-                    m_cond.signal();
-                }
-                else if (m_state == STATE_RESOLVE_GAME)
-                {
-                    m_state = STATE_START_DISCOVERY;
-                    m_nsdManager.discoverServices( NSD_SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, m_discoveryListener );
-                }
-                else if (BuildConfig.DEBUG)
-                    throw new AssertionError();
+                /* User could select another game or leave the activity */
+                if (m_gameInfo != m_game)
+                    return;
+                m_gameInfo = null;
+                m_connectGame = true;
             }
             finally
             {
                 m_lock.unlock();
             }
+
+            /* Address the server had last time is tried as well,
+             * resolved one could be stale while the cache entry is alive.
+             */
+            final InetSocketAddress recentAddr = getRecentServer(m_game.deviceId);
+            final InetSocketAddress [] serverAddrs;
+            if ((recentAddr == null) || recentAddr.equals(serverAddr))
+                serverAddrs = new InetSocketAddress[] { serverAddr };
+            else
+                serverAddrs = new InetSocketAddress[] { serverAddr, recentAddr };
+
+            saveRecentServer(m_game.deviceId, serverAddr);
+
+            final String serverDeviceId = m_game.deviceId;
+            final String serverPlayerName = m_game.playerName;
+            final boolean spectate = m_game.spectate;
+            runOnUiThread( new Runnable() {
+                public void run() {
+                    connectGame(serverAddrs, serverDeviceId, serverPlayerName, spectate);
+                }
+            } );
         }
 
-        public void onServiceResolved( NsdServiceInfo serviceInfo )
+        public void onResolveFailed(NsdServiceInfo serviceInfo)
         {
-            Log.d( LOG_TAG, "onServiceResolved: " + serviceInfo );
+            Log.i( LOG_TAG, "Failed to resolve " + serviceInfo );
             m_lock.lock();
             try
             {
-                if (m_stop)
-                {
-                    m_state = 0;
-                    m_cond.signal();
-                }
-                else if (m_state == STATE_RESOLVE_GAME)
-                {
-                    final InetSocketAddress serverAddr = new InetSocketAddress( serviceInfo.getHost(), serviceInfo.getPort() );
-                    final String serverDeviceId = m_gameInfo.deviceId;
-                    final String serverPlayerName = m_gameInfo.playerName;
+                if (m_gameInfo == m_game)
                     m_gameInfo = null;
-                    m_state = 0;
-
-                    runOnUiThread( new Runnable() {
-                        public void run() {
-                            connectGame(serverAddr, serverDeviceId, serverPlayerName);
-                        }
-                    } );
-                }
-                else if (BuildConfig.DEBUG)
-                    throw new AssertionError();
             }
             finally
             {
@@ -428,6 +554,34 @@ public class MainActivity extends Activity
         }
     }
 
+    private class ServerProbeListener implements ServerProbe.Listener
+    {
+        public void onServerFound(String deviceId, String playerName, InetSocketAddress addr)
+        {
+            addGame(deviceId, playerName, addr, false, ListViewAdapter.SOURCE_PROBE);
+        }
+    }
+
+    private class GameBeaconListener implements BeaconListener.Listener
+    {
+        public void onGameFound(Beacon beacon, InetSocketAddress addr)
+        {
+            /* Started game announces slots for spectators only */
+            if (!beacon.deviceId.equals(m_deviceID))
+                addGame(beacon.deviceId, beacon.playerName, addr, (beacon.freeSlots <= 0), ListViewAdapter.SOURCE_BEACON);
+        }
+
+        public void onGameLost(Beacon beacon)
+        {
+            if (!beacon.deviceId.equals(m_deviceID))
+            {
+                final NsdServiceInfo serviceInfo = createServiceInfo(beacon.deviceId, beacon.playerName, beacon.port);
+                m_resolver.remove(serviceInfo);
+                m_discoveredGames.remove(serviceInfo, (beacon.freeSlots <= 0), ListViewAdapter.SOURCE_BEACON);
+            }
+        }
+    }
+
     private class SettingsDialogClickListener implements DialogInterface.OnClickListener
     {
         private final EditText m_editTextPlayerName;
@@ -464,6 +618,60 @@ public class MainActivity extends Activity
         }
     }
 
+    private void openScoreStore()
+    {
+        try
+        {
+            m_scoreStore = new ScoreStore(new File(getFilesDir(), SCORE_STORE_FILE));
+        }
+        catch (final IOException ex)
+        {
+            Log.e(LOG_TAG, ex.toString());
+            return;
+        }
+
+        /* Move scores kept by the previous versions in the shared preferences */
+        final SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet())
+        {
+            final String key = entry.getKey();
+            if (key.startsWith(SPK_SCORE_PREFIX) && (entry.getValue() instanceof String))
+            {
+                final String deviceId = key.substring(SPK_SCORE_PREFIX.length());
+                final String [] ss = ((String) entry.getValue()).split("-");
+                try
+                {
+                    if ((ss.length == 2) && !m_scoreStore.contains(deviceId))
+                        m_scoreStore.put(deviceId, Integer.parseInt(ss[0]), Integer.parseInt(ss[1]));
+                }
+                catch (final NumberFormatException ex)
+                {
+                    Log.w(LOG_TAG, key + ": invalid score, ignored.");
+                }
+                catch (final IOException ex)
+                {
+                    Log.e(LOG_TAG, ex.toString());
+                    return;
+                }
+                if (editor == null)
+                    editor = sharedPreferences.edit();
+                editor.remove(key);
+            }
+        }
+
+        if (editor != null)
+        {
+            m_scoreStore.flush();
+            editor.apply();
+        }
+    }
+
+    private String getScore(String deviceId)
+    {
+        return (m_scoreStore == null) ? "0-0" : m_scoreStore.getScore(deviceId);
+    }
+
     private String getDeviceID()
     {
         long deviceID = 0;
@@ -497,6 +705,140 @@ public class MainActivity extends Activity
         return Base64.encodeToString(bb, (Base64.NO_PADDING | Base64.NO_WRAP));
     }
 
+    /* Adds the game found without NSD, address is known already */
+    private void addGame(String deviceId, String playerName, InetSocketAddress addr, boolean spectate, int source)
+    {
+        /* Server registers the NSD service with the same name,
+         * so the game found both ways is listed once.
+         */
+        final NsdServiceInfo serviceInfo = createServiceInfo(deviceId, playerName, addr.getPort());
+        m_resolver.put(serviceInfo.getServiceName(), addr);
+        m_discoveredGames.add(new GameInfo(serviceInfo, deviceId, playerName, spectate), source);
+    }
+
+    private void startBeaconListener()
+    {
+        final WifiManager wifiManager = (WifiManager) getSystemService(WIFI_SERVICE);
+        m_multicastLock = wifiManager.createMulticastLock(LOG_TAG);
+        m_multicastLock.setReferenceCounted(false);
+        m_multicastLock.acquire();
+        try
+        {
+            final InetAddress group = InetAddress.getByName(Beacon.GROUP);
+            m_beaconListener = new BeaconListener(group, Beacon.PORT, new GameBeaconListener());
+            m_beaconListener.start();
+        }
+        catch (final IOException ex)
+        {
+            /* NSD discovery still works */
+            Log.w(LOG_TAG, "Failed to start beacon listener: " + ex.toString());
+            m_multicastLock.release();
+            m_multicastLock = null;
+        }
+    }
+
+    private void stopBeaconListener()
+    {
+        if (m_beaconListener != null)
+        {
+            try
+            {
+                m_beaconListener.stop();
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w(LOG_TAG, ex.toString());
+                Thread.currentThread().interrupt();
+            }
+            m_beaconListener = null;
+        }
+
+        if (m_multicastLock != null)
+        {
+            m_multicastLock.release();
+            m_multicastLock = null;
+        }
+    }
+
+    /* Recent servers are kept as "deviceId,host,port" entries separated by ';',
+     * most recent first.
+     */
+    private void saveRecentServer(String deviceId, InetSocketAddress addr)
+    {
+        final SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
+        final String [] recent = sharedPreferences.getString(SPK_RECENT_SERVERS, "").split(";");
+        final StringBuilder sb = new StringBuilder();
+        sb.append(deviceId);
+        sb.append(',');
+        sb.append(addr.getAddress().getHostAddress());
+        sb.append(',');
+        sb.append(addr.getPort());
+
+        int servers = 1;
+        for (String entry : recent)
+        {
+            if (servers == Prefs.RECENT_SERVERS)
+                break;
+            final String [] ss = entry.split(",");
+            if ((ss.length == 3) && !ss[0].equals(deviceId))
+            {
+                sb.append(';');
+                sb.append(entry);
+                servers++;
+            }
+        }
+
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putString(SPK_RECENT_SERVERS, sb.toString());
+        editor.apply();
+    }
+
+    private InetSocketAddress getRecentServer(String deviceId)
+    {
+        final SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
+        final String [] recent = sharedPreferences.getString(SPK_RECENT_SERVERS, "").split(";");
+        for (String entry : recent)
+        {
+            final String [] ss = entry.split(",");
+            if ((ss.length == 3) && ss[0].equals(deviceId))
+            {
+                try
+                {
+                    return new InetSocketAddress(ss[1], Integer.parseInt(ss[2]));
+                }
+                catch (final IllegalArgumentException ex)
+                {
+                    Log.w(LOG_TAG, "Invalid recent server [" + entry + "]: " + ex.toString());
+                }
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void probeRecentServers()
+    {
+        final SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
+        final String [] recent = sharedPreferences.getString(SPK_RECENT_SERVERS, "").split(";");
+        for (String entry : recent)
+        {
+            final String [] ss = entry.split(",");
+            if (ss.length == 3)
+            {
+                try
+                {
+                    /* Host is a numeric address, no DNS lookup here */
+                    final InetSocketAddress addr = new InetSocketAddress(ss[1], Integer.parseInt(ss[2]));
+                    m_serverProbe.probe(ss[0], addr);
+                }
+                catch (final IllegalArgumentException ex)
+                {
+                    Log.w(LOG_TAG, "Invalid recent server [" + entry + "]: " + ex.toString());
+                }
+            }
+        }
+    }
+
     private void startGame()
     {
         final Intent intent = new Intent(MainActivity.this, GameServerActivity.class);
@@ -507,33 +849,37 @@ public class MainActivity extends Activity
         startActivityForResult(intent, REQUEST_CODE_GAME);
     }
 
+    /* Address is usually resolved in the background by the time
+     * user selects the game, so the game is connected immediately,
+     * discovery is stopped by onPause() then.
+     */
     private void resolveGame(GameInfo gameInfo)
     {
         m_lock.lock();
         try
         {
-            if (BuildConfig.DEBUG && (m_state != STATE_START_DISCOVERY) && (m_state != STATE_DISCOVERY))
-                throw new AssertionError();
-
-            m_state = STATE_STOP_DISCOVERY_RESOLVE_GAME;
+            if (m_stop || m_connectGame || (m_state == STATE_STOP_DISCOVERY_START_GAME))
+                return;
             m_gameInfo = gameInfo;
-
-            m_nsdManager.stopServiceDiscovery(m_discoveryListener);
         }
         finally
         {
             m_lock.unlock();
         }
+
+        m_resolver.resolve( gameInfo.serviceInfo, new GameResolveListener(gameInfo) );
     }
 
-    private void connectGame(InetSocketAddress serverAddr, String serverDeviceId, String serverPlayerName)
+    private void connectGame(InetSocketAddress [] serverAddrs, String serverDeviceId, String serverPlayerName, boolean spectate)
     {
         final Intent intent = new Intent( MainActivity.this, GameClientActivity.class );
         intent.putExtra(EXTRA_DEVICE_ID, m_deviceID);
         intent.putExtra(EXTRA_PLAYER_NAME, m_playerName);
-        intent.putExtra(EXTRA_SERVER_ADDRESS, serverAddr);
+        /* Intent parcels an array extra as Object[], the list keeps its type */
+        intent.putExtra(EXTRA_SERVER_ADDRESSES, new ArrayList<InetSocketAddress>(Arrays.asList(serverAddrs)));
         intent.putExtra(EXTRA_SERVER_DEVICE_ID, serverDeviceId);
         intent.putExtra(EXTRA_SERVER_PLAYER_NAME, serverPlayerName);
+        intent.putExtra(EXTRA_SPECTATOR, spectate);
         startActivityForResult(intent, REQUEST_CODE_GAME);
     }
 
@@ -545,6 +891,7 @@ public class MainActivity extends Activity
         /*********************************************************************/
 
         m_deviceID = getDeviceID();
+        openScoreStore();
 
         m_nsdManager = (NsdManager) getSystemService(NSD_SERVICE);
         if (m_nsdManager == null)
@@ -566,7 +913,7 @@ public class MainActivity extends Activity
 
         m_discoveredGames = new ListViewAdapter( this );
         m_discoveryListener = new DiscoveryListener();
-        m_resolveListener = new ResolveListener();
+        m_resolver = new ServiceResolver( m_nsdManager, Prefs.RESOLVE_CACHE_TTL, TimeUnit.SECONDS );
         m_lock = new ReentrantLock();
         m_cond = m_lock.newCondition();
 
@@ -592,6 +939,11 @@ public class MainActivity extends Activity
     public void onDestroy()
     {
         Log.d( LOG_TAG, "onDestroy" );
+        if (m_scoreStore != null)
+        {
+            m_scoreStore.close();
+            m_scoreStore = null;
+        }
         super.onDestroy();
     }
 
@@ -606,9 +958,17 @@ public class MainActivity extends Activity
         m_buttonStartGame.setEnabled( true );
 
         m_stop = false;
+        m_connectGame = false;
         m_state = STATE_START_DISCOVERY;
         m_nsdManager.discoverServices(NSD_SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, m_discoveryListener);
 
+        /* Repeat games are the common case, recent servers
+         * are usually found before the discovery reports them.
+         */
+        m_serverProbe = new ServerProbe( Prefs.RECENT_SERVERS, new ServerProbeListener() );
+        probeRecentServers();
+        startBeaconListener();
+
         final SharedPreferences sharedPreferences = getSharedPreferences(MainActivity.class.getSimpleName(), Context.MODE_PRIVATE);
         final boolean checkWiFiStatusOnStart = sharedPreferences.getBoolean(Prefs.CHECK_WIFI_STATUS_ON_START, true);
         if (checkWiFiStatusOnStart)
@@ -655,6 +1015,7 @@ public class MainActivity extends Activity
                 throw new AssertionError();
 
             m_stop = true;
+            m_gameInfo = null;
             switch (m_state)
             {
                 case STATE_START_DISCOVERY:
@@ -669,8 +1030,6 @@ public class MainActivity extends Activity
                 break;
 
                 case STATE_STOP_DISCOVERY_START_GAME:
-                case STATE_STOP_DISCOVERY_RESOLVE_GAME:
-                case STATE_RESOLVE_GAME:
                     while (m_state != 0)
                         m_cond.await();
                 break;
@@ -693,7 +1052,13 @@ public class MainActivity extends Activity
             m_lock.unlock();
         }
 
+        stopBeaconListener();
+        m_serverProbe.stop();
+        m_serverProbe = null;
+        m_resolver.cancel();
         m_discoveredGames.clear();
+        if (m_scoreStore != null)
+            m_scoreStore.flush();
         Log.d( LOG_TAG, "onPause: done" );
     }
 
@@ -706,9 +1071,11 @@ public class MainActivity extends Activity
                 final int titleId = data.getIntExtra(EXTRA_TITLE_ID, -1);
                 final int messageId = data.getIntExtra(EXTRA_MESSAGE_ID, -1);
                 final String deviceId = data.getStringExtra(EXTRA_DEVICE_ID);
-                final boolean win = data.getBooleanExtra(EXTRA_WIN, false);
+                final int wins = data.getIntExtra(EXTRA_WINS, 0);
+                final int losses = data.getIntExtra(EXTRA_LOSSES, 0);
 
-                Log.d(LOG_TAG, "onActivityResult: REQUEST_CODE_GAME: deviceId=[" + deviceId + "] win=" + win);
+                Log.d(LOG_TAG, "onActivityResult: REQUEST_CODE_GAME: deviceId=[" + deviceId +
+                        "] wins=" + wins + " losses=" + losses);
 
                 if ((titleId > 0) && (messageId > 0))
                 {
@@ -720,31 +1087,16 @@ public class MainActivity extends Activity
                     alertDialog.show();
                 }
 
-                if ((deviceId != null) && !deviceId.isEmpty())
+                if ((deviceId != null) && !deviceId.isEmpty() && ((wins + losses) > 0) && (m_scoreStore != null))
                 {
-                    final SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
-                    final String key = SPK_SCORE_PREFIX + deviceId;
-                    final String score = sharedPreferences.getString(key, "0-0");
-                    final String [] ss = score.split("-");
-                    int score0;
-                    int score1;
-                    if (ss.length == 2)
+                    try
                     {
-                        score0 = Integer.valueOf(ss[0]);
-                        score1 = Integer.valueOf(ss[1]);
+                        m_scoreStore.addResults(deviceId, wins, losses);
                     }
-                    else
+                    catch (final IOException ex)
                     {
-                        score0 = 0;
-                        score1 = 0;
+                        Log.e(LOG_TAG, ex.toString());
                     }
-                    if (win)
-                        score0++;
-                    else
-                        score1++;
-                    final SharedPreferences.Editor editor = sharedPreferences.edit();
-                    editor.putString(key, Integer.toString(score0) + '-' + Integer.toString(score1));
-                    editor.apply();
                 }
             }
         }
@@ -23,9 +23,6 @@ import android.graphics.Color;
 import android.opengl.GLES20;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 
 public class ModelBall
 {
@@ -33,6 +30,8 @@ public class ModelBall
     {
         private final int m_programId;
         private final int m_matrixLocation;
+        private final int m_ballLocation;
+        private final int m_lightLocation;
         private final int m_positionLocation;
 
         public Shadow(Context context) throws IOException
@@ -43,30 +42,46 @@ public class ModelBall
             if (m_matrixLocation < 0)
                 throw new IOException();
 
+            m_ballLocation = GLES20.glGetUniformLocation(m_programId, "u_v4Ball");
+            if (m_ballLocation < 0)
+                throw new IOException();
+
+            m_lightLocation = GLES20.glGetUniformLocation(m_programId, "u_v3Light");
+            if (m_lightLocation < 0)
+                throw new IOException();
+
             m_positionLocation = GLES20.glGetAttribLocation(m_programId, "a_v4Position");
             if (m_positionLocation < 0)
                 throw new IOException();
         }
 
-        public void render(float [] mvpMatrix, int mvpMatrixOffset, FloatBuffer vertexData)
+        public void render(float [] vpMatrix, int vpMatrixOffset, float [] ball, Vector light, VertexBuffer vertexBuffer)
         {
-            GLES20.glUseProgram(m_programId);
-            GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, mvpMatrix, mvpMatrixOffset);
-            GLES20.glEnableVertexAttribArray(m_positionLocation);
-            GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, vertexData);
+            GLState.useProgram(m_programId, (1 << m_positionLocation));
+            GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, vpMatrix, vpMatrixOffset);
+            GLES20.glUniform4fv(m_ballLocation, 1, ball, 0);
+            GLES20.glUniform3fv(m_lightLocation, 1, light.v, light.offs);
+            if (!vertexBuffer.bind())
+                return;
+            GLState.enableVertexAttribArray(m_positionLocation);
+            GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
             GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-            GLES20.glDisableVertexAttribArray(m_positionLocation);
-            GLES20.glUseProgram(0);
         }
     }
 
+    /* Quad shared by all balls */
+    private static VertexBuffer s_vertexBuffer;
+
     private final int m_color;
     private final int m_programId;
     private final int m_matrixLocation;
+    private final int m_ballLocation;
+    private final int m_eyeLocation;
     private final int m_positionLocation;
     private final int m_colorLocation;
     private final int m_lightLocation;
-    private final FloatBuffer m_vertexData;
+    private final int m_lightColorLocation;
+    private final VertexBuffer m_vertexBuffer;
     private final Shadow m_shadow;
 
     public ModelBall(Context context, int color) throws IOException
@@ -78,6 +93,14 @@ public class ModelBall
         if (m_matrixLocation < 0)
             throw new IOException();
 
+        m_ballLocation = GLES20.glGetUniformLocation( m_programId, "u_v4Ball" );
+        if (m_ballLocation < 0)
+            throw new IOException();
+
+        m_eyeLocation = GLES20.glGetUniformLocation( m_programId, "u_v4Eye" );
+        if (m_eyeLocation < 0)
+            throw new IOException();
+
         m_positionLocation = GLES20.glGetAttribLocation( m_programId, "a_v4Position" );
         if (m_positionLocation < 0)
             throw new IOException();
@@ -86,50 +109,62 @@ public class ModelBall
         if (m_colorLocation < 0)
             throw new IOException();
 
-        m_lightLocation = GLES20.glGetUniformLocation( m_programId, "u_v3Light" );
+        m_lightLocation = GLES20.glGetUniformLocation( m_programId, "u_v4Light" );
         if (m_lightLocation < 0)
             throw new IOException();
 
-        final float [] vertices =
+        m_lightColorLocation = GLES20.glGetUniformLocation( m_programId, "u_v3LightColor" );
+        if (m_lightColorLocation < 0)
+            throw new IOException();
+
+        if (s_vertexBuffer == null)
         {
-            -1f, -1f,
-            -1f,  1f,
-            1f, -1f,
-            1f,  1f
-        };
-
-        final int bufferCapacity = (Float.SIZE / Byte.SIZE) * vertices.length;
-        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bufferCapacity);
-        byteBuffer.order(ByteOrder.nativeOrder());
-        m_vertexData = byteBuffer.asFloatBuffer();
-        m_vertexData.put(vertices);
-        m_vertexData.position(0);
+            final float [] vertices =
+            {
+                -1f, -1f,
+                -1f,  1f,
+                1f, -1f,
+                1f,  1f
+            };
+            s_vertexBuffer = new VertexBuffer(vertices, GLES20.GL_STATIC_DRAW);
+        }
+        m_vertexBuffer = s_vertexBuffer;
 
         m_shadow = new Shadow(context);
     }
 
-    public void draw(float [] mvpMatrix, int mvpMatrixOffset, float [] light, int lightOffset)
+    /* Ball is a quad facing the eye, oriented in the vertex shader.
+     * ball: center (x, y, z) and radius,
+     * eye: position (w=1) or direction (w=0) the quad should face.
+     */
+    public void draw(float [] vpMatrix, int vpMatrixOffset, float [] ball,
+            float eyeX, float eyeY, float eyeZ, float eyeW, Vector light)
     {
-        GLES20.glUseProgram(m_programId);
+        GLState.useProgram(m_programId, (1 << m_positionLocation));
 
-        GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, mvpMatrix, mvpMatrixOffset);
+        GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, vpMatrix, vpMatrixOffset);
+        GLES20.glUniform4fv(m_ballLocation, 1, ball, 0);
+        GLES20.glUniform4f(m_eyeLocation, eyeX, eyeY, eyeZ, eyeW);
 
-        GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, m_vertexData);
-        GLES20.glEnableVertexAttribArray(m_positionLocation);
+        if (!m_vertexBuffer.bind())
+            return;
+        GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
+        GLState.enableVertexAttribArray(m_positionLocation);
 
         final float red = ((float) Color.red(m_color)) / 255f;
         final float green = ((float)Color.green(m_color)) / 255f;
         final float blue = ((float)Color.blue(m_color)) / 255f;
         GLES20.glUniform3f(m_colorLocation, red, green, blue);
 
-        GLES20.glUniform3fv(m_lightLocation, 2, light, lightOffset);
+        GLES20.glUniform4fv(m_lightLocation, 1, light.v, light.offs);
+        GLES20.glUniform3fv(m_lightColorLocation, 1, light.v, light.offs+4);
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glUseProgram(0);
     }
 
-    public void drawShadow(float [] mvpMatrix, int mvpMatrixOffset)
+    /* Shadow quad faces the light position */
+    public void drawShadow(float [] vpMatrix, int vpMatrixOffset, float [] ball, Vector light)
     {
-        m_shadow.render(mvpMatrix, mvpMatrixOffset, m_vertexData);
+        m_shadow.render(vpMatrix, vpMatrixOffset, ball, light, m_vertexBuffer);
     }
 }
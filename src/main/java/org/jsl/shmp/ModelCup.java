@@ -21,68 +21,95 @@ package org.jsl.shmp;
 import android.content.Context;
 import android.graphics.Color;
 import android.opengl.GLES20;
+import android.util.SparseArray;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.util.Set;
-
 class ModelCup
 {
-    private static final int STRIDE = (3 + 3) * (Float.SIZE / Byte.SIZE);
+    /* Cups are drawn in batches: the vertex buffer keeps BATCH_SIZE copies
+     * of the cup mesh, each vertex refers its copy by the instance index attribute,
+     * position and scale of each cup are passed in the uniform array.
+     * Uniform array size in cup_vs.glsl and cup_shadow_vs.glsl should match BATCH_SIZE.
+     */
+    public static final int BATCH_SIZE = 64;
+    public static final int INSTANCE_SIZE = CupMesh.INSTANCE_SIZE;
+
+    private static final int STRIDE = CupMesh.VERTEX_SIZE * VertexBuffer.FLOAT_SIZE;
+    private static final int NORMAL_OFFSET = 3 * VertexBuffer.FLOAT_SIZE;
+    private static final int INSTANCE_OFFSET = (3 + 3) * VertexBuffer.FLOAT_SIZE;
 
     private static final String SV_MATRIX = "u_m4Matrix";
+    private static final String SV_INSTANCE = "u_v4Instance";
     private static final String SV_EYE_POSITION = "u_v3EyePosition";
     private static final String SV_LIGHT_POSITION = "u_v3Light";
     private static final String SV_COLOR = "u_v3Color";
     private static final String SV_SHADOW_MATRIX = "u_m4ShadowMatrix";
     private static final String SV_SHADOW_TEXTURE = "u_shadowTexture";
     private static final String SV_POSITION = "a_v4Position";
+    private static final String SV_NORMAL = "a_v3Normal";
+    private static final String SV_INSTANCE_INDEX = "a_fInstance";
 
     private class Shadow
     {
         private final int m_programId;
         private final int m_matrixLocation;
+        private final int m_instanceLocation;
         private final int m_positionLocation;
+        private final int m_instanceIndexLocation;
 
         public Shadow(Context context) throws IOException
         {
-            m_programId = Canvas3D.createProgram(context, R.raw.shadow_vs, R.raw.shadow_fs, null);
+            m_programId = Canvas3D.createProgram(context, R.raw.cup_shadow_vs, R.raw.shadow_fs, null);
 
             m_matrixLocation = GLES20.glGetUniformLocation(m_programId, SV_MATRIX);
             if (m_matrixLocation < 0)
                 throw new IOException(SV_MATRIX);
 
+            m_instanceLocation = GLES20.glGetUniformLocation(m_programId, SV_INSTANCE);
+            if (m_instanceLocation < 0)
+                throw new IOException(SV_INSTANCE);
+
             m_positionLocation = GLES20.glGetAttribLocation(m_programId, SV_POSITION);
             if (m_positionLocation < 0)
                 throw new IOException(SV_POSITION);
+
+            m_instanceIndexLocation = GLES20.glGetAttribLocation(m_programId, SV_INSTANCE_INDEX);
+            if (m_instanceIndexLocation < 0)
+                throw new IOException(SV_INSTANCE_INDEX);
         }
 
-        public void draw(float [] mvpMatrix, int mvpMatrixOffset)
+        public void draw(float [] vpMatrix, int vpMatrixOffset, float [] instance, int count)
         {
-            GLES20.glUseProgram(m_programId);
+            GLState.useProgram(m_programId, (1 << m_positionLocation) | (1 << m_instanceIndexLocation));
 
-            GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, mvpMatrix, mvpMatrixOffset);
+            GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, vpMatrix, vpMatrixOffset);
 
-            /* Side */
-            m_vertexData.position(0);
-            GLES20.glEnableVertexAttribArray(m_positionLocation);
-            GLES20.glVertexAttribPointer(m_positionLocation, 3, GLES20.GL_FLOAT, false, STRIDE, m_vertexData);
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, m_stripes*2+2);
+            if (!m_vertexBuffer.bind())
+                return;
 
-            /* Bottom */
-            m_vertexData.position(m_bottomOffs);
-            GLES20.glEnableVertexAttribArray(m_positionLocation);
-            GLES20.glVertexAttribPointer(m_positionLocation, 3, GLES20.GL_FLOAT, false, STRIDE, m_vertexData);
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, m_stripes+2);
+            GLState.enableVertexAttribArray(m_positionLocation);
+            GLES20.glVertexAttribPointer(m_positionLocation, 3, GLES20.GL_FLOAT, false, STRIDE, 0);
+            GLState.enableVertexAttribArray(m_instanceIndexLocation);
+            GLES20.glVertexAttribPointer(m_instanceIndexLocation, 1, GLES20.GL_FLOAT, false, STRIDE, INSTANCE_OFFSET);
 
-            GLES20.glUseProgram(0);
+            for (int idx=0; idx<count; idx+=BATCH_SIZE)
+            {
+                final int batchSize = Math.min(count-idx, BATCH_SIZE);
+                GLES20.glUniform4fv(m_instanceLocation, batchSize, instance, idx*INSTANCE_SIZE);
+                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, m_vertices*batchSize);
+            }
         }
     }
 
+    /* Cup batch vertex buffers by number of stripes,
+     * shared by all models, survive EGL context loss and view recreation.
+     */
+    private static final SparseArray<VertexBuffer> s_vertexBuffers = new SparseArray<VertexBuffer>();
+
     private final int m_programId;
     private final int m_matrixLocation;
+    private final int m_instanceLocation;
     private final int m_eyePositionLocation;
     private final int m_lightPositionLocation;
     private final int m_colorLocation;
@@ -90,11 +117,36 @@ class ModelCup
     private final int m_shadowTextureLocation;
     private final int m_positionLocation;
     private final int m_normalLocation;
-    private final FloatBuffer m_vertexData;
-    private final int m_stripes;
-    private final int m_bottomOffs;
+    private final int m_instanceIndexLocation;
+    private final VertexBuffer m_vertexBuffer;
+    private final int m_vertices;
     private final Shadow m_shadow;
 
+    private static VertexBuffer getVertexBuffer(int stripes)
+    {
+        synchronized (s_vertexBuffers)
+        {
+            VertexBuffer vertexBuffer = s_vertexBuffers.get(stripes);
+            if (vertexBuffer == null)
+            {
+                final int vertices = CupMesh.getVertices(stripes);
+                vertexBuffer = new VertexBuffer(vertices*CupMesh.VERTEX_SIZE*BATCH_SIZE, GLES20.GL_STATIC_DRAW);
+                CupMesh.create(vertexBuffer.getData(), stripes, BATCH_SIZE);
+                vertexBuffer.getData().position(0);
+                s_vertexBuffers.put(stripes, vertexBuffer);
+            }
+            return vertexBuffer;
+        }
+    }
+
+    /* Builds the cup mesh in advance, could be called from any thread,
+     * GPU buffer is still created by the first draw on the render thread.
+     */
+    public static void prepare(int stripes)
+    {
+        getVertexBuffer(stripes);
+    }
+
     public ModelCup(Context context, int stripes, Set<String> macro) throws IOException
     {
         m_programId = Canvas3D.createProgram(context, R.raw.cup_vs, R.raw.cup_fs, macro);
@@ -103,6 +155,10 @@ class ModelCup
         if (m_matrixLocation < 0)
             throw new IOException(SV_MATRIX);
 
+        m_instanceLocation = GLES20.glGetUniformLocation(m_programId, SV_INSTANCE);
+        if (m_instanceLocation < 0)
+            throw new IOException(SV_INSTANCE);
+
         m_eyePositionLocation = GLES20.glGetUniformLocation(m_programId, SV_EYE_POSITION);
         if (m_eyePositionLocation < 0)
             throw new IOException(SV_EYE_POSITION);
@@ -135,150 +191,43 @@ class ModelCup
         if (m_positionLocation < 0)
             throw new IOException(SV_POSITION);
 
-        m_normalLocation = GLES20.glGetAttribLocation(m_programId, "a_v3Normal");
+        m_normalLocation = GLES20.glGetAttribLocation(m_programId, SV_NORMAL);
         if (m_normalLocation < 0)
-            throw new IOException();
+            throw new IOException(SV_NORMAL);
+
+        m_instanceIndexLocation = GLES20.glGetAttribLocation(m_programId, SV_INSTANCE_INDEX);
+        if (m_instanceIndexLocation < 0)
+            throw new IOException(SV_INSTANCE_INDEX);
 
         m_shadow = new Shadow(context);
 
-        m_stripes = stripes;
-        m_bottomOffs = ((stripes + 1) * 2 * 6);
-        final int bufferCapacity = (Float.SIZE / Byte.SIZE) * (m_bottomOffs + /*bottom*/(stripes+2)*6);
-        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect( bufferCapacity );
-        byteBuffer.order( ByteOrder.nativeOrder() );
-        m_vertexData = byteBuffer.asFloatBuffer();
-
-        final float neckRadius = 1f;
-        final float [] tmp = new float[8];
-        final float height =  (neckRadius / 6f * 10f);
-        final float bottomRadius = (neckRadius / 6f * 4.5f);
-
-        final float pitch = (float) (-Math.PI * 2f / stripes);
-        final float pitchCos = (float) Math.cos( pitch );
-        final float pitchSin = (float) Math.sin( pitch );
-
-        final float [] neck = { (float)(neckRadius * Math.cos(pitch/2f)), (float)(neckRadius * Math.sin(pitch/2f)), 0f, 0f };
-        final float [] bottom = { bottomRadius, 0f, height, 0f };
-        final float [] n1 = new float[4];
-        final float [] n2 = new float[4];
-        final float [] bottomNormal = { 0f, 0f, 1f }; /* bottom normal */
-
-        /*  0 p1 -  3 p1n
-         *  6 p2 -  9 p2n
-         * 12 p3 - 15 p3n
-         */
-        m_vertexData.position(0);
-        m_vertexData.put(bottom, 0, 3);
-
-        m_vertexData.position(6);
-        m_vertexData.put(neck, 0, 3);
-
-        m_vertexData.position(m_bottomOffs);
-        m_vertexData.put(/*x*/0f);
-        m_vertexData.put(/*y*/0f);
-        m_vertexData.put(/*z*/height);
-        m_vertexData.put(bottomNormal);
-        m_vertexData.put(bottom, 0, 3);
-        m_vertexData.put(bottomNormal);
-
-        Vector.rotateAroundZ(bottom, 0, pitchCos, pitchSin);
-        Vector.rotateAroundZ(neck, 0, pitchCos, pitchSin);
-
-        m_vertexData.position(12);
-        m_vertexData.put(bottom, 0, 3);
-
-        m_vertexData.position(18);
-        m_vertexData.put(neck, 0, 3);
-
-        m_vertexData.position(m_bottomOffs + 6*2);
-        m_vertexData.put(bottom, 0, 3);
-        m_vertexData.put(bottomNormal);
-        int bottomPos = m_vertexData.position();
-
-        Vector.rotateAroundZ(bottom, 0, pitchCos, pitchSin);
-        Vector.rotateAroundZ(neck, 0, pitchCos, pitchSin);
-
-        /* Lighting requires face normal,
-         * we could calculate it once for one face and then rotate.
-         */
-        Vector.set(tmp, 0,
-                m_vertexData.get(0) - m_vertexData.get(6),
-                m_vertexData.get(1) - m_vertexData.get(7),
-                m_vertexData.get(2) - m_vertexData.get(8));
-
-        Vector.set(tmp, 4,
-                m_vertexData.get(12) - m_vertexData.get(6),
-                m_vertexData.get(13) - m_vertexData.get(7),
-                m_vertexData.get(14) - m_vertexData.get(8));
-
-        Vector.crossProduct(n1, 0, tmp, 0, tmp, 4);
-        Vector.normalize(n1, 0);
-
-        Vector.set(tmp, 0,
-                m_vertexData.get(18) - m_vertexData.get(12),
-                m_vertexData.get(19) - m_vertexData.get(13),
-                m_vertexData.get(20) - m_vertexData.get(14));
-
-        Vector.set(tmp, 4,
-                m_vertexData.get(6) - m_vertexData.get(12),
-                m_vertexData.get(7) - m_vertexData.get(13),
-                m_vertexData.get(8) - m_vertexData.get(14));
-
-        Vector.crossProduct(n2, 0, tmp, 0, tmp, 4);
-        Vector.normalize(n2, 0);
-
-        m_vertexData.position(3);
-        m_vertexData.put(n1, 0, 3);
-        m_vertexData.position(9);
-        m_vertexData.put(n2, 0, 3);
-
-        Vector.rotateAroundZ(n1, 0, pitchCos, pitchSin);
-        Vector.rotateAroundZ(n2, 0, pitchCos, pitchSin);
-
-        m_vertexData.position(15);
-        m_vertexData.put(n1, 0, 3);
-        m_vertexData.position(21);
-        m_vertexData.put(n2, 0, 3);
-
-        Vector.rotateAroundZ(n1, 0, pitchCos, pitchSin);
-        Vector.rotateAroundZ(n2, 0, pitchCos, pitchSin);
-
-        for (int idx=stripes-1; idx>0; idx--)
-        {
-            m_vertexData.put(bottom, 0, 3);
-            m_vertexData.put(n1, 0, 3);
-            m_vertexData.put(neck, 0, 3);
-            m_vertexData.put(n2, 0, 3);
-
-            final int pos = m_vertexData.position();
-            m_vertexData.position(bottomPos);
-            m_vertexData.put(bottom, 0, 3);
-            m_vertexData.put(bottomNormal);
-            bottomPos = m_vertexData.position();
-            m_vertexData.position(pos);
-
-            Vector.rotateAroundZ(bottom, 0, pitchCos, pitchSin);
-            Vector.rotateAroundZ(n1, 0, pitchCos, pitchSin);
-            Vector.rotateAroundZ(neck, 0, pitchCos, pitchSin);
-            Vector.rotateAroundZ(n2, 0, pitchCos, pitchSin);
-        }
+        m_vertices = CupMesh.getVertices(stripes);
+        m_vertexBuffer = getVertexBuffer(stripes);
     }
 
-    public void draw(
-            float [] mvpMatrix, int mvpMatrixOffset,
-            float [] eyePosition, int eyePositionOffset,
-            float [] light, int lightOffset,
-            float [] shadowMatrix, int shadowMatrixOffset, int shadowTextureId)
+    /* Draws all cups with one draw call per BATCH_SIZE cups,
+     * 'instance' keeps INSTANCE_SIZE floats for each cup.
+     */
+    public void draw(float [] vpMatrix, Vector eyePosition, Vector light, ShadowObject shadowObject,
+            float [] instance, int count, float [] tmp, int tmpOffset)
     {
         final int color = Color.BLUE;
 
-        GLES20.glUseProgram(m_programId);
+        GLState.useProgram(m_programId,
+                (1 << m_positionLocation) | (1 << m_normalLocation) | (1 << m_instanceIndexLocation));
+
+        GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, vpMatrix, 0);
+        GLES20.glUniform3fv(m_eyePositionLocation, 1, eyePosition.v, eyePosition.offs);
 
-        GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, mvpMatrix, mvpMatrixOffset);
-        GLES20.glUniform3fv(m_eyePositionLocation, 1, eyePosition, eyePositionOffset);
-        GLES20.glUniform3fv(m_lightPositionLocation, 2, light, lightOffset);
+        tmp[tmpOffset] = light.getX();
+        tmp[tmpOffset+1] = light.getY();
+        tmp[tmpOffset+2] = light.getZ();
+        tmp[tmpOffset+3] = light.get(4);
+        tmp[tmpOffset+4] = light.get(5);
+        tmp[tmpOffset+5] = light.get(6);
+        GLES20.glUniform3fv(m_lightPositionLocation, 2, tmp, tmpOffset);
 
-        if (shadowMatrix == null)
+        if (shadowObject == null)
         {
             if (BuildConfig.DEBUG && (m_shadowMatrixLocation > 0))
                 throw new AssertionError();
@@ -288,10 +237,9 @@ class ModelCup
             if (BuildConfig.DEBUG && (m_shadowMatrixLocation < 0))
                 throw new AssertionError();
 
-            GLES20.glUniformMatrix4fv(m_shadowMatrixLocation, 1, false, shadowMatrix, shadowMatrixOffset);
+            GLES20.glUniformMatrix4fv(m_shadowMatrixLocation, 1, false, shadowObject.matrix, 16);
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, shadowTextureId);
+            GLState.bindTexture(0, shadowObject.textureId);
             GLES20.glUniform1i(m_shadowTextureLocation, 0);
         }
 
@@ -300,36 +248,28 @@ class ModelCup
         final float blue = ((float)Color.blue(color)) / 255f;
         GLES20.glUniform3f(m_colorLocation, red, green, blue);
 
-        /* Draw side */
-
-        m_vertexData.position(0);
-        GLES20.glVertexAttribPointer( m_positionLocation, 3, GLES20.GL_FLOAT, false, STRIDE, m_vertexData );
-        GLES20.glEnableVertexAttribArray( m_positionLocation );
+        if (!m_vertexBuffer.bind())
+            return;
 
-        m_vertexData.position(3);
-        GLES20.glVertexAttribPointer( m_normalLocation, 3, GLES20.GL_FLOAT, false, STRIDE, m_vertexData );
-        GLES20.glEnableVertexAttribArray( m_normalLocation );
+        GLES20.glVertexAttribPointer( m_positionLocation, 3, GLES20.GL_FLOAT, false, STRIDE, 0 );
+        GLState.enableVertexAttribArray( m_positionLocation );
 
-        GLES20.glDrawArrays( GLES20.GL_TRIANGLE_STRIP, 0, m_stripes*2+2 );
+        GLES20.glVertexAttribPointer( m_normalLocation, 3, GLES20.GL_FLOAT, false, STRIDE, NORMAL_OFFSET );
+        GLState.enableVertexAttribArray( m_normalLocation );
 
-        /* Draw bottom */
+        GLES20.glVertexAttribPointer( m_instanceIndexLocation, 1, GLES20.GL_FLOAT, false, STRIDE, INSTANCE_OFFSET );
+        GLState.enableVertexAttribArray( m_instanceIndexLocation );
 
-        m_vertexData.position( m_bottomOffs );
-        GLES20.glVertexAttribPointer( m_positionLocation, 3, GLES20.GL_FLOAT, false, STRIDE, m_vertexData );
-        GLES20.glEnableVertexAttribArray( m_positionLocation );
-
-        m_vertexData.position( m_bottomOffs + 3 );
-        GLES20.glVertexAttribPointer( m_normalLocation, 3, GLES20.GL_FLOAT, false, STRIDE, m_vertexData );
-        GLES20.glEnableVertexAttribArray( m_normalLocation );
-
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, m_stripes+2);
-
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        GLES20.glUseProgram(0);
+        for (int idx=0; idx<count; idx+=BATCH_SIZE)
+        {
+            final int batchSize = Math.min(count-idx, BATCH_SIZE);
+            GLES20.glUniform4fv(m_instanceLocation, batchSize, instance, idx*INSTANCE_SIZE);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, m_vertices*batchSize);
+        }
     }
 
-    public void drawShadow(float [] mvpMatrix, int mvpMatrixOffset)
+    public void drawShadow(float [] vpMatrix, int vpMatrixOffset, float [] instance, int count)
     {
-        m_shadow.draw(mvpMatrix, mvpMatrixOffset);
+        m_shadow.draw(vpMatrix, vpMatrixOffset, instance, count);
     }
 }
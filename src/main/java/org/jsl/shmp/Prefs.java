@@ -32,5 +32,13 @@ public class Prefs
     public static final long DEFAULT_PING_TIMEOUT = 10;
     public static final short DEFAULT_GAME_TIME = 20;
     public static final short DEFAULT_CAPS = 3;
+    public static final long RESOLVE_CACHE_TTL = 60; /* seconds */
+    public static final int RECENT_SERVERS = 4;
+    public static final long RESUME_TIMEOUT = 15; /* seconds */
+    public static final int RESUME_MESSAGES = 256; /* must be a power of 2, masks the sequence number */
+    public static final int MAX_SPECTATORS = 16;
+    public static final int SPECTATOR_QUEUE_LIMIT = (64 * 1024); /* bytes */
+    public static final int SPECTATOR_QUEUE_CONGESTED = (16 * 1024); /* bytes */
+    public static final long TABLE_STATE_INTERVAL = 1000; /* milliseconds */
     public static final boolean RENDER_DEBUG = false;
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* Linked program binaries kept in the application cache directory,
+ * so shaders are not compiled again on the next start.
+ * Works with OpenGL ES 3.0 (API 18+) context providing at least one
+ * program binary format, does nothing otherwise.
+ * Binaries are stamped with the GL version, renderer and application
+ * update time, stale ones are ignored and overwritten.
+ * Should be used on the render thread only.
+ */
+class ProgramBinaryCache
+{
+    private static final String LOG_TAG = ProgramBinaryCache.class.getSimpleName();
+    private static final String DIR_NAME = "programs";
+
+    private static int s_contextId = -1;
+    private static boolean s_enabled;
+    private static String s_stamp;
+
+    private static boolean isEnabled(Context context)
+    {
+        final int contextId = VertexBuffer.getContextId();
+        if (s_contextId != contextId)
+        {
+            s_contextId = contextId;
+            s_enabled = false;
+
+            final String version = GLES20.glGetString(GLES20.GL_VERSION);
+            if ((Build.VERSION.SDK_INT >= 18) && (version != null) && version.startsWith("OpenGL ES 3"))
+            {
+                final int [] formats = new int[1];
+                GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+                if (formats[0] > 0)
+                {
+                    long updateTime;
+                    try
+                    {
+                        updateTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+                    }
+                    catch (final PackageManager.NameNotFoundException ex)
+                    {
+                        updateTime = 0;
+                    }
+                    s_stamp = (version + '\n' + GLES20.glGetString(GLES20.GL_RENDERER) + '\n' + updateTime);
+                    s_enabled = true;
+                }
+            }
+            Log.d(LOG_TAG, "enabled=" + s_enabled);
+        }
+        return s_enabled;
+    }
+
+    private static void close(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (final IOException ex)
+        {
+            Log.w(LOG_TAG, ex.toString());
+        }
+    }
+
+    private static File getFile(Context context, String key)
+    {
+        final File dir = new File(context.getCacheDir(), DIR_NAME);
+        return new File(dir, key.replace(':', '_'));
+    }
+
+    /* Should be called before glLinkProgram() for the program to be stored */
+    public static void prepare(Context context, int programId)
+    {
+        if (isEnabled(context))
+            GLES30.glProgramParameteri(programId, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
+    /* Returns the linked program loaded from the cache, or 0 */
+    public static int load(Context context, String key)
+    {
+        if (!isEnabled(context))
+            return 0;
+
+        final File file = getFile(context, key);
+        if (!file.exists())
+            return 0;
+
+        int format;
+        byte [] binary;
+        DataInputStream inputStream = null;
+        try
+        {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!s_stamp.equals(inputStream.readUTF()))
+                return 0;
+            format = inputStream.readInt();
+            binary = new byte[inputStream.readInt()];
+            inputStream.readFully(binary);
+        }
+        catch (final IOException ex)
+        {
+            Log.w(LOG_TAG, ex.toString());
+            return 0;
+        }
+        finally
+        {
+            if (inputStream != null)
+                close(inputStream);
+        }
+
+        final int programId = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(programId, format, ByteBuffer.wrap(binary), binary.length);
+
+        /* Driver can reject the binary, program is compiled from sources then */
+        final int [] linkStatus = new int[1];
+        GLES20.glGetProgramiv(programId, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE)
+        {
+            Log.i(LOG_TAG, "binary rejected: " + key);
+            GLES20.glDeleteProgram(programId);
+            return 0;
+        }
+        return programId;
+    }
+
+    /* Saves the binary of the linked program */
+    public static void store(Context context, String key, int programId)
+    {
+        if (!isEnabled(context))
+            return;
+
+        final int [] params = new int[2];
+        GLES20.glGetProgramiv(programId, GLES30.GL_PROGRAM_BINARY_LENGTH, params, 0);
+        if (params[0] <= 0)
+            return;
+
+        final byte [] binary = new byte[params[0]];
+        GLES30.glGetProgramBinary(programId, binary.length, params, 0, params, 1, ByteBuffer.wrap(binary));
+        final int length = params[0];
+        final int format = params[1];
+        if ((length <= 0) || (length > binary.length))
+            return;
+
+        /* Written to the temporary file first,
+         * so the partially written binary is never loaded.
+         */
+        final File file = getFile(context, key);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream outputStream = null;
+        try
+        {
+            final File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("failed to create " + dir);
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            outputStream.writeUTF(s_stamp);
+            outputStream.writeInt(format);
+            outputStream.writeInt(length);
+            outputStream.write(binary, 0, length);
+            outputStream.close();
+            outputStream = null;
+            if (!tmpFile.renameTo(file))
+                throw new IOException("failed to rename " + tmpFile);
+        }
+        catch (final IOException ex)
+        {
+            Log.w(LOG_TAG, ex.toString());
+            tmpFile.delete();
+        }
+        finally
+        {
+            if (outputStream != null)
+            {
+                close(outputStream);
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/* Lock-free multiple producers single consumer queue
+ * of the runnables to be executed on the render thread.
+ * Implementation should schedule process() execution on the render thread,
+ * and request a frame rendering when it is done.
+ */
+abstract class RenderThreadQueue
+{
+    private static final AtomicReferenceFieldUpdater<RenderThreadRunnable, RenderThreadRunnable> s_nextUpdater =
+            AtomicReferenceFieldUpdater.newUpdater( RenderThreadRunnable.class, RenderThreadRunnable.class, "nextRenderThreadRunnable" );
+
+    private static final AtomicReferenceFieldUpdater<RenderThreadQueue, RenderThreadRunnable> s_tailUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(RenderThreadQueue.class, RenderThreadRunnable.class, "m_tail");
+
+    private final RenderThreadRunnable m_execMarker;
+    private RenderThreadRunnable m_head;
+    private volatile RenderThreadRunnable m_tail;
+    private int m_frameId;
+
+    /* Should arrange process() to be called on the render thread */
+    protected abstract void schedule();
+
+    /* Called on the render thread when all pending runnables are executed */
+    protected abstract void requestRender();
+
+    public RenderThreadQueue()
+    {
+        m_execMarker = new RenderThreadRunnable() {
+            public boolean runOnRenderThread(int frameId) {
+                /* should never be called */
+                throw new AssertionError();
+            }
+        };
+    }
+
+    public void process()
+    {
+        final int frameId = ++m_frameId;
+        RenderThreadRunnable runnable = m_head;
+        for (;;)
+        {
+            RenderThreadRunnable next = s_nextUpdater.get( runnable );
+            if (next == null)
+            {
+                if (BuildConfig.DEBUG && (m_execMarker.nextRenderThreadRunnable != null))
+                    throw new AssertionError();
+
+                if (s_tailUpdater.compareAndSet(this, runnable, m_execMarker))
+                {
+                    final boolean renderFrame = runnable.runOnRenderThread(frameId);
+
+                    m_head = null;
+                    if (s_tailUpdater.compareAndSet(this, m_execMarker, null))
+                    {
+                        if (BuildConfig.DEBUG && (m_execMarker.nextRenderThreadRunnable != null))
+                            throw new AssertionError();
+                        break;
+                    }
+
+                    while ((next = m_execMarker.nextRenderThreadRunnable) == null);
+                    s_nextUpdater.lazySet(m_execMarker, null);
+
+                    if (renderFrame)
+                    {
+                        m_head = next;
+                        schedule();
+                        break;
+                    }
+
+                    runnable = next;
+                    continue;
+                }
+
+                while ((next = s_nextUpdater.get(runnable)) == null) ;
+                s_nextUpdater.lazySet( runnable, null );
+            }
+            else
+                s_nextUpdater.lazySet( runnable, null );
+
+            final boolean renderFrame = runnable.runOnRenderThread(frameId);
+            if (renderFrame)
+            {
+                m_head = next;
+                schedule();
+                break;
+            }
+            runnable = next;
+        }
+
+        requestRender();
+    }
+
+    public void execute( RenderThreadRunnable runnable )
+    {
+        for (;;)
+        {
+            final RenderThreadRunnable tail = s_tailUpdater.get( this );
+            if (s_tailUpdater.compareAndSet(this, tail, runnable))
+            {
+                if (tail == null)
+                {
+                    m_head = runnable;
+                    schedule();
+                }
+                else
+                    s_nextUpdater.set( tail, runnable );
+                break;
+            }
+        }
+    }
+}
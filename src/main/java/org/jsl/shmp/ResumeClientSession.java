@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.util.Log;
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.Session;
+import org.jsl.collider.StreamDefragger;
+import org.jsl.collider.TimerQueue;
+import java.nio.ByteBuffer;
+
+/* Resumes the game session on a new connection after the connection
+ * to the server was lost. Other side is told how many game messages
+ * were received, so it can send the rest again.
+ */
+public class ResumeClientSession implements Session.Listener
+{
+    private static final String LOG_TAG = ResumeClientSession.class.getSimpleName();
+    private static final String LOG_PROTOCOL = "Protocol";
+
+    private final GameClientView m_view;
+    private final Session m_session;
+    private final PingConfig m_pingConfig;
+    private final GameClientSession m_gameSession;
+    private final StreamDefragger m_streamDefragger;
+    private final TimerHandler m_timerHandler;
+    private boolean m_resumed;
+
+    private class TimerHandler implements TimerQueue.Task
+    {
+        public long run()
+        {
+            Log.i( LOG_TAG, m_session.getRemoteAddress() + ": session timeout, close connection." );
+            m_session.closeConnection();
+            return 0; /*once*/
+        }
+    }
+
+    public ResumeClientSession(
+            GameClientView view,
+            Session session,
+            PingConfig pingConfig,
+            GameClientSession gameSession )
+    {
+        m_view = view;
+        m_session = session;
+        m_pingConfig = pingConfig;
+        m_gameSession = gameSession;
+        m_streamDefragger = GameSession.createStreamDefragger();
+
+        if (pingConfig.timeout > 0)
+        {
+            m_timerHandler = new TimerHandler();
+            pingConfig.timerQueue.schedule( m_timerHandler, pingConfig.timeout, pingConfig.timeUnit );
+        }
+        else
+            m_timerHandler = null;
+
+        final ByteBuffer resumeRequest = Protocol.ResumeRequest.create(
+                Protocol.VERSION, gameSession.getResumeToken(), gameSession.getMessagesReceived() );
+        m_session.sendData( resumeRequest );
+    }
+
+    public void onDataReceived( RetainableByteBuffer data )
+    {
+        final RetainableByteBuffer msg = m_streamDefragger.getNext( data );
+        if (msg == null)
+        {
+            /* ResumeReply is fragmented, strange but can happen */
+            Log.i( LOG_TAG, m_session.getRemoteAddress() + ": fragmented ResumeReply." );
+        }
+        else if (msg == StreamDefragger.INVALID_HEADER)
+        {
+            Log.i( LOG_TAG, m_session.getRemoteAddress() +
+                    ": invalid message received, close connection." );
+            m_session.closeConnection();
+        }
+        else
+        {
+            if (m_timerHandler != null)
+            {
+                boolean interrupted = false;
+                try
+                {
+                    final TimerQueue timerQueue = m_pingConfig.timerQueue;
+                    if (timerQueue.cancel(m_timerHandler) != 0)
+                    {
+                        /* timer fired, session is being closed,
+                         * onConnectionClosed() will be called soon, do nothing here.
+                         */
+                        return;
+                    }
+                }
+                catch (final InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+                finally
+                {
+                    if (interrupted)
+                        Thread.currentThread().interrupt();
+                }
+            }
+
+            final short messageId = Protocol.Message.getMessageId( msg );
+            if (messageId == Protocol.ResumeReplyOk.ID)
+            {
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.ResumeReplyOk.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+
+                final int messagesReceived = Protocol.ResumeReplyOk.getMessagesReceived( msg );
+                final int rc = m_gameSession.resume( m_session, m_streamDefragger, messagesReceived, false );
+                if (rc == GameSession.RESUME_OK)
+                {
+                    m_resumed = true;
+                    m_session.replaceListener( m_gameSession );
+                    /* Server sends messages lost right after the reply */
+                    m_gameSession.onResumed();
+                }
+                else
+                    m_session.closeConnection();
+            }
+            else if (messageId == Protocol.HandshakeReplyFail.ID)
+            {
+                if (Log.isLoggable(LOG_PROTOCOL, Log.VERBOSE))
+                {
+                    final StringBuilder sb = new StringBuilder();
+                    Protocol.HandshakeReplyFail.print(sb, msg);
+                    Log.v(LOG_PROTOCOL, sb.toString());
+                }
+                /* Server does not have the session any more */
+                m_gameSession.close();
+                m_session.closeConnection();
+            }
+            else
+            {
+                Log.i( LOG_TAG, m_session.getRemoteAddress() +
+                        ": unexpected message " + messageId + " received, closing connection." );
+                m_session.closeConnection();
+            }
+        }
+    }
+
+    public void onConnectionClosed()
+    {
+        Log.d( LOG_TAG, m_session.getRemoteAddress() + ": connection closed" );
+
+        boolean interrupted = false;
+        if (m_timerHandler != null)
+        {
+            try
+            {
+                final TimerQueue timerQueue = m_pingConfig.timerQueue;
+                timerQueue.cancel( m_timerHandler );
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.w( LOG_TAG, ex.toString() );
+                interrupted = true;
+            }
+        }
+
+        if (m_resumed)
+        {
+            /* Connection was closed while the listener was being replaced */
+            m_gameSession.onConnectionClosed();
+        }
+        else
+        {
+            m_streamDefragger.close();
+            m_view.scheduleResume( m_gameSession );
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
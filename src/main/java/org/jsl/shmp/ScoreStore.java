@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Win/loss counters per opponent kept in the memory mapped file
+ * as fixed size records {key, wins, losses}, where the key is a hash
+ * of the opponent device id. Records are only appended, the open
+ * addressing index (key -> record) is built in memory on open.
+ * Counters are updated in place, mapped buffer is forced to the disk
+ * not more often than FLUSH_INTERVAL, the rest is done by flush().
+ * Not thread safe, should be used on the UI thread.
+ */
+class ScoreStore
+{
+    private static final String LOG_TAG = ScoreStore.class.getSimpleName();
+
+    private static final int MAGIC = 0x53485343; /* "SHSC" */
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16; /* magic, version, count, reserved */
+    private static final int COUNT_OFFSET = 8;
+    private static final int RECORD_SIZE = 16; /* key, wins, losses */
+    private static final int WINS_OFFSET = 8;
+    private static final int LOSSES_OFFSET = 12;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long FLUSH_INTERVAL = 5000; /* ms */
+
+    private final RandomAccessFile m_file;
+    private final FileChannel m_channel;
+    private MappedByteBuffer m_buffer;
+    private int m_capacity; /* records */
+    private int m_count;
+
+    private long [] m_indexKeys; /* 0 is an empty slot */
+    private int [] m_indexRecords;
+    private int m_indexMask;
+
+    private boolean m_dirty;
+    private long m_flushTime;
+
+    /* 64-bit FNV-1a, 0 is reserved for the empty slot */
+    private static long hash(String deviceId)
+    {
+        long hash = 0xcbf29ce484222325L;
+        final int length = deviceId.length();
+        for (int idx=0; idx<length; idx++)
+        {
+            hash ^= deviceId.charAt(idx);
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+
+    private void map(int capacity) throws IOException
+    {
+        m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        m_capacity = capacity;
+    }
+
+    private void initIndex(int size)
+    {
+        m_indexKeys = new long[size];
+        m_indexRecords = new int[size];
+        m_indexMask = (size - 1);
+    }
+
+    private void addIndex(long key, int record)
+    {
+        int slot = ((int) (key ^ (key >>> 32)) & m_indexMask);
+        while (m_indexKeys[slot] != 0)
+            slot = ((slot + 1) & m_indexMask);
+        m_indexKeys[slot] = key;
+        m_indexRecords[slot] = record;
+    }
+
+    /* Returns record offset in the buffer or -1 */
+    private int find(long key)
+    {
+        int slot = ((int) (key ^ (key >>> 32)) & m_indexMask);
+        for (;;)
+        {
+            final long slotKey = m_indexKeys[slot];
+            if (slotKey == key)
+                return HEADER_SIZE + m_indexRecords[slot] * RECORD_SIZE;
+            if (slotKey == 0)
+                return -1;
+            slot = ((slot + 1) & m_indexMask);
+        }
+    }
+
+    private int append(long key) throws IOException
+    {
+        if (m_count == m_capacity)
+            map(m_capacity * 2);
+
+        /* Keep load factor not above 1/2 */
+        if ((m_count + 1) * 2 > m_indexKeys.length)
+        {
+            final long [] keys = m_indexKeys;
+            final int [] records = m_indexRecords;
+            initIndex(keys.length * 2);
+            for (int idx=0; idx<keys.length; idx++)
+            {
+                if (keys[idx] != 0)
+                    addIndex(keys[idx], records[idx]);
+            }
+        }
+
+        /* Record is written before the counter,
+         * so partially written record is never visible.
+         */
+        final int record = m_count;
+        final int offset = HEADER_SIZE + record * RECORD_SIZE;
+        m_buffer.putLong(offset, key);
+        m_buffer.putInt(offset + WINS_OFFSET, 0);
+        m_buffer.putInt(offset + LOSSES_OFFSET, 0);
+        m_buffer.putInt(COUNT_OFFSET, ++m_count);
+        addIndex(key, record);
+        return offset;
+    }
+
+    public ScoreStore(File file) throws IOException
+    {
+        m_file = new RandomAccessFile(file, "rw");
+        m_channel = m_file.getChannel();
+
+        final long size = m_channel.size();
+        int capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+        if (capacity < INITIAL_CAPACITY)
+            capacity = INITIAL_CAPACITY;
+        map(capacity);
+
+        int count = 0;
+        if (size >= HEADER_SIZE)
+        {
+            if ((m_buffer.getInt(0) == MAGIC) && (m_buffer.getInt(4) == VERSION))
+                count = m_buffer.getInt(COUNT_OFFSET);
+            else
+                Log.w(LOG_TAG, file + ": invalid header, scores are reset.");
+
+            if ((count < 0) || (HEADER_SIZE + (long) count * RECORD_SIZE > size))
+            {
+                Log.w(LOG_TAG, file + ": invalid record count " + count + ", scores are reset.");
+                count = 0;
+            }
+        }
+
+        if (count == 0)
+        {
+            m_buffer.putInt(0, MAGIC);
+            m_buffer.putInt(4, VERSION);
+            m_buffer.putInt(COUNT_OFFSET, 0);
+        }
+        m_count = count;
+
+        int indexSize = 16;
+        while (indexSize < count * 2)
+            indexSize *= 2;
+        initIndex(indexSize);
+        for (int record=0; record<count; record++)
+            addIndex(m_buffer.getLong(HEADER_SIZE + record * RECORD_SIZE), record);
+
+        m_dirty = false;
+        m_flushTime = SystemClock.elapsedRealtime();
+    }
+
+    public boolean contains(String deviceId)
+    {
+        return (find(hash(deviceId)) >= 0);
+    }
+
+    /* Returns "wins-losses" */
+    public String getScore(String deviceId)
+    {
+        final int offset = find(hash(deviceId));
+        if (offset < 0)
+            return "0-0";
+        return Integer.toString(m_buffer.getInt(offset + WINS_OFFSET)) + '-' +
+               Integer.toString(m_buffer.getInt(offset + LOSSES_OFFSET));
+    }
+
+    public void put(String deviceId, int wins, int losses) throws IOException
+    {
+        final long key = hash(deviceId);
+        int offset = find(key);
+        if (offset < 0)
+            offset = append(key);
+        m_buffer.putInt(offset + WINS_OFFSET, wins);
+        m_buffer.putInt(offset + LOSSES_OFFSET, losses);
+        m_dirty = true;
+    }
+
+    /* Adds results of the rounds played in one session */
+    public void addResults(String deviceId, int wins, int losses) throws IOException
+    {
+        final long key = hash(deviceId);
+        int offset = find(key);
+        if (offset < 0)
+            offset = append(key);
+        if (wins > 0)
+            m_buffer.putInt(offset + WINS_OFFSET, m_buffer.getInt(offset + WINS_OFFSET) + wins);
+        if (losses > 0)
+            m_buffer.putInt(offset + LOSSES_OFFSET, m_buffer.getInt(offset + LOSSES_OFFSET) + losses);
+        m_dirty = true;
+
+        final long currentTime = SystemClock.elapsedRealtime();
+        if (currentTime - m_flushTime >= FLUSH_INTERVAL)
+            flush();
+    }
+
+    public void flush()
+    {
+        if (m_dirty)
+        {
+            m_buffer.force();
+            m_dirty = false;
+            m_flushTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public void close()
+    {
+        flush();
+        try
+        {
+            m_channel.close();
+            m_file.close();
+        }
+        catch (final IOException ex)
+        {
+            Log.w(LOG_TAG, ex.toString());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Checks the recently played servers in parallel with NSD discovery:
+ * connects with a short timeout and asks the server for its device id,
+ * server waiting for a client replies and closes the connection.
+ */
+class ServerProbe
+{
+    private static final String LOG_TAG = ServerProbe.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT = 500; /* milliseconds */
+    private static final int READ_TIMEOUT = 1000; /* milliseconds */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public interface Listener
+    {
+        void onServerFound(String deviceId, String playerName, InetSocketAddress addr);
+    }
+
+    private final Listener m_listener;
+    private final ExecutorService m_executor;
+
+    private class ProbeTask implements Runnable
+    {
+        private final String m_deviceId;
+        private final InetSocketAddress m_addr;
+
+        public ProbeTask(String deviceId, InetSocketAddress addr)
+        {
+            m_deviceId = deviceId;
+            m_addr = addr;
+        }
+
+        public void run()
+        {
+            final Socket socket = new Socket();
+            try
+            {
+                socket.connect(m_addr, CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+
+                final ByteBuffer probeRequest = Protocol.ProbeRequest.create(Protocol.VERSION);
+                final byte [] request = new byte[probeRequest.remaining()];
+                probeRequest.get(request);
+                final OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(request);
+                outputStream.flush();
+
+                final DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                final byte [] header = new byte[Protocol.Message.HEADER_SIZE];
+                inputStream.readFully(header);
+                final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                final int messageSize = Protocol.Message.getMessageSize(headerBuffer);
+                final short messageId = headerBuffer.getShort(Short.SIZE / Byte.SIZE);
+                if ((messageId != Protocol.ProbeReply.ID) || (messageSize < header.length))
+                {
+                    Log.d(LOG_TAG, m_addr + ": unexpected reply " + messageId);
+                    return;
+                }
+
+                final byte [] msg = new byte[messageSize];
+                System.arraycopy(header, 0, msg, 0, header.length);
+                inputStream.readFully(msg, header.length, messageSize - header.length);
+
+                /* ProbeReply: length table of the two strings, then the strings */
+                final ByteBuffer msgBuffer = ByteBuffer.wrap(msg);
+                final int pos = Protocol.Message.HEADER_SIZE;
+                final int deviceIdLength = msgBuffer.getShort(pos);
+                final int playerNameLength = msgBuffer.getShort(pos + Short.SIZE/Byte.SIZE);
+                final int deviceIdPos = (pos + (Short.SIZE/Byte.SIZE)*2);
+                if ((deviceIdLength < 0) || (playerNameLength < 0) ||
+                    (deviceIdPos + deviceIdLength + playerNameLength > messageSize))
+                {
+                    Log.d(LOG_TAG, m_addr + ": invalid reply");
+                    return;
+                }
+
+                final String deviceId = new String(msg, deviceIdPos, deviceIdLength, CHARSET);
+                final String playerName = new String(msg, deviceIdPos + deviceIdLength, playerNameLength, CHARSET);
+                if (deviceId.equals(m_deviceId))
+                {
+                    Log.d(LOG_TAG, m_addr + ": server found: [" + playerName + "]");
+                    m_listener.onServerFound(deviceId, playerName, m_addr);
+                }
+                else
+                    Log.d(LOG_TAG, m_addr + ": device id changed");
+            }
+            catch (final IOException ex)
+            {
+                /* Server is not running at the address any more, nothing critical */
+                Log.d(LOG_TAG, m_addr + ": " + ex.toString());
+            }
+            finally
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (final IOException ex)
+                {
+                    Log.d(LOG_TAG, ex.toString());
+                }
+            }
+        }
+    }
+
+    public ServerProbe(int threads, Listener listener)
+    {
+        m_listener = listener;
+        m_executor = Executors.newFixedThreadPool(threads);
+    }
+
+    public void probe(String deviceId, InetSocketAddress addr)
+    {
+        m_executor.execute(new ProbeTask(deviceId, addr));
+    }
+
+    /* Does not wait for the running probes,
+     * listener should ignore results coming after.
+     */
+    public void stop()
+    {
+        m_executor.shutdownNow();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Resolves discovered services in the background, one at a time
+ * (NSD does not allow concurrent resolves), and keeps resolved
+ * addresses for the TTL, so the game can be connected without
+ * waiting for the resolve after the user selected it.
+ */
+class ServiceResolver
+{
+    private static final String LOG_TAG = ServiceResolver.class.getSimpleName();
+
+    public interface Listener
+    {
+        void onServiceResolved(NsdServiceInfo serviceInfo, InetSocketAddress addr);
+        void onResolveFailed(NsdServiceInfo serviceInfo);
+    }
+
+    private static class CacheEntry
+    {
+        public final InetSocketAddress addr;
+        public final long expireTime;
+
+        public CacheEntry(InetSocketAddress addr, long expireTime)
+        {
+            this.addr = addr;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private static class PendingListener
+    {
+        public final NsdServiceInfo serviceInfo;
+        public final Listener listener;
+
+        public PendingListener(NsdServiceInfo serviceInfo, Listener listener)
+        {
+            this.serviceInfo = serviceInfo;
+            this.listener = listener;
+        }
+    }
+
+    private final NsdManager m_nsdManager;
+    private final long m_ttl;
+    private final ReentrantLock m_lock;
+    private final LinkedList<NsdServiceInfo> m_queue;
+    private final HashMap<String, CacheEntry> m_cache;
+    private final HashMap<String, PendingListener> m_listeners;
+    private String m_activeServiceName; /* null if no resolve in progress */
+
+    private class ResolveListener implements NsdManager.ResolveListener
+    {
+        private final String m_serviceName;
+
+        public ResolveListener(String serviceName)
+        {
+            m_serviceName = serviceName;
+        }
+
+        public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode)
+        {
+            Log.d(LOG_TAG, "onResolveFailed: " + errorCode + ": " + serviceInfo);
+            final PendingListener pending;
+            m_lock.lock();
+            try
+            {
+                if (BuildConfig.DEBUG && !m_serviceName.equals(m_activeServiceName))
+                    throw new AssertionError();
+                m_activeServiceName = null;
+                pending = m_listeners.remove(m_serviceName);
+                resolveNext();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            if (pending != null)
+                pending.listener.onResolveFailed(serviceInfo);
+        }
+
+        public void onServiceResolved(NsdServiceInfo serviceInfo)
+        {
+            Log.d(LOG_TAG, "onServiceResolved: " + serviceInfo);
+            final InetSocketAddress addr = new InetSocketAddress(serviceInfo.getHost(), serviceInfo.getPort());
+            final PendingListener pending;
+            m_lock.lock();
+            try
+            {
+                if (BuildConfig.DEBUG && !m_serviceName.equals(m_activeServiceName))
+                    throw new AssertionError();
+                m_activeServiceName = null;
+                m_cache.put(m_serviceName, new CacheEntry(addr, SystemClock.elapsedRealtime() + m_ttl));
+                pending = m_listeners.remove(m_serviceName);
+                resolveNext();
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+
+            if (pending != null)
+                pending.listener.onServiceResolved(serviceInfo, addr);
+        }
+    }
+
+    /* Should be called with the lock held */
+    private void resolveNext()
+    {
+        if ((m_activeServiceName == null) && !m_queue.isEmpty())
+        {
+            final NsdServiceInfo serviceInfo = m_queue.removeFirst();
+            m_activeServiceName = serviceInfo.getServiceName();
+            m_nsdManager.resolveService(serviceInfo, new ResolveListener(m_activeServiceName));
+        }
+    }
+
+    /* Should be called with the lock held */
+    private InetSocketAddress getCached(String serviceName)
+    {
+        final CacheEntry entry = m_cache.get(serviceName);
+        if (entry == null)
+            return null;
+        if (entry.expireTime <= SystemClock.elapsedRealtime())
+        {
+            m_cache.remove(serviceName);
+            return null;
+        }
+        return entry.addr;
+    }
+
+    /* Should be called with the lock held */
+    private boolean isQueued(String serviceName)
+    {
+        for (NsdServiceInfo serviceInfo : m_queue)
+        {
+            if (serviceInfo.getServiceName().equals(serviceName))
+                return true;
+        }
+        return false;
+    }
+
+    /* Should be called with the lock held */
+    private boolean removeQueued(String serviceName)
+    {
+        final Iterator<NsdServiceInfo> it = m_queue.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().getServiceName().equals(serviceName))
+            {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ServiceResolver(NsdManager nsdManager, long ttl, TimeUnit timeUnit)
+    {
+        m_nsdManager = nsdManager;
+        m_ttl = timeUnit.toMillis(ttl);
+        m_lock = new ReentrantLock();
+        m_queue = new LinkedList<NsdServiceInfo>();
+        m_cache = new HashMap<String, CacheEntry>();
+        m_listeners = new HashMap<String, PendingListener>();
+    }
+
+    /* Schedules a background resolve of the discovered service
+     * if its address is not in the cache yet.
+     */
+    public void resolve(NsdServiceInfo serviceInfo)
+    {
+        final String serviceName = serviceInfo.getServiceName();
+        m_lock.lock();
+        try
+        {
+            if ((getCached(serviceName) == null) &&
+                !serviceName.equals(m_activeServiceName) &&
+                !isQueued(serviceName))
+            {
+                m_queue.addLast(serviceInfo);
+                resolveNext();
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /* Calls the listener with the service address, immediately if it is cached,
+     * otherwise the service is resolved before the others queued.
+     * Only one listener per service is kept.
+     */
+    public void resolve(NsdServiceInfo serviceInfo, Listener listener)
+    {
+        final String serviceName = serviceInfo.getServiceName();
+        final InetSocketAddress addr;
+        m_lock.lock();
+        try
+        {
+            addr = getCached(serviceName);
+            if (addr == null)
+            {
+                m_listeners.put(serviceName, new PendingListener(serviceInfo, listener));
+                if (!serviceName.equals(m_activeServiceName))
+                {
+                    removeQueued(serviceName);
+                    m_queue.addFirst(serviceInfo);
+                    resolveNext();
+                }
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (addr != null)
+            listener.onServiceResolved(serviceInfo, addr);
+    }
+
+    /* Address found other way, resolve is not required,
+     * listener waiting for the service is called with the address.
+     */
+    public void put(String serviceName, InetSocketAddress addr)
+    {
+        final PendingListener pending;
+        m_lock.lock();
+        try
+        {
+            m_cache.put(serviceName, new CacheEntry(addr, SystemClock.elapsedRealtime() + m_ttl));
+            removeQueued(serviceName);
+            pending = m_listeners.remove(serviceName);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (pending != null)
+            pending.listener.onServiceResolved(pending.serviceInfo, addr);
+    }
+
+    /* Service is lost, address is not valid any more */
+    public void remove(NsdServiceInfo serviceInfo)
+    {
+        final String serviceName = serviceInfo.getServiceName();
+        final PendingListener pending;
+        m_lock.lock();
+        try
+        {
+            m_cache.remove(serviceName);
+            if (removeQueued(serviceName))
+                pending = m_listeners.remove(serviceName);
+            else
+                pending = null;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (pending != null)
+            pending.listener.onResolveFailed(serviceInfo);
+    }
+
+    /* Drops pending resolves and listeners, cached addresses are kept.
+     * Resolve in progress completes in the background.
+     */
+    public void cancel()
+    {
+        m_lock.lock();
+        try
+        {
+            m_queue.clear();
+            m_listeners.clear();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+}
@@ -36,12 +36,33 @@ class ShadowObject
     public final int mapSize;
     public final float [] matrix;
 
+    /* Shadow map content is undefined just after creation,
+     * so it should be rendered at least once.
+     */
+    private boolean m_dirty;
+
     private ShadowObject(int frameBufferId, int textureId, int mapSize, float [] matrix)
     {
         this.frameBufferId = frameBufferId;
         this.textureId = textureId;
         this.mapSize = mapSize;
         this.matrix = matrix;
+        m_dirty = true;
+    }
+
+    public void setDirty()
+    {
+        m_dirty = true;
+    }
+
+    /* Returns true if shadow map should be rendered,
+     * expected to be called once per frame on the render thread.
+     */
+    public boolean resetDirty()
+    {
+        final boolean ret = m_dirty;
+        m_dirty = false;
+        return ret;
     }
 
     public static ShadowObject create(int shadowMapSize, Vector light, float [] tmp)
@@ -53,7 +74,7 @@ class ShadowObject
 
             GLES20.glGenTextures(1, ids, 0);
             final int textureId = ids[0];
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLState.bindTexture(0, textureId);
 
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
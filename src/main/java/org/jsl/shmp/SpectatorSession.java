@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.util.Log;
+import org.jsl.collider.RetainableByteBuffer;
+import org.jsl.collider.Session;
+import org.jsl.collider.StreamDefragger;
+
+import java.nio.ByteBuffer;
+
+/* Read-only connection of the player watching the game,
+ * receives the same game messages as the client, but is not resumed.
+ * Drag messages are dropped while the output queue is congested,
+ * next table state message brings the spectator in sync.
+ * Spectator not reading fast enough even then is disconnected,
+ * so it can not make the server to keep all the game in memory.
+ */
+class SpectatorSession implements Session.Listener
+{
+    private static final String LOG_TAG = SpectatorSession.class.getSimpleName();
+
+    private final GameServerView m_view;
+    private final Session m_session;
+    private final StreamDefragger m_streamDefragger;
+    private final String m_playerName;
+    private boolean m_congested; /* guarded by the GameBroadcast lock */
+
+    public SpectatorSession(GameServerView view, Session session, StreamDefragger streamDefragger, String playerName)
+    {
+        m_view = view;
+        m_session = session;
+        m_streamDefragger = streamDefragger;
+        m_playerName = playerName;
+    }
+
+    public String getPlayerName()
+    {
+        return m_playerName;
+    }
+
+    public void sendMessage(ByteBuffer msg)
+    {
+        m_session.sendData(msg);
+    }
+
+    /* Returns false if the connection is closed */
+    public boolean sendMessage(RetainableByteBuffer msg, boolean droppable)
+    {
+        if (droppable && m_congested)
+            return true;
+
+        /* sendData() returns the amount of data waiting in the output queue */
+        final int queued = m_session.sendData(msg);
+        m_congested = (queued > Prefs.SPECTATOR_QUEUE_CONGESTED);
+        if (queued > Prefs.SPECTATOR_QUEUE_LIMIT)
+        {
+            Log.i(LOG_TAG, m_session.getRemoteAddress() +
+                    ": spectator is too slow (" + queued + " bytes queued), close connection.");
+            m_session.closeConnection();
+            return false;
+        }
+        return (queued >= 0);
+    }
+
+    public void onDataReceived(RetainableByteBuffer data)
+    {
+        RetainableByteBuffer msg = m_streamDefragger.getNext(data);
+        while (msg != null)
+        {
+            if (msg == StreamDefragger.INVALID_HEADER)
+            {
+                Log.w(LOG_TAG, m_session.getRemoteAddress() +
+                        ": invalid message header received, close connection.");
+                m_session.closeConnection();
+                break;
+            }
+
+            /* Spectator does not play, only pings are replied */
+            if (Protocol.Message.getMessageId(msg) == Protocol.Ping.ID)
+            {
+                final ByteBuffer pong = Protocol.Pong.create(Protocol.Ping.getSequenceNumber(msg));
+                m_session.sendData(pong);
+            }
+            msg = m_streamDefragger.getNext();
+        }
+    }
+
+    public void onConnectionClosed()
+    {
+        Log.d(LOG_TAG, m_session.getRemoteAddress() + ": connection closed");
+        m_streamDefragger.close();
+        m_view.removeSpectator(this);
+    }
+}
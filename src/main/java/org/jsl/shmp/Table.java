@@ -23,8 +23,6 @@ import android.graphics.Color;
 import android.opengl.GLES20;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Set;
 
@@ -39,7 +37,7 @@ public class Table
     private final int m_shadowMatrixLocation;
     private final int m_shadowTextureLocation;
     private final int m_meshLocation;
-    private final FloatBuffer m_vertexData;
+    private final VertexBuffer m_vertexBuffer;
     private float m_meshX;
     private float m_meshY;
 
@@ -87,10 +85,7 @@ public class Table
         if (m_meshLocation < 0)
             throw new IOException();
 
-        final int bufferCapacity = (Float.SIZE / Byte.SIZE) * 8;
-        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect( bufferCapacity );
-        byteBuffer.order(ByteOrder.nativeOrder());
-        m_vertexData = byteBuffer.asFloatBuffer();
+        m_vertexBuffer = new VertexBuffer(8, GLES20.GL_STATIC_DRAW);
     }
 
     public void setSize(float width, float height)
@@ -103,8 +98,14 @@ public class Table
              width/2,  height/2
         };
 
-        m_vertexData.put(vertices);
-        m_vertexData.position(0);
+        /* Can be called not on the render thread,
+         * data will be uploaded to the GPU before next draw.
+         */
+        final FloatBuffer vertexData = m_vertexBuffer.getData();
+        vertexData.position(0);
+        vertexData.put(vertices);
+        vertexData.position(0);
+        m_vertexBuffer.setDirty();
 
         m_meshX = (width / 10);
         m_meshY = (height / 10);
@@ -112,12 +113,14 @@ public class Table
 
     public void draw(float [] vpMatrix, Vector eyePosition, Vector light, ShadowObject shadowObject, float [] tmp, int tmpOffset)
     {
-        GLES20.glUseProgram(m_programId);
+        GLState.useProgram(m_programId, (1 << m_positionLocation));
 
         GLES20.glUniformMatrix4fv(m_matrixLocation, 1, false, vpMatrix, 0);
 
-        GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, m_vertexData);
-        GLES20.glEnableVertexAttribArray(m_positionLocation);
+        if (!m_vertexBuffer.bind())
+            return;
+        GLES20.glVertexAttribPointer(m_positionLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
+        GLState.enableVertexAttribArray(m_positionLocation);
 
         final int color = Color.GRAY;
         final float red = ((float) Color.red(color)) / 255f;
@@ -145,15 +148,11 @@ public class Table
                 throw new AssertionError();
 
             GLES20.glUniformMatrix4fv(m_shadowMatrixLocation, 1, false, shadowObject.matrix, 16);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, shadowObject.textureId);
+            GLState.bindTexture(0, shadowObject.textureId);
             GLES20.glUniform1i(m_shadowTextureLocation, 0);
         }
 
         GLES20.glUniform2f(m_meshLocation, m_meshX, m_meshY);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        GLES20.glUseProgram(0);
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+/* Transforms (position and uniform scale) of a set of scene objects
+ * kept as structure of arrays. Objects are identified by index,
+ * pack() collects transforms of the visible objects once per frame
+ * to the contiguous array in the ModelCup instance layout (see CupMesh).
+ * Should be used on the render thread only.
+ */
+class TransformStore
+{
+    private final float [] m_x;
+    private final float [] m_y;
+    private final float [] m_z;
+    private final float [] m_scale;
+    private final boolean [] m_visible;
+    private final float [] m_packed;
+    private int m_packedCount;
+    private boolean m_dirty;
+    private boolean m_shadowDirty;
+
+    public TransformStore(int capacity)
+    {
+        m_x = new float[capacity];
+        m_y = new float[capacity];
+        m_z = new float[capacity];
+        m_scale = new float[capacity];
+        m_visible = new boolean[capacity];
+        m_packed = new float[capacity * CupMesh.INSTANCE_SIZE];
+        m_packedCount = 0;
+        m_dirty = false;
+        m_shadowDirty = false;
+    }
+
+    public int getCapacity()
+    {
+        return m_visible.length;
+    }
+
+    /* Sets transform of the object and makes it visible */
+    public void set(int idx, float x, float y, float z, float scale)
+    {
+        setTransform(idx, x, y, z, scale);
+        m_visible[idx] = true;
+    }
+
+    /* Sets transform of the object keeping its visibility */
+    public void setTransform(int idx, float x, float y, float z, float scale)
+    {
+        m_x[idx] = x;
+        m_y[idx] = y;
+        m_z[idx] = z;
+        m_scale[idx] = scale;
+        m_dirty = true;
+        m_shadowDirty = true;
+    }
+
+    public void setVisible(int idx, boolean visible)
+    {
+        if (m_visible[idx] != visible)
+        {
+            m_visible[idx] = visible;
+            m_dirty = true;
+            m_shadowDirty = true;
+        }
+    }
+
+    public boolean isVisible(int idx)
+    {
+        return m_visible[idx];
+    }
+
+    /* Returns true if any object was changed since last call */
+    public boolean resetShadowDirty()
+    {
+        final boolean ret = m_shadowDirty;
+        m_shadowDirty = false;
+        return ret;
+    }
+
+    /* Packs transforms of the visible objects to the array
+     * returned by getPacked() if something was changed,
+     * returns number of the visible objects.
+     */
+    public int pack()
+    {
+        if (m_dirty)
+        {
+            final float [] packed = m_packed;
+            final int capacity = m_visible.length;
+            int count = 0;
+            for (int idx=0; idx<capacity; idx++)
+            {
+                if (m_visible[idx])
+                {
+                    final int offset = (count * CupMesh.INSTANCE_SIZE);
+                    packed[offset  ] = m_x[idx];
+                    packed[offset+1] = m_y[idx];
+                    packed[offset+2] = m_z[idx];
+                    packed[offset+3] = m_scale[idx];
+                    count++;
+                }
+            }
+            m_packedCount = count;
+            m_dirty = false;
+        }
+        return m_packedCount;
+    }
+
+    public float [] getPacked()
+    {
+        return m_packed;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of ShellsMP application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jsl.shmp;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/* Vertex data kept in the GPU vertex buffer object.
+ * Client side copy is kept as well, it is used to upload data again
+ * after EGL context loss or when data was changed by the owner.
+ * GPU buffer is created on first bind(), so the object can be created
+ * and filled on any thread, other methods except getData() and setDirty()
+ * should be called on the render thread.
+ */
+class VertexBuffer
+{
+    private static final String LOG_TAG = VertexBuffer.class.getSimpleName();
+
+    public static final int FLOAT_SIZE = (Float.SIZE / Byte.SIZE);
+
+    /* Incremented each time new EGL context is created,
+     * all buffers created before become invalid.
+     * Volatile because the render thread is recreated with the GL surface.
+     */
+    private static volatile int s_contextId;
+
+    private final FloatBuffer m_data;
+    private final int m_usage;
+    private int m_bufferId;
+    private int m_contextId;
+    private volatile boolean m_dirty;
+
+    public static FloatBuffer allocate(int size)
+    {
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(FLOAT_SIZE * size);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        return byteBuffer.asFloatBuffer();
+    }
+
+    public static void onContextCreated()
+    {
+        s_contextId++;
+    }
+
+    /* Identifies current EGL context, render thread only */
+    public static int getContextId()
+    {
+        return s_contextId;
+    }
+
+    private static int createBuffer()
+    {
+        final int [] bufferId = new int[1];
+        GLES20.glGenBuffers(1, bufferId, 0);
+        return bufferId[0];
+    }
+
+    public VertexBuffer(int size, int usage)
+    {
+        m_data = allocate(size);
+        m_usage = usage;
+        m_bufferId = 0;
+        m_contextId = -1; /* no buffer yet */
+        m_dirty = true;
+    }
+
+    public VertexBuffer(float [] data, int usage)
+    {
+        this(data.length, usage);
+        m_data.put(data);
+        m_data.position(0);
+    }
+
+    public FloatBuffer getData()
+    {
+        return m_data;
+    }
+
+    /* Should be called after data modification,
+     * buffer will be uploaded to the GPU next time it will be bound.
+     */
+    public void setDirty()
+    {
+        m_dirty = true;
+    }
+
+    /* Returns false if GPU buffer can not be created,
+     * draw should be skipped then, creation is retried on the next bind().
+     */
+    public boolean bind()
+    {
+        if (m_contextId != s_contextId)
+        {
+            /* First bind or EGL context was recreated, old buffer does not exist any more. */
+            m_bufferId = createBuffer();
+            if (m_bufferId == 0)
+            {
+                Log.e(LOG_TAG, "glGenBuffers() failed");
+                return false;
+            }
+            m_contextId = s_contextId;
+            m_dirty = true;
+        }
+
+        GLState.bindArrayBuffer(m_bufferId);
+
+        if (m_dirty)
+        {
+            m_dirty = false;
+            m_data.position(0);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, FLOAT_SIZE * m_data.capacity(), m_data, m_usage);
+        }
+        return true;
+    }
+
+    /* Releases GPU buffer, object should not be used after. */
+    public void delete()
+    {
+        if (m_contextId == s_contextId)
+        {
+            GLState.deleteArrayBuffer(m_bufferId);
+            m_contextId = -1;
+        }
+    }
+
+    public static void unbind()
+    {
+        GLState.bindArrayBuffer(0);
+    }
+}
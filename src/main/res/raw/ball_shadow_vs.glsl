@@ -1,12 +1,29 @@
 uniform mat4 u_m4Matrix;
+uniform vec4 u_v4Ball;  /* center, radius */
+uniform vec3 u_v3Light; /* quad faces light position */
 attribute vec4 a_v4Position;
 varying vec2 v_v2ModelPosition;
 varying vec4 v_v4Position;
 
+/* Rotation of the Z axis to the unit vector d */
+mat3 orient(vec3 d)
+{
+    if (d.z < -0.999999)
+        return mat3(1.0, 0.0, 0.0, 0.0, -1.0, 0.0, 0.0, 0.0, -1.0);
+    float k = (1.0 / (1.0 + d.z));
+    return mat3(
+        1.0 - k*d.x*d.x, -k*d.x*d.y, -d.x,
+        -k*d.x*d.y, 1.0 - k*d.y*d.y, -d.y,
+        d.x, d.y, d.z);
+}
+
 void main()
 {
+    vec3 center = u_v4Ball.xyz;
+    float radius = u_v4Ball.w;
+    mat3 r = orient(normalize(u_v3Light - center));
     v_v2ModelPosition = a_v4Position.xy;
-    vec4 pos = (u_m4Matrix * a_v4Position);
+    vec4 pos = u_m4Matrix * vec4(center + r*vec3(a_v4Position.xy*radius, 0.0), 1.0);
     v_v4Position = pos;
     gl_Position = pos;
 }
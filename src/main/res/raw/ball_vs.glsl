@@ -1,9 +1,30 @@
 uniform mat4 u_m4Matrix;
+uniform vec4 u_v4Ball;  /* center, radius */
+uniform vec4 u_v4Eye;   /* quad faces eye position (w=1) or direction (w=0) */
+uniform vec4 u_v4Light; /* light position (w=1) or direction (w=0) */
 attribute vec4 a_v4Position;
 varying vec2 v_v2Position;
+varying vec3 v_v3Light;
+
+/* Rotation of the Z axis to the unit vector d */
+mat3 orient(vec3 d)
+{
+    if (d.z < -0.999999)
+        return mat3(1.0, 0.0, 0.0, 0.0, -1.0, 0.0, 0.0, 0.0, -1.0);
+    float k = (1.0 / (1.0 + d.z));
+    return mat3(
+        1.0 - k*d.x*d.x, -k*d.x*d.y, -d.x,
+        -k*d.x*d.y, 1.0 - k*d.y*d.y, -d.y,
+        d.x, d.y, d.z);
+}
 
 void main()
 {
+    vec3 center = u_v4Ball.xyz;
+    float radius = u_v4Ball.w;
+    mat3 r = orient(normalize(u_v4Eye.xyz - center*u_v4Eye.w));
     v_v2Position = a_v4Position.xy;
-    gl_Position = u_m4Matrix * a_v4Position;
+    /* light in the ball model space, (v * r) is (transpose(r) * v) */
+    v_v3Light = ((u_v4Light.xyz - center*u_v4Light.w) * r) / radius;
+    gl_Position = u_m4Matrix * vec4(center + r*vec3(a_v4Position.xy*radius, 0.0), 1.0);
 }
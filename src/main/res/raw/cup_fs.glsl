@@ -1,4 +1,4 @@
-precision mediump float;
+precision highp float;
 
 uniform vec3 u_v3EyePosition;
 uniform vec3 u_v3Light[2]; /* [0] - position, [1] - color */
@@ -0,0 +1,13 @@
+uniform mat4 u_m4Matrix;
+uniform vec4 u_v4Instance[64]; /* xyz - position, w - scale, size should match ModelCup.BATCH_SIZE */
+attribute vec4 a_v4Position;
+attribute float a_fInstance;
+varying vec4 v_v4Position;
+
+void main()
+{
+    vec4 v4Instance = u_v4Instance[int(a_fInstance)];
+    vec4 pos = (u_m4Matrix * vec4((a_v4Position.xyz * v4Instance.w + v4Instance.xyz), 1.0));
+    v_v4Position = pos;
+    gl_Position = pos;
+}
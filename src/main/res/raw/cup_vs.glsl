@@ -1,12 +1,16 @@
 uniform mat4 u_m4Matrix;
+uniform vec4 u_v4Instance[64]; /* xyz - position, w - scale, size should match ModelCup.BATCH_SIZE */
 attribute vec4 a_v4Position;
 attribute vec3 a_v3Normal;
+attribute float a_fInstance;
 varying vec4 v_v4Position;
 varying vec3 v_v3Normal;
 
 void main()
 {
-    v_v4Position = a_v4Position;
-    v_v3Normal = a_v3Normal;
-    gl_Position = (u_m4Matrix * a_v4Position);
+    vec4 v4Instance = u_v4Instance[int(a_fInstance)];
+    vec4 v4Position = vec4((a_v4Position.xyz * v4Instance.w + v4Instance.xyz), 1.0);
+    v_v4Position = v4Position;
+    v_v3Normal = a_v3Normal; /* scale is uniform, normal does not change */
+    gl_Position = (u_m4Matrix * v4Position);
 }
@@ -2,9 +2,18 @@ precision mediump float;
 
 uniform sampler2D u_TexUnit;
 uniform vec4 u_v4Color;
+uniform float u_fSmoothing;
 varying vec2 texCoord;
 
 void main()
 {
-    gl_FragColor = texture2D(u_TexUnit, texCoord) * u_v4Color;
+    /* Texture keeps signed distance to the glyph edge, 0.5 is on the edge */
+    float distance = texture2D(u_TexUnit, texCoord).a;
+    float alpha = smoothstep(0.5 - u_fSmoothing, 0.5 + u_fSmoothing, distance);
+
+    /* Glyph quads overlap, transparent pixels should not write depth */
+    if (alpha < 0.01)
+        discard;
+
+    gl_FragColor = vec4(u_v4Color.rgb, u_v4Color.a * alpha);
 }